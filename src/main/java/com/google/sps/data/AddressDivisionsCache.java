@@ -0,0 +1,160 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.data;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.common.base.CharMatcher;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.hash.Hashing;
+import java.nio.charset.StandardCharsets;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Optional;
+import java.util.Set;
+
+/**
+ * A two-level cache of the OCD division IDs an address belongs to, as returned by the
+ * representatives query of the Civic Information API. Divisions are kept in an in-memory LRU cache
+ * and in AddressDivisions Entities in Datastore, so they are shared between instances and survive
+ * restarts. The divisions of an address rarely change during an election cycle, so they are kept
+ * for a long time.
+ *
+ * <p>Entities are keyed by a hash of the normalized address rather than the address itself, so
+ * Datastore does not hold the addresses users searched for.
+ */
+public final class AddressDivisionsCache {
+  public static final String ENTITY_KIND = "AddressDivisions";
+  public static final String DIVISIONS_ENTITY_KEYWORD = "divisions";
+  public static final String FETCHED_ENTITY_KEYWORD = "fetched";
+
+  private static final int DEFAULT_MAXIMUM_SIZE = 10000;
+  private static final Duration DEFAULT_TIME_TO_LIVE = Duration.ofDays(30);
+  private static final AddressDivisionsCache INSTANCE =
+      new AddressDivisionsCache(DEFAULT_MAXIMUM_SIZE, DEFAULT_TIME_TO_LIVE, Clock.systemUTC());
+
+  private final Cache<String, CachedDivisions> memory;
+  private final Duration timeToLive;
+  private final Clock clock;
+
+  /**
+   * Creates an empty cache.
+   *
+   * @param maximumSize how many addresses to keep in memory
+   * @param timeToLive how long the divisions of an address are used before they are queried again
+   * @param clock the time source used to decide when divisions are too old
+   */
+  public AddressDivisionsCache(int maximumSize, Duration timeToLive, Clock clock) {
+    this.memory = CacheBuilder.newBuilder().maximumSize(maximumSize).build();
+    this.timeToLive = timeToLive;
+    this.clock = clock;
+  }
+
+  /** Returns the cache shared by every request. */
+  public static AddressDivisionsCache getInstance() {
+    return INSTANCE;
+  }
+
+  /** Returns the address as it is compared with other addresses, ignoring case and spacing. */
+  public static String normalizeAddress(String address) {
+    return CharMatcher.whitespace().trimAndCollapseFrom(address, ' ').toLowerCase(Locale.ROOT);
+  }
+
+  /**
+   * Finds the cached divisions of an address, looking in Datastore if they are not in memory.
+   *
+   * @param datastore the Datastore containing the AddressDivisions Entities
+   * @param address the address as entered by the user
+   * @return the divisions of the address, or an empty Optional if they are not cached or too old
+   */
+  public Optional<ImmutableSet<String>> get(DatastoreService datastore, String address) {
+    String addressHash = hashAddress(address);
+
+    CachedDivisions cached = memory.getIfPresent(addressHash);
+    if (cached == null) {
+      try {
+        cached = fromEntity(datastore.get(KeyFactory.createKey(ENTITY_KIND, addressHash)));
+      } catch (EntityNotFoundException e) {
+        // Addresses nobody searched for before are expected, so this is not worth a warning.
+        return Optional.empty();
+      }
+      memory.put(addressHash, cached);
+    }
+
+    return isFresh(cached) ? Optional.of(cached.divisions) : Optional.empty();
+  }
+
+  /**
+   * Caches the divisions of an address in memory and in Datastore.
+   *
+   * @param datastore the Datastore to store the AddressDivisions Entity in
+   * @param address the address as entered by the user
+   * @param divisions the OCD division IDs the address belongs to
+   */
+  public void put(DatastoreService datastore, String address, Set<String> divisions) {
+    String addressHash = hashAddress(address);
+    CachedDivisions cached = new CachedDivisions(ImmutableSet.copyOf(divisions), clock.instant());
+
+    memory.put(addressHash, cached);
+    datastore.put(toEntity(addressHash, cached));
+  }
+
+  private boolean isFresh(CachedDivisions cached) {
+    return cached.fetched.plus(timeToLive).isAfter(clock.instant());
+  }
+
+  // Stands in for the address in Datastore keys, here and in PollingStationStore.
+  static String hashAddress(String address) {
+    return Hashing.sha256()
+        .hashString(normalizeAddress(address), StandardCharsets.UTF_8)
+        .toString();
+  }
+
+  private static Entity toEntity(String addressHash, CachedDivisions cached) {
+    Entity entity = new Entity(ENTITY_KIND, addressHash);
+    entity.setUnindexedProperty(DIVISIONS_ENTITY_KEYWORD, cached.divisions.asList());
+    entity.setProperty(FETCHED_ENTITY_KEYWORD, Date.from(cached.fetched));
+    return entity;
+  }
+
+  @SuppressWarnings("unchecked")
+  private static CachedDivisions fromEntity(Entity entity) {
+    // Datastore does not store empty lists, so an address without divisions has no property.
+    Collection<String> divisions =
+        (Collection<String>) entity.getProperty(DIVISIONS_ENTITY_KEYWORD);
+    return new CachedDivisions(
+        divisions == null ? ImmutableSet.of() : ImmutableSet.copyOf(divisions),
+        ((Date) entity.getProperty(FETCHED_ENTITY_KEYWORD)).toInstant());
+  }
+
+  // The divisions of an address and when they were looked up.
+  private static final class CachedDivisions {
+    private final ImmutableSet<String> divisions;
+    private final Instant fetched;
+
+    private CachedDivisions(ImmutableSet<String> divisions, Instant fetched) {
+      this.divisions = divisions;
+      this.fetched = fetched;
+    }
+  }
+}
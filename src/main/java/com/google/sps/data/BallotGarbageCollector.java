@@ -0,0 +1,426 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.data;
+
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.QueryResultList;
+import com.google.auto.value.AutoValue;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.primitives.Longs;
+import com.google.sps.servlets.ServletUtils;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Deletes the Contest, Candidate and Referendum Entities that no Election references any more, such
+ * as the ones left behind when an Election's ballot is replaced.
+ *
+ * <p>A pass first marks every Entity referenced by an Election, or by a Contest an Election
+ * references, and saves the sorted IDs of the marked Entities in chunks. It then sweeps the
+ * Entities of each kind with keys-only queries a page at a time, in key order, and deletes the
+ * unmarked ones. A run only sweeps a few pages, pausing between them so it does not compete with
+ * requests for Datastore, and saves a cursor so the next run carries on where it stopped. Each page
+ * only reads the chunks of marks covering its keys, so the Elections and Contests are read once per
+ * pass rather than once per run.
+ *
+ * <p>Ballots are written before the Election that references them, so Entities stored less than a
+ * grace period before the pass started are never deleted. This also keeps the ballots stored while
+ * the pass runs, which its marks do not cover.
+ */
+public final class BallotGarbageCollector {
+  public static final String STATE_ENTITY_KIND = "BallotGarbageCollection";
+  public static final String STORED_ENTITY_KEYWORD = "stored";
+  public static final String KIND_ENTITY_KEYWORD = "kind";
+  public static final String CURSOR_ENTITY_KEYWORD = "cursor";
+  public static final String STARTED_ENTITY_KEYWORD = "started";
+  public static final String MARKS_ENTITY_KIND = "BallotGarbageCollectionMarks";
+  public static final String IDS_ENTITY_KEYWORD = "ids";
+
+  private static final String SOURCE_CLASS = BallotGarbageCollector.class.getName();
+  private static final Logger logger = Logger.getLogger(SOURCE_CLASS);
+  private static final ImmutableList<String> SWEPT_KINDS =
+      ImmutableList.of(Contest.ENTITY_KIND, Referendum.ENTITY_KIND, Candidate.ENTITY_KIND);
+  private static final Key STATE_KEY = KeyFactory.createKey(STATE_ENTITY_KIND, "state");
+  // The state lists the first ID of each chunk of marks of a kind under this prefix and the kind.
+  private static final String FIRST_IDS_ENTITY_KEYWORD_PREFIX = "firstIds.";
+  // Datastore looks up at most 1000 keys in one batch get.
+  private static final int MAX_KEYS_PER_GET = 1000;
+  // Keeps each chunk of marks far below the 1 MB Entity limit, and each batch put of them below
+  // the request size limit.
+  private static final int MARKS_PER_ENTITY = 10_000;
+  private static final int MARK_ENTITIES_PER_PUT = 25;
+  private static final int DEFAULT_PAGE_SIZE = 500;
+  private static final int DEFAULT_PAGES_PER_RUN = 20;
+  private static final Duration DEFAULT_PAUSE = Duration.ofMillis(200);
+  private static final Duration DEFAULT_GRACE_PERIOD = Duration.ofHours(1);
+  private static final BallotGarbageCollector INSTANCE =
+      new BallotGarbageCollector(
+          DEFAULT_PAGE_SIZE,
+          DEFAULT_PAGES_PER_RUN,
+          DEFAULT_PAUSE,
+          DEFAULT_GRACE_PERIOD,
+          Clock.systemUTC());
+
+  private final int pageSize;
+  private final int pagesPerRun;
+  private final Duration pause;
+  private final Duration gracePeriod;
+  private final Clock clock;
+
+  /** The outcome of one run of the collector. */
+  @AutoValue
+  public abstract static class RunResult {
+    /** Returns the number of Entity keys the run looked at. */
+    public abstract int getScanned();
+
+    /** Returns the number of Entities the run deleted. */
+    public abstract int getDeleted();
+
+    /** Returns true if the run swept the last page, so the next run starts a new pass. */
+    public abstract boolean isPassComplete();
+
+    static RunResult create(int scanned, int deleted, boolean passComplete) {
+      return new AutoValue_BallotGarbageCollector_RunResult(scanned, deleted, passComplete);
+    }
+  }
+
+  /**
+   * Creates a collector.
+   *
+   * @param pageSize how many keys of a kind are read by each query
+   * @param pagesPerRun how many pages a run sweeps before saving its cursor
+   * @param pause how long a run waits between pages
+   * @param gracePeriod how long newly stored Entities are kept while unreferenced
+   * @param clock the time source used to decide which Entities are past the grace period
+   */
+  public BallotGarbageCollector(
+      int pageSize, int pagesPerRun, Duration pause, Duration gracePeriod, Clock clock) {
+    this.pageSize = pageSize;
+    this.pagesPerRun = pagesPerRun;
+    this.pause = pause;
+    this.gracePeriod = gracePeriod;
+    this.clock = clock;
+  }
+
+  /** Returns the collector used by the cron job. */
+  public static BallotGarbageCollector getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * Stamps ballot Entities with the time they are stored, so the collector keeps them until the
+   * Election that references them has been stored too.
+   *
+   * @param entities the Contest, Candidate and Referendum Entities about to be stored
+   * @param stored the time they are stored
+   */
+  public static void markStored(Iterable<Entity> entities, Instant stored) {
+    Date storedDate = Date.from(stored);
+    for (Entity entity : entities) {
+      entity.setUnindexedProperty(STORED_ENTITY_KEYWORD, storedDate);
+    }
+  }
+
+  /**
+   * Sweeps the next few pages of ballot Entities, deleting the unreferenced ones. If no pass is in
+   * progress, starts one by marking the referenced Entities.
+   *
+   * @param datastore the Datastore containing the Elections and their ballots
+   * @return how many Entities were looked at and deleted
+   */
+  public RunResult run(DatastoreService datastore) throws InterruptedException {
+    Entity state;
+    try {
+      state = datastore.get(STATE_KEY);
+    } catch (EntityNotFoundException e) {
+      state = null;
+    }
+    // Without a state, or with one saved before passes kept their marks, this run starts a pass.
+    if (state == null || !state.hasProperty(STARTED_ENTITY_KEYWORD)) {
+      state = startPass(datastore);
+    }
+
+    int kindIndex = Math.max(0, SWEPT_KINDS.indexOf(state.getProperty(KIND_ENTITY_KEYWORD)));
+    Cursor cursor = null;
+    String webSafeCursor = (String) state.getProperty(CURSOR_ENTITY_KEYWORD);
+    if (webSafeCursor != null) {
+      cursor = Cursor.fromWebSafeString(webSafeCursor);
+    }
+
+    Marks marks = new Marks(state);
+    Instant storedBefore =
+        ((Date) state.getProperty(STARTED_ENTITY_KEYWORD)).toInstant().minus(gracePeriod);
+    int scanned = 0;
+    int deleted = 0;
+
+    for (int page = 0; page < pagesPerRun; page++) {
+      if (page > 0 && !pause.isZero()) {
+        Thread.sleep(pause.toMillis());
+      }
+
+      FetchOptions options = FetchOptions.Builder.withLimit(pageSize);
+      if (cursor != null) {
+        options.startCursor(cursor);
+      }
+      String kind = SWEPT_KINDS.get(kindIndex);
+      QueryResultList<Entity> keys =
+          datastore.prepare(new Query(kind).setKeysOnly()).asQueryResultList(options);
+
+      scanned += keys.size();
+      deleted += deleteExpired(datastore, marks.findUnmarked(datastore, kind, keys), storedBefore);
+
+      if (keys.size() < pageSize) {
+        kindIndex++;
+        cursor = null;
+        if (kindIndex == SWEPT_KINDS.size()) {
+          List<Key> stateKeys = marks.getKeys();
+          stateKeys.add(STATE_KEY);
+          ServletUtils.deleteAllFromDatastore(datastore, stateKeys);
+          logResult(scanned, deleted, true);
+          return RunResult.create(scanned, deleted, true);
+        }
+      } else {
+        cursor = keys.getCursor();
+      }
+
+      // Save progress after every page, so a run cut short by its request deadline loses little.
+      state.setUnindexedProperty(KIND_ENTITY_KEYWORD, SWEPT_KINDS.get(kindIndex));
+      state.setUnindexedProperty(
+          CURSOR_ENTITY_KEYWORD, cursor == null ? null : cursor.toWebSafeString());
+      datastore.put(state);
+    }
+
+    logResult(scanned, deleted, false);
+    return RunResult.create(scanned, deleted, false);
+  }
+
+  // Marks the referenced Entities and saves the marks and the state of a new pass, returning the
+  // state.
+  private Entity startPass(DatastoreService datastore) {
+    // Marks of a pass that stopped before its state was saved.
+    List<Key> oldMarkKeys = new ArrayList<>();
+    for (Entity entity :
+        datastore
+            .prepare(new Query(MARKS_ENTITY_KIND).setAncestor(STATE_KEY).setKeysOnly())
+            .asIterable()) {
+      oldMarkKeys.add(entity.getKey());
+    }
+    ServletUtils.deleteAllFromDatastore(datastore, oldMarkKeys);
+
+    Instant started = clock.instant();
+    Map<String, List<Long>> markedIds = new HashMap<>();
+    for (Key key : markReferencedKeys(datastore)) {
+      markedIds.computeIfAbsent(key.getKind(), kind -> new ArrayList<>()).add(key.getId());
+    }
+
+    Entity state = new Entity(STATE_KEY);
+    state.setUnindexedProperty(STARTED_ENTITY_KEYWORD, Date.from(started));
+    state.setUnindexedProperty(KIND_ENTITY_KEYWORD, SWEPT_KINDS.get(0));
+    List<Entity> markEntities = new ArrayList<>();
+    for (String kind : SWEPT_KINDS) {
+      List<Long> ids = markedIds.getOrDefault(kind, new ArrayList<>());
+      Collections.sort(ids);
+      List<Long> firstIds = new ArrayList<>();
+      for (List<Long> chunk : Lists.partition(ids, MARKS_PER_ENTITY)) {
+        Entity marks = new Entity(toMarksKey(kind, firstIds.size()));
+        marks.setUnindexedProperty(IDS_ENTITY_KEYWORD, new ArrayList<>(chunk));
+        markEntities.add(marks);
+        firstIds.add(chunk.get(0));
+      }
+      state.setUnindexedProperty(FIRST_IDS_ENTITY_KEYWORD_PREFIX + kind, firstIds);
+    }
+
+    for (List<Entity> batch : Lists.partition(markEntities, MARK_ENTITIES_PER_PUT)) {
+      datastore.put(batch);
+    }
+    // The state is saved last, so a pass is only resumed once all of its marks are saved.
+    datastore.put(state);
+    logger.logp(
+        Level.INFO,
+        SOURCE_CLASS,
+        "startPass",
+        String.format(
+            "Started a pass with %d marked ballot Entities in %d chunks.",
+            markedIds.values().stream().mapToInt(List::size).sum(), markEntities.size()));
+    return state;
+  }
+
+  private static Key toMarksKey(String kind, int chunk) {
+    return KeyFactory.createKey(STATE_KEY, MARKS_ENTITY_KIND, kind + "-" + chunk);
+  }
+
+  // Returns the keys of every Contest and Referendum an Election references, and of every Candidate
+  // those Contests reference.
+  @SuppressWarnings("unchecked")
+  private static Set<Key> markReferencedKeys(DatastoreService datastore) {
+    Set<Key> referencedKeys = new HashSet<>();
+    List<Key> contestKeys = new ArrayList<>();
+    for (Entity election :
+        datastore
+            .prepare(new Query(Election.ENTITY_KIND))
+            .asIterable(FetchOptions.Builder.withChunkSize(DEFAULT_PAGE_SIZE))) {
+      Collection<Long> contests =
+          (Collection<Long>) election.getProperty(Election.CONTESTS_ENTITY_KEYWORD);
+      if (contests != null) {
+        for (long id : contests) {
+          Key contestKey = KeyFactory.createKey(Contest.ENTITY_KIND, id);
+          if (referencedKeys.add(contestKey)) {
+            contestKeys.add(contestKey);
+          }
+        }
+      }
+
+      Collection<Long> referendums =
+          (Collection<Long>) election.getProperty(Election.REFERENDUMS_ENTITY_KEYWORD);
+      if (referendums != null) {
+        for (long id : referendums) {
+          referencedKeys.add(KeyFactory.createKey(Referendum.ENTITY_KIND, id));
+        }
+      }
+    }
+
+    for (List<Key> batch : Lists.partition(contestKeys, MAX_KEYS_PER_GET)) {
+      for (Entity contest : datastore.get(batch).values()) {
+        Collection<Long> candidates =
+            (Collection<Long>) contest.getProperty(Contest.CANDIDATES_ENTITY_KEYWORD);
+        if (candidates != null) {
+          for (long id : candidates) {
+            referencedKeys.add(KeyFactory.createKey(Candidate.ENTITY_KIND, id));
+          }
+        }
+      }
+    }
+    return referencedKeys;
+  }
+
+  // Deletes the Entities of "keys" stored before "storedBefore", or before Entities were stamped,
+  // and returns how many were deleted.
+  private static int deleteExpired(
+      DatastoreService datastore, List<Key> keys, Instant storedBefore) {
+    if (keys.isEmpty()) {
+      return 0;
+    }
+
+    Date cutoff = Date.from(storedBefore);
+    List<Key> expiredKeys = new ArrayList<>();
+    for (List<Key> batch : Lists.partition(keys, MAX_KEYS_PER_GET)) {
+      for (Map.Entry<Key, Entity> entry : datastore.get(batch).entrySet()) {
+        Date stored = (Date) entry.getValue().getProperty(STORED_ENTITY_KEYWORD);
+        if (stored == null || stored.before(cutoff)) {
+          expiredKeys.add(entry.getKey());
+        }
+      }
+    }
+
+    datastore.delete(expiredKeys);
+    return expiredKeys.size();
+  }
+
+  private static void logResult(int scanned, int deleted, boolean passComplete) {
+    logger.logp(
+        Level.INFO,
+        SOURCE_CLASS,
+        "run",
+        String.format(
+            "Scanned %d ballot Entities and deleted %d unreferenced ones; pass %s.",
+            scanned, deleted, passComplete ? "complete" : "continues next run"));
+  }
+
+  // The IDs marked when the pass started, read a chunk at a time as the pages swept need them.
+  private static final class Marks {
+    private final Entity state;
+    private final Map<Key, long[]> loadedChunks = new HashMap<>();
+
+    private Marks(Entity state) {
+      this.state = state;
+    }
+
+    // Returns the keys of a page of one kind that are not marked, reading the chunks of marks that
+    // cover the page and were not read for an earlier page.
+    List<Key> findUnmarked(DatastoreService datastore, String kind, List<Entity> page) {
+      List<Long> firstIds = getFirstIds(kind);
+      Set<Key> chunksToLoad = new HashSet<>();
+      for (Entity entity : page) {
+        int chunk = findChunk(firstIds, entity.getKey());
+        if (chunk >= 0 && !loadedChunks.containsKey(toMarksKey(kind, chunk))) {
+          chunksToLoad.add(toMarksKey(kind, chunk));
+        }
+      }
+      for (Entity marks : ServletUtils.getAllFromDatastore(datastore, chunksToLoad).values()) {
+        @SuppressWarnings("unchecked")
+        Collection<Long> ids = (Collection<Long>) marks.getProperty(IDS_ENTITY_KEYWORD);
+        loadedChunks.put(marks.getKey(), Longs.toArray(ids));
+      }
+
+      List<Key> unmarkedKeys = new ArrayList<>();
+      for (Entity entity : page) {
+        int chunk = findChunk(firstIds, entity.getKey());
+        long[] ids = chunk < 0 ? null : loadedChunks.get(toMarksKey(kind, chunk));
+        if (ids == null || Arrays.binarySearch(ids, entity.getKey().getId()) < 0) {
+          unmarkedKeys.add(entity.getKey());
+        }
+      }
+      return unmarkedKeys;
+    }
+
+    // Returns the keys of every chunk of marks of the pass.
+    List<Key> getKeys() {
+      List<Key> keys = new ArrayList<>();
+      for (String kind : SWEPT_KINDS) {
+        for (int chunk = 0; chunk < getFirstIds(kind).size(); chunk++) {
+          keys.add(toMarksKey(kind, chunk));
+        }
+      }
+      return keys;
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<Long> getFirstIds(String kind) {
+      List<Long> firstIds = (List<Long>) state.getProperty(FIRST_IDS_ENTITY_KEYWORD_PREFIX + kind);
+      return firstIds == null ? ImmutableList.of() : firstIds;
+    }
+
+    // Returns the chunk that would hold the ID of "key", or -1 if no chunk would. Keys with names
+    // are never referenced, so they are in no chunk.
+    private static int findChunk(List<Long> firstIds, Key key) {
+      if (key.getName() != null) {
+        return -1;
+      }
+      int index = Collections.binarySearch(firstIds, key.getId());
+      return index >= 0 ? index : -index - 2;
+    }
+  }
+}
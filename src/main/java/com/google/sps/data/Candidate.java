@@ -17,14 +17,17 @@ package com.google.sps.data;
 import com.google.appengine.api.datastore.DatastoreService;
 import com.google.appengine.api.datastore.EmbeddedEntity;
 import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
 import com.google.auto.value.AutoValue;
 import com.google.common.collect.ImmutableMap;
-import com.google.gson.Gson;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
 import com.google.sps.servlets.ServletUtils;
 import java.io.IOException;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.Optional;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.json.JSONArray;
@@ -87,57 +90,116 @@ public abstract class Candidate {
     public abstract Candidate build();
   }
 
-  // Creates a new Candidate object by extracting the properties from "candidateData"
-  public static Candidate fromJSONObject(JSONObject candidateData) {
-    String candidateName;
-    String candidateParty;
-    String candidateUrl;
-    Map<String, String> channelsMap = new HashMap<>();
+  public abstract Builder toBuilder();
 
-    try {
-      candidateName = candidateData.getString(NAME_JSON_KEYWORD);
-    } catch (JSONException e) {
-      candidateName = "";
-    }
+  // Returns a copy of this Candidate with the given platform description.
+  public Candidate withPlatformDescription(String platformDescription) {
+    return toBuilder().setPlatformDescription(platformDescription).build();
+  }
 
-    try {
-      candidateParty = candidateData.getString(PARTY_JSON_KEYWORD);
-    } catch (JSONException e) {
-      candidateParty = "";
-    }
+  // Creates a new Candidate object by extracting the properties from "candidateData"
+  public static Candidate fromJSONObject(JSONObject candidateData) throws JSONException {
+    Candidate candidate = JsonReaderUtils.fromJSONObject(candidateData, Candidate::fromJsonReader);
+    return candidate.withPlatformDescription(
+        getPlatformDescriptionFromWeVoteApi(candidate.getName()));
+  }
 
-    try {
-      candidateUrl = candidateData.getString(CAMPAIGN_URL_JSON_KEYWORD);
-    } catch (JSONException e) {
-      candidateUrl = "";
-    }
+  /**
+   * Creates a new Candidate object from the candidate object "reader" is positioned at. The
+   * platform description is left empty so that it can be looked up after the API response has been
+   * fully read.
+   *
+   * @param reader a JsonReader positioned at the start of a candidate object from the Google Civic
+   *     Information API
+   * @return the new Candidate object
+   */
+  public static Candidate fromJsonReader(JsonReader reader) throws IOException {
+    String candidateName = "";
+    String candidateParty = "";
+    String candidateUrl = "";
+    Map<String, String> channelsMap = new HashMap<>();
 
-    if (candidateData.has(CHANNELS_JSON_KEYWORD)) {
-      for (Object channel : candidateData.getJSONArray(CHANNELS_JSON_KEYWORD)) {
-        JSONObject currentChannel = (JSONObject) channel;
-        channelsMap.put(currentChannel.getString("type"), currentChannel.getString("id"));
+    reader.beginObject();
+    while (reader.hasNext()) {
+      switch (reader.nextName()) {
+        case NAME_JSON_KEYWORD:
+          candidateName = JsonReaderUtils.nextStringOrDefault(reader, "");
+          break;
+        case PARTY_JSON_KEYWORD:
+          candidateParty = JsonReaderUtils.nextStringOrDefault(reader, "");
+          break;
+        case CAMPAIGN_URL_JSON_KEYWORD:
+          candidateUrl = JsonReaderUtils.nextStringOrDefault(reader, "");
+          break;
+        case CHANNELS_JSON_KEYWORD:
+          readChannels(reader, channelsMap);
+          break;
+        default:
+          reader.skipValue();
       }
     }
+    reader.endObject();
 
     return Candidate.builder()
         .setName(candidateName)
         .setPartyAffiliation(candidateParty)
         .setCampaignSite(candidateUrl)
-        .setPlatformDescription(getPlatformDescriptionFromWeVoteApi(candidateName))
+        .setPlatformDescription("")
         .setChannels(channelsMap)
         .build();
   }
 
+  private static void readChannels(JsonReader reader, Map<String, String> channelsMap)
+      throws IOException {
+    reader.beginArray();
+    while (reader.hasNext()) {
+      String channelType = null;
+      String channelId = null;
+
+      reader.beginObject();
+      while (reader.hasNext()) {
+        switch (reader.nextName()) {
+          case "type":
+            channelType = JsonReaderUtils.nextStringOrDefault(reader, null);
+            break;
+          case "id":
+            channelId = JsonReaderUtils.nextStringOrDefault(reader, null);
+            break;
+          default:
+            reader.skipValue();
+        }
+      }
+      reader.endObject();
+
+      if (channelType != null && channelId != null) {
+        channelsMap.put(channelType, channelId);
+      }
+    }
+    reader.endArray();
+  }
+
   /**
    * Use the WeVote API to search for the name of a candidate and get its we_vote_id, then use the
    * we_vote_id with the WeVote API to get the candidate description from Ballotpedia.
    */
   public static String getPlatformDescriptionFromWeVoteApi(String candidateName) {
+    return lookUpWeVoteDescription(candidateName).map(WeVoteDescription::getDescription).orElse("");
+  }
+
+  /**
+   * Looks up the Ballotpedia description of a candidate with the WeVote API, like
+   * getPlatformDescriptionFromWeVoteApi, but tells apart a candidate WeVote does not know about
+   * from a lookup that failed.
+   *
+   * @param candidateName the name of the candidate to search WeVote for
+   * @return the candidate's we_vote_id and description, WeVoteDescription.notFound() if the search
+   *     had no results, or an empty Optional if the lookup failed
+   */
+  public static Optional<WeVoteDescription> lookUpWeVoteDescription(String candidateName) {
     if (candidateName.equals("")) {
-      return "";
+      return Optional.of(WeVoteDescription.notFound());
     }
 
-    String candidateDescription;
     try {
       // We need to search for the candidate's name to get their we_vote_id first.
       JSONObject searchObject =
@@ -154,7 +216,7 @@ public abstract class Candidate {
       JSONArray searchObjectResult = searchObject.getJSONArray("search_results");
 
       if (searchObjectResult.length() == 0) {
-        return "";
+        return Optional.of(WeVoteDescription.notFound());
       }
 
       String candidateWeVoteId = ((JSONObject) searchObjectResult.get(0)).getString("we_vote_id");
@@ -170,18 +232,37 @@ public abstract class Candidate {
                       candidateWeVoteId),
                   /* isXml= */ false)
               .get();
-      candidateDescription = candidateObject.getString("ballotpedia_candidate_summary");
+
+      return Optional.of(
+          WeVoteDescription.builder()
+              .setWeVoteId(candidateWeVoteId)
+              .setDescription(candidateObject.getString("ballotpedia_candidate_summary"))
+              .build());
     } catch (IOException | JSONException | NoSuchElementException e) {
       logger.log(Level.WARNING, "Was unable to retrieve description from given URL");
-      return "";
+      return Optional.empty();
     }
-
-    return candidateDescription;
   }
 
   // Converts this Candidate object to a JSON string.
   public String toJsonString() {
-    return new Gson().toJson(this);
+    return JsonWriterUtils.toJsonString(this::writeJson);
+  }
+
+  // Writes this Candidate object as a JSON object to "writer", with the same fields as
+  // toJsonString.
+  public void writeJson(JsonWriter writer) throws IOException {
+    writer.beginObject();
+    writer.name(NAME_ENTITY_KEYWORD).value(this.getName());
+    writer.name(PARTY_ENTITY_KEYWORD).value(this.getPartyAffiliation());
+    writer.name(CAMPAIGN_URL_ENTITY_KEYWORD).value(this.getCampaignSite());
+    writer.name(PLATFORM_ENTITY_KEYWORD).value(this.getPlatformDescription());
+    writer.name(CHANNELS_ENTITY_KEYWORD).beginObject();
+    for (Map.Entry<String, String> channel : this.getChannels().entrySet()) {
+      writer.name(channel.getKey()).value(channel.getValue());
+    }
+    writer.endObject();
+    writer.endObject();
   }
 
   // Creates a new Candidate object by using the properties of the provided Candidate entity
@@ -207,7 +288,17 @@ public abstract class Candidate {
   // Converts the Candidate into a Datastore Entity and puts the Entity into the given Datastore
   // instance.
   public long addToDatastore(DatastoreService datastore) {
-    Entity entity = new Entity(ENTITY_KIND);
+    Entity entity = setEntityProperties(new Entity(ENTITY_KIND));
+    datastore.put(entity);
+    return entity.getKey().getId();
+  }
+
+  // Converts the Candidate into a Datastore Entity with the given key, without storing it.
+  public Entity toEntity(Key key) {
+    return setEntityProperties(new Entity(key));
+  }
+
+  private Entity setEntityProperties(Entity entity) {
     entity.setProperty(NAME_ENTITY_KEYWORD, this.getName());
     entity.setProperty(PARTY_ENTITY_KEYWORD, this.getPartyAffiliation());
     entity.setProperty(CAMPAIGN_URL_ENTITY_KEYWORD, this.getCampaignSite());
@@ -218,8 +309,6 @@ public abstract class Candidate {
       channelsEntity.setProperty(channelType, this.getChannels().get(channelType));
     }
     entity.setProperty(CHANNELS_ENTITY_KEYWORD, channelsEntity);
-
-    datastore.put(entity);
-    return entity.getKey().getId();
+    return entity;
   }
 }
@@ -0,0 +1,258 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.data;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.Key;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.sps.servlets.LateDescriptionServlet;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Looks up the platform descriptions of a ballot's candidates concurrently, on a bounded pool of
+ * threads, and stores each candidate once its description arrives or the ballot's deadline passes.
+ * Candidates whose description is late are stored with an empty description and handed to a
+ * LateDescriptionQueue, whose tasks fill it in later with storeLateDescription.
+ */
+public final class CandidateEnricher {
+
+  /** Where the candidates stored before their descriptions arrived are sent to be filled in. */
+  public interface LateDescriptionQueue {
+    /**
+     * @param electionId the ID of the election whose ballot the candidates were stored for
+     * @param candidateNames the name of each candidate, keyed by its Candidate Entity's key
+     */
+    void add(String electionId, Map<Key, String> candidateNames);
+  }
+
+  /** A source of candidate platform descriptions, such as the WeVote API or a fake for tests. */
+  public interface DescriptionSource {
+    // Returns an empty Optional if the lookup failed, so that the failure is not cached.
+    Optional<WeVoteDescription> lookUp(String candidateName);
+  }
+
+  private static final Logger logger = Logger.getLogger(CandidateEnricher.class.getName());
+
+  // Each lookup makes two WeVote calls, so this matches the WeVote concurrency limit of the API
+  // client.
+  private static final int MAX_CONCURRENT_LOOKUPS = 10;
+  private static final Duration DEFAULT_BALLOT_DEADLINE = Duration.ofSeconds(8);
+  private static final CandidateEnricher INSTANCE =
+      new CandidateEnricher(
+          Candidate::lookUpWeVoteDescription,
+          PlatformDescriptionCache.getInstance(),
+          LateDescriptionServlet::queueTasks,
+          Executors.newFixedThreadPool(
+              MAX_CONCURRENT_LOOKUPS,
+              new ThreadFactoryBuilder().setNameFormat("wevote-lookup-%d").setDaemon(true).build()),
+          DEFAULT_BALLOT_DEADLINE);
+
+  private final DescriptionSource source;
+  private final PlatformDescriptionCache descriptionCache;
+  private final LateDescriptionQueue lateDescriptions;
+  private final ListeningExecutorService executor;
+  private final Duration ballotDeadline;
+
+  /**
+   * Creates an enricher that looks up descriptions from the given source.
+   *
+   * @param source where to look up each candidate's platform description
+   * @param descriptionCache the descriptions to use instead of the source where possible
+   * @param lateDescriptions where candidates stored without their description are sent
+   * @param executor runs the lookups; its number of threads bounds how many run at once
+   * @param ballotDeadline how long storing a ballot's candidates waits for their descriptions
+   */
+  public CandidateEnricher(
+      DescriptionSource source,
+      PlatformDescriptionCache descriptionCache,
+      LateDescriptionQueue lateDescriptions,
+      ExecutorService executor,
+      Duration ballotDeadline) {
+    this.source = source;
+    this.descriptionCache = descriptionCache;
+    this.lateDescriptions = lateDescriptions;
+    this.executor = MoreExecutors.listeningDecorator(executor);
+    this.ballotDeadline = ballotDeadline;
+  }
+
+  /** Returns the enricher shared by every request, backed by the WeVote API. */
+  public static CandidateEnricher getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * Starts looking up the descriptions of every candidate on a ballot at once. Descriptions that
+   * are already cached are used without calling the source. The ballot's deadline starts counting
+   * from this call.
+   *
+   * @param datastore the Datastore containing the cached descriptions
+   * @param electionId the ID of the election the ballot is stored for
+   * @param candidates the candidates of every contest on the ballot
+   * @return the ballot, used to store each candidate once its description is available
+   */
+  public Ballot startBallot(
+      DatastoreService datastore, String electionId, Iterable<Candidate> candidates) {
+    // Candidates running in several contests are only looked up once.
+    Set<String> candidateNames = new HashSet<>();
+    for (Candidate candidate : candidates) {
+      candidateNames.add(candidate.getName());
+    }
+
+    Map<String, WeVoteDescription> cachedDescriptions =
+        descriptionCache.getAll(datastore, candidateNames);
+    Map<String, ListenableFuture<String>> descriptions = new HashMap<>();
+
+    for (String candidateName : candidateNames) {
+      if (candidateName.isEmpty()) {
+        descriptions.put(candidateName, Futures.immediateFuture(""));
+      } else if (cachedDescriptions.containsKey(candidateName)) {
+        descriptions.put(
+            candidateName,
+            Futures.immediateFuture(cachedDescriptions.get(candidateName).getDescription()));
+      } else {
+        descriptions.put(candidateName, executor.submit(() -> lookUp(candidateName)));
+      }
+    }
+
+    return new Ballot(electionId, descriptions, System.nanoTime() + ballotDeadline.toNanos());
+  }
+
+  // Runs on the lookup threads, which cannot use Datastore, so new descriptions are only cached in
+  // memory until the description cache is saved.
+  private String lookUp(String candidateName) {
+    Optional<WeVoteDescription> description = source.lookUp(candidateName);
+    description.ifPresent(found -> descriptionCache.put(candidateName, found));
+    return description.map(WeVoteDescription::getDescription).orElse("");
+  }
+
+  /**
+   * Fills in the description of a candidate that was stored before its description arrived. The
+   * description is usually cached by then, and is looked up again otherwise.
+   *
+   * @param datastore the Datastore containing the Candidate Entity and the cached descriptions
+   * @param candidateKey the key of the Candidate Entity stored without its description
+   * @param candidateName the name of the candidate
+   * @return false if the description could not be looked up, so the caller should try again later
+   */
+  public boolean storeLateDescription(
+      DatastoreService datastore, Key candidateKey, String candidateName) {
+    Optional<WeVoteDescription> description =
+        Optional.ofNullable(
+            descriptionCache.getAll(datastore, ImmutableList.of(candidateName)).get(candidateName));
+    if (!description.isPresent()) {
+      description = source.lookUp(candidateName);
+      if (!description.isPresent()) {
+        return false;
+      }
+      descriptionCache.put(candidateName, description.get());
+    }
+    descriptionCache.save(datastore);
+
+    if (description.get().getDescription().isEmpty()) {
+      return true;
+    }
+
+    try {
+      Entity entity = datastore.get(candidateKey);
+      entity.setProperty(Candidate.PLATFORM_ENTITY_KEYWORD, description.get().getDescription());
+      datastore.put(entity);
+    } catch (EntityNotFoundException e) {
+      // The ballot has been garbage collected since, so there is nothing to fill in.
+    }
+    return true;
+  }
+
+  /** The descriptions being looked up for the candidates of one ballot. */
+  public final class Ballot {
+    private final String electionId;
+    private final Map<String, ListenableFuture<String>> descriptions;
+    private final long deadlineNanos;
+    // The names of the candidates whose descriptions missed the deadline, keyed by Entity key.
+    private final Map<Key, String> lateCandidates = new ConcurrentHashMap<>();
+
+    private Ballot(
+        String electionId, Map<String, ListenableFuture<String>> descriptions, long deadlineNanos) {
+      this.electionId = electionId;
+      this.descriptions = descriptions;
+      this.deadlineNanos = deadlineNanos;
+    }
+
+    /**
+     * Returns a candidate of this ballot with its platform description, waiting for the description
+     * until the ballot's deadline at the latest. If the description is late, the candidate is
+     * returned with an empty description, and the Candidate Entity with the given key is filled in
+     * after the call to finish.
+     *
+     * @param candidate a candidate passed to startBallot
+     * @param candidateKey the key the Candidate Entity is stored under
+     * @return the candidate with its platform description
+     */
+    public Candidate withPlatformDescription(Candidate candidate, Key candidateKey) {
+      ListenableFuture<String> description = descriptions.get(candidate.getName());
+      if (description == null) {
+        return candidate.withPlatformDescription("");
+      }
+
+      long remainingNanos = Math.max(0, deadlineNanos - System.nanoTime());
+      try {
+        return candidate.withPlatformDescription(
+            description.get(remainingNanos, TimeUnit.NANOSECONDS));
+      } catch (TimeoutException e) {
+        lateCandidates.put(candidateKey, candidate.getName());
+        return candidate.withPlatformDescription("");
+      } catch (ExecutionException e) {
+        logger.log(Level.WARNING, "Platform description lookup failed", e.getCause());
+        return candidate.withPlatformDescription("");
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return candidate.withPlatformDescription("");
+      }
+    }
+
+    /**
+     * Saves the descriptions looked up so far so other ballots can reuse them, and sends the
+     * candidates whose descriptions are late to the LateDescriptionQueue. Called once every
+     * candidate of the ballot is stored.
+     *
+     * @param datastore the Datastore to save the descriptions in
+     */
+    public void finish(DatastoreService datastore) {
+      descriptionCache.save(datastore);
+      if (!lateCandidates.isEmpty()) {
+        lateDescriptions.add(electionId, new HashMap<>(lateCandidates));
+      }
+    }
+  }
+}
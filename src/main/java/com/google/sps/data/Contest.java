@@ -16,22 +16,23 @@ package com.google.sps.data;
 
 import com.google.appengine.api.datastore.DatastoreService;
 import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
 import com.google.appengine.api.datastore.KeyFactory;
 import com.google.auto.value.AutoValue;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
-import com.google.gson.Gson;
-import com.google.gson.JsonArray;
-import com.google.gson.JsonNull;
-import com.google.gson.JsonObject;
-import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonWriter;
 import com.google.sps.servlets.ServletUtils;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.function.Function;
 import java.util.logging.Logger;
-import java.util.stream.Collectors;
-import java.util.stream.StreamSupport;
-import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
@@ -91,66 +92,127 @@ public abstract class Contest {
   // instance.
   public static Contest fromJSONObject(DatastoreService datastore, JSONObject contestData)
       throws JSONException {
-    Set<Long> candidateKeyIds = new HashSet<>();
-    String source = "";
-    String division = "";
-
-    if (contestData.has(CANDIDATES_JSON_KEYWORD)) {
-      for (Object candidateObject : contestData.getJSONArray(CANDIDATES_JSON_KEYWORD)) {
-        JSONObject candidate = (JSONObject) candidateObject;
-        long candidateEntityKeyId = Candidate.fromJSONObject(candidate).addToDatastore(datastore);
-        candidateKeyIds.add(candidateEntityKeyId);
-      }
-    }
+    return fromVoterInfoContest(
+        datastore, JsonReaderUtils.fromJSONObject(contestData, VoterInfoContest::fromJsonReader));
+  }
 
-    if (contestData.has(SOURCE_JSON_KEYWORD)) {
-      // "source" field is given as a list of Strings, so put them into a list as one String
-      JSONArray sourceList = contestData.getJSONArray(SOURCE_JSON_KEYWORD);
-      source =
-          StreamSupport.stream(sourceList.spliterator(), false)
-              .map(sourceObject -> ((JSONObject) sourceObject).getString(SOURCE_NAME_JSON_KEYWORD))
-              .collect(Collectors.joining(", "));
+  // Creates a new Contest object from a contest read from the output of a voterInfoQuery. Looks up
+  // the platform descriptions of its candidates concurrently and inserts them into the given
+  // Datastore instance in one batch call.
+  public static Contest fromVoterInfoContest(DatastoreService datastore, VoterInfoContest contest)
+      throws JSONException {
+    List<Entity> candidateEntities = new ArrayList<>();
+    Iterator<Key> candidateKeys =
+        ServletUtils.allocateKeys(datastore, Candidate.ENTITY_KIND, contest.getCandidates().size());
+    // The contest is not stored as part of an election, so no cached response shows it.
+    CandidateEnricher.Ballot ballot =
+        CandidateEnricher.getInstance().startBallot(datastore, "", contest.getCandidates());
+    Contest newContest =
+        fromVoterInfoContest(contest, ballot, candidate -> candidateKeys.next(), candidateEntities);
+    ServletUtils.putAllInDatastore(datastore, candidateEntities);
+    ballot.finish(datastore);
+    return newContest;
+  }
+
+  /**
+   * Creates a new Contest object from a contest read from the output of a voterInfoQuery without
+   * writing to Datastore. Instead, the Entity of each of its candidates is added to
+   * "candidateEntities" so that a whole ballot can be stored in a few batch calls.
+   *
+   * @param contest the contest read from the voterInfoQuery
+   * @param ballot the ballot looking up the descriptions of the contest's candidates
+   * @param candidateKeys gives the key of each candidate's Entity. A candidate listed twice with
+   *     the same key is only stored once.
+   * @param candidateEntities the list to add the new Candidate Entities to
+   * @return the new Contest object
+   */
+  public static Contest fromVoterInfoContest(
+      VoterInfoContest contest,
+      CandidateEnricher.Ballot ballot,
+      Function<Candidate, Key> candidateKeys,
+      List<Entity> candidateEntities)
+      throws JSONException {
+    if (!contest.getOffice().isPresent()) {
+      throw new JSONException("Malformed contest JSONObject: office does not exist.");
     }
 
-    if (contestData.has(DIVISION_JSON_KEYWORD)) {
-      division = contestData.getJSONObject(DIVISION_JSON_KEYWORD).getString("id");
+    Set<Long> candidateKeyIds = new HashSet<>();
+    for (Candidate candidate : contest.getCandidates()) {
+      Key candidateKey = candidateKeys.apply(candidate);
+      if (candidateKeyIds.add(candidateKey.getId())) {
+        candidateEntities.add(
+            ballot.withPlatformDescription(candidate, candidateKey).toEntity(candidateKey));
+      }
     }
 
     return Contest.builder()
-        .setName(contestData.getString(NAME_JSON_KEYWORD))
+        .setName(contest.getOffice().get())
         .setCandidates(candidateKeyIds)
         // TODO(gianelgado): get value for description
         .setDescription("")
-        .setSource(source)
-        .setDivision(division)
+        .setSource(contest.getSource())
+        .setDivision(contest.getDivision())
         .build();
   }
 
   // Convert this Contest object to a String in JSON format. Serializes its list of Candiate Entity
   // key names into JSON objects that correspond to each Candidate's attributes.
   public String toJsonString(DatastoreService datastore) {
-    Gson gson = new Gson();
-    JsonObject contestJsonObject = gson.fromJson(gson.toJson(this), JsonObject.class);
-    JsonArray candidateJsonArray = new JsonArray();
+    return toJsonString(ServletUtils.getAllFromDatastore(datastore, this.getCandidateKeys()));
+  }
+
+  // Convert this Contest object to a String in JSON format, looking up each of its Candidates in
+  // "candidateEntities" instead of querying Datastore. Candidates missing from the map are omitted.
+  public String toJsonString(Map<Key, Entity> candidateEntities) {
+    return JsonWriterUtils.toJsonString(writer -> writeJson(writer, candidateEntities));
+  }
+
+  // Writes this Contest object as a JSON object to "writer", listing its candidates by their
+  // Datastore key IDs.
+  public void writeJson(JsonWriter writer) throws IOException {
+    writer.beginObject();
+    writer.name(NAME_ENTITY_KEYWORD).value(this.getName());
+    JsonWriterUtils.writeLongArray(writer.name(CANDIDATES_ENTITY_KEYWORD), this.getCandidates());
+    writer.name(DESCRIPTION_ENTITY_KEYWORD).value(this.getDescription());
+    writer.name(SOURCE_ENTITY_KEYWORD).value(this.getSource());
+    writer.name(DIVISION_ENTITY_KEYWORD).value(this.getDivision());
+    writer.endObject();
+  }
+
+  /**
+   * Writes this Contest object as a JSON object to "writer" in a single pass, with the same fields
+   * as toJsonString.
+   *
+   * @param writer the JsonWriter to write the Contest to
+   * @param candidateEntities the Candidate Entities of this Contest, keyed by their Datastore keys;
+   *     candidates missing from the map are omitted
+   */
+  public void writeJson(JsonWriter writer, Map<Key, Entity> candidateEntities) throws IOException {
+    writer.beginObject();
+    writer.name(NAME_ENTITY_KEYWORD).value(this.getName());
 
     // Since a Contest object's "candidates" collection consists only of their Datastore key IDs,
-    // iterate through each one to get the actual Candidate field data in JSON format.
-    ImmutableSet.copyOf(this.getCandidates())
+    // look up each one to write the actual Candidate field data.
+    writer.name(CANDIDATES_ENTITY_KEYWORD).beginArray();
+    for (Key candidateKey : this.getCandidateKeys()) {
+      if (candidateEntities.containsKey(candidateKey)) {
+        Candidate.fromEntity(candidateEntities.get(candidateKey)).writeJson(writer);
+      }
+    }
+    writer.endArray();
+
+    writer.name(DESCRIPTION_ENTITY_KEYWORD).value(this.getDescription());
+    writer.name(SOURCE_ENTITY_KEYWORD).value(this.getSource());
+    writer.name(DIVISION_ENTITY_KEYWORD).value(this.getDivision());
+    writer.endObject();
+  }
+
+  // Returns the Datastore keys of the Candidate entities this Contest references.
+  public ImmutableList<Key> getCandidateKeys() {
+    return this.getCandidates()
         .stream()
         .map(id -> KeyFactory.createKey(Candidate.ENTITY_KIND, id.longValue()))
-        .map(key -> ServletUtils.getFromDatastore(datastore, key))
-        .map(
-            entity ->
-                entity.isPresent()
-                    ? JsonParser.parseString(Candidate.fromEntity(entity.get()).toJsonString())
-                    : JsonNull.INSTANCE)
-        // Have to use forEach to have void return. Can't use Collection to collect because
-        // JsonArray can't addAll() with String as parameter.
-        .filter(jsonElement -> !jsonElement.isJsonNull())
-        .forEach(candidateJsonArray::add);
-
-    contestJsonObject.add("candidates", candidateJsonArray);
-    return gson.toJson(contestJsonObject);
+        .collect(ImmutableList.toImmutableList());
   }
 
   // Creates a new Contest object by using the propperties of the provided Contest entity
@@ -173,13 +235,22 @@ public abstract class Contest {
   // Converts the Contest into a Datastore Entity and puts the Entity into the given Datastore
   // instance.
   public long addToDatastore(DatastoreService datastore) {
-    Entity entity = new Entity(ENTITY_KIND);
+    Entity entity = setEntityProperties(new Entity(ENTITY_KIND));
+    datastore.put(entity);
+    return entity.getKey().getId();
+  }
+
+  // Converts this Contest into a Datastore Entity with the given key, without storing it.
+  public Entity toEntity(Key key) {
+    return setEntityProperties(new Entity(key));
+  }
+
+  private Entity setEntityProperties(Entity entity) {
     entity.setProperty(NAME_ENTITY_KEYWORD, this.getName());
     entity.setProperty(CANDIDATES_ENTITY_KEYWORD, this.getCandidates());
     entity.setProperty(DESCRIPTION_ENTITY_KEYWORD, this.getDescription());
     entity.setProperty(SOURCE_ENTITY_KEYWORD, this.getSource());
     entity.setProperty(DIVISION_ENTITY_KEYWORD, this.getDivision());
-    datastore.put(entity);
-    return entity.getKey().getId();
+    return entity;
   }
 }
@@ -16,12 +16,24 @@ package com.google.sps.data;
 
 import com.google.appengine.api.datastore.DatastoreService;
 import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.Transaction;
 import com.google.auto.value.AutoValue;
 import com.google.common.collect.ImmutableSet;
+import com.google.gson.stream.JsonWriter;
+import com.google.sps.servlets.ServletUtils;
+import java.io.IOException;
+import java.time.Instant;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.ConcurrentModificationException;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
-import org.json.JSONArray;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.UnaryOperator;
+import java.util.stream.Collectors;
 import org.json.JSONException;
 import org.json.JSONObject;
 
@@ -48,6 +60,13 @@ public abstract class Election {
   public static final String DROP_OFF_LOCATION_TYPE = "dropOffLocation";
   public static final String DIVISIONS_ENTITY_KEYWORD = "divisions";
 
+  // Concurrent requests for one election update the same Entity, so a transaction may have to be
+  // retried a few times before it commits.
+  private static final int MAX_TRANSACTION_ATTEMPTS = 8;
+  // Requests that lost a transaction wait a random time of up to this, doubled on each attempt, so
+  // they do not collide again.
+  private static final long TRANSACTION_RETRY_DELAY_MILLIS = 10;
+
   public abstract String getId();
 
   public abstract String getName();
@@ -137,34 +156,99 @@ public abstract class Election {
   public Election fromVoterInfoQuery(
       DatastoreService datastore, JSONObject voterInfoQueryData, Set<String> divisions)
       throws JSONException {
+    return fromVoterInfoQuery(
+        datastore,
+        JsonReaderUtils.fromJSONObject(
+            voterInfoQueryData, VoterInfoContest::listFromVoterInfoQuery),
+        divisions);
+  }
+
+  /**
+   * Creates an Election object with contests and referendums fields from contests already read from
+   * the output of a voterInfoQuery. Copies the remaining fields from this Election object.
+   * Delegates creating Contest Entities in Datastore from this Election's list of contests.
+   *
+   * @param datastore the Datastore to store this election's list of contests
+   * @param contests the contests listed in the output of a voterInfoQuery to the Google Civic
+   *     Information API
+   * @param divisions the set of divisions which limit the contests to be added
+   * @return the new Election object
+   */
+  public Election fromVoterInfoQuery(
+      DatastoreService datastore, List<VoterInfoContest> contests, Set<String> divisions)
+      throws JSONException {
     Set<Long> contestKeyList = new HashSet<>(this.getContests());
     Set<Long> referendumKeyList = new HashSet<>(this.getReferendums());
     Set<String> divisionsList = new HashSet<>(this.getDivisions());
     divisionsList.addAll(divisions);
 
-    if (!voterInfoQueryData.has(CONTESTS_JSON_KEYWORD)) {
-      return this.withDivisions(divisionsList);
-    }
-
-    JSONArray contestListData = voterInfoQueryData.getJSONArray(CONTESTS_JSON_KEYWORD);
-    for (Object contestObject : contestListData) {
-      JSONObject contest = (JSONObject) contestObject;
-      String currentDivision = contest.getJSONObject(Contest.DIVISION_JSON_KEYWORD).getString("id");
-
+    List<VoterInfoContest> ballotContests =
+        contests
+            .stream()
+            .filter(contest -> divisions.contains(contest.getDivision()))
+            .collect(Collectors.toList());
+
+    // Look up the descriptions of every candidate on the ballot at once, rather than one contest
+    // at a time.
+    CandidateEnricher.Ballot ballot =
+        CandidateEnricher.getInstance()
+            .startBallot(
+                datastore,
+                this.getId(),
+                ballotContests
+                    .stream()
+                    .filter(contest -> !contest.isReferendum())
+                    .flatMap(contest -> contest.getCandidates().stream())
+                    .collect(Collectors.toList()));
+
+    // Every Entity is keyed by the fields that identify it, so Contests can reference their
+    // Candidates before either is stored, and storing a ballot again overwrites the Entities stored
+    // the first time instead of adding copies. The whole ballot is stored in a few batch calls.
+    List<Entity> entities = new ArrayList<>();
+    Set<Key> ballotKeys = new HashSet<>();
+
+    for (VoterInfoContest contest : ballotContests) {
       // Referendums are a separate contest type, so separate them out from the office positions
       // and put them in their own object field.
-      if (divisions.contains(currentDivision)) {
-        if (contest.getString(Contest.TYPE_JSON_KEYWORD).equals(Referendum.ENTITY_KIND)) {
-          long referendumEntityKeyId = Referendum.fromJSONObject(contest).addToDatastore(datastore);
-          referendumKeyList.add(referendumEntityKeyId);
-        } else {
-          long contestEntityKeyId =
-              Contest.fromJSONObject(datastore, contest).addToDatastore(datastore);
-          contestKeyList.add(contestEntityKeyId);
+      if (contest.isReferendum()) {
+        Referendum referendum = Referendum.fromVoterInfoContest(contest);
+        Key referendumKey =
+            NaturalKeys.forReferendum(
+                this.getId(), referendum.getDivision(), referendum.getTitle());
+        if (ballotKeys.add(referendumKey)) {
+          entities.add(referendum.toEntity(referendumKey));
+          referendumKeyList.add(referendumKey.getId());
+        }
+      } else {
+        Key contestKey =
+            NaturalKeys.forContest(
+                this.getId(),
+                contest.getDivision(),
+                contest.getType(),
+                contest.getOffice().orElse(""));
+        if (ballotKeys.add(contestKey)) {
+          entities.add(
+              Contest.fromVoterInfoContest(
+                      contest,
+                      ballot,
+                      candidate ->
+                          NaturalKeys.forCandidate(
+                              contestKey, candidate.getName(), candidate.getPartyAffiliation()),
+                      entities)
+                  .toEntity(contestKey));
+          contestKeyList.add(contestKey.getId());
         }
       }
     }
 
+    // Keep the garbage collector away from the ballot until this Election references it.
+    BallotGarbageCollector.markStored(entities, Instant.now());
+    ServletUtils.putAllInDatastore(datastore, entities);
+
+    // Save the descriptions this ballot looked up so other ballots can reuse them, and queue the
+    // ones that are late to be filled in now that their Candidates are stored.
+    ballot.finish(datastore);
+
     return this.withContests(contestKeyList)
         .withReferendums(referendumKeyList)
         .withDivisions(divisionsList);
@@ -180,6 +264,39 @@ public abstract class Election {
     return !getContests().isEmpty() && !getReferendums().isEmpty() && !getDivisions().isEmpty();
   }
 
+  /**
+   * Writes this Election object as a JSON object to "writer", listing its contests and referendums
+   * by their Datastore key IDs.
+   *
+   * @param writer the JsonWriter to write the Election to
+   */
+  public void writeJson(JsonWriter writer) throws IOException {
+    writer.beginObject();
+    writer.name(ID_ENTITY_KEYWORD).value(this.getId());
+    writer.name(NAME_ENTITY_KEYWORD).value(this.getName());
+    writer.name(DATE_ENTITY_KEYWORD).value(this.getDate());
+    writer.name(SCOPE_ENTITY_KEYWORD).value(this.getScope());
+    JsonWriterUtils.writeLongArray(writer.name(CONTESTS_ENTITY_KEYWORD), this.getContests());
+    JsonWriterUtils.writeLongArray(writer.name(REFERENDUMS_ENTITY_KEYWORD), this.getReferendums());
+    JsonWriterUtils.writeStringArray(writer.name(DIVISIONS_ENTITY_KEYWORD), this.getDivisions());
+    writer.endObject();
+  }
+
+  /**
+   * Writes only the fields of this Election object that lists of elections show, its ID, name, date
+   * and scope, as a JSON object to "writer".
+   *
+   * @param writer the JsonWriter to write the Election to
+   */
+  public void writeListingJson(JsonWriter writer) throws IOException {
+    writer.beginObject();
+    writer.name(ID_ENTITY_KEYWORD).value(this.getId());
+    writer.name(NAME_ENTITY_KEYWORD).value(this.getName());
+    writer.name(DATE_ENTITY_KEYWORD).value(this.getDate());
+    writer.name(SCOPE_ENTITY_KEYWORD).value(this.getScope());
+    writer.endObject();
+  }
+
   /**
    * Creates a new Election object based on the properties of an Election Entity.
    *
@@ -238,6 +355,127 @@ public abstract class Election {
      * allocateIds(), but this is also difficult because election IDs are not always
      * consecutive numbers and other entities we plan to store in Datastore will not
      * have IDs from the Civic Information API (ex. policies) */
+    setEntityProperties(entity);
+    datastore.put(entity);
+    return entity.getKey().getId();
+  }
+
+  /**
+   * Creates a new Entity with properties based on this object's members, without storing it, so
+   * several Elections can be stored in one batch.
+   *
+   * @return an Entity that can be stored in Datastore
+   */
+  public Entity toEntity() {
+    Entity entity = new Entity(ENTITY_KIND);
+    setEntityProperties(entity);
+    return entity;
+  }
+
+  /**
+   * Adds the contests, referendums and divisions of this Election object to the stored Election
+   * Entity with the given key, in a transaction. Unlike putInDatastore, this keeps the changes of
+   * requests that updated the same election since its Entity was read.
+   *
+   * @param datastore the DatastoreService containing the Election Entity
+   * @param electionKey the key of the Election Entity to update
+   * @return the Election as stored, including the changes of other requests
+   * @throws EntityNotFoundException if the Election Entity no longer exists
+   * @throws ConcurrentModificationException if the Entity kept changing on every attempt
+   */
+  public Election mergeIntoDatastore(DatastoreService datastore, Key electionKey)
+      throws EntityNotFoundException {
+    return updateInDatastore(
+        datastore,
+        electionKey,
+        stored -> {
+          Set<Long> contests = new HashSet<>(stored.getContests());
+          contests.addAll(this.getContests());
+          Set<Long> referendums = new HashSet<>(stored.getReferendums());
+          referendums.addAll(this.getReferendums());
+          Set<String> divisions = new HashSet<>(stored.getDivisions());
+          divisions.addAll(this.getDivisions());
+
+          return stored
+              .withContests(contests)
+              .withReferendums(referendums)
+              .withDivisions(divisions);
+        });
+  }
+
+  /**
+   * Sets the name, date and scope of the stored Election Entity with the given key to those of this
+   * Election object, in a transaction. The contests, referendums and divisions already stored for
+   * the election are kept.
+   *
+   * @param datastore the DatastoreService containing the Election Entity
+   * @param electionKey the key of the Election Entity to update
+   * @return the Election as stored
+   * @throws EntityNotFoundException if the Election Entity no longer exists
+   * @throws ConcurrentModificationException if the Entity kept changing on every attempt
+   */
+  public Election mergeListingIntoDatastore(DatastoreService datastore, Key electionKey)
+      throws EntityNotFoundException {
+    return updateInDatastore(
+        datastore,
+        electionKey,
+        stored ->
+            stored
+                .toBuilder()
+                .setName(this.getName())
+                .setDate(this.getDate())
+                .setScope(this.getScope())
+                .build());
+  }
+
+  /**
+   * Returns true if this Election object has the same name, date and scope as "other", the fields
+   * that come from an electionQuery.
+   */
+  public boolean hasSameListing(Election other) {
+    return this.getName().equals(other.getName())
+        && this.getDate().equals(other.getDate())
+        && this.getScope().equals(other.getScope());
+  }
+
+  // Replaces the stored Election Entity with "update" applied to it, retrying if other requests
+  // change the Entity in the meantime.
+  private static Election updateInDatastore(
+      DatastoreService datastore, Key electionKey, UnaryOperator<Election> update)
+      throws EntityNotFoundException {
+    for (int attempt = 1; ; attempt++) {
+      Transaction transaction = datastore.beginTransaction();
+      try {
+        Entity entity = datastore.get(transaction, electionKey);
+        Election updated = update.apply(fromEntity(entity));
+        updated.setEntityProperties(entity);
+        datastore.put(transaction, entity);
+        transaction.commit();
+        return updated;
+      } catch (ConcurrentModificationException e) {
+        if (attempt == MAX_TRANSACTION_ATTEMPTS) {
+          throw e;
+        }
+        waitBeforeRetry(attempt, e);
+      } finally {
+        if (transaction.isActive()) {
+          transaction.rollback();
+        }
+      }
+    }
+  }
+
+  private static void waitBeforeRetry(int attempt, ConcurrentModificationException cause) {
+    long maxDelayMillis = TRANSACTION_RETRY_DELAY_MILLIS << attempt;
+    try {
+      Thread.sleep(ThreadLocalRandom.current().nextLong(maxDelayMillis + 1));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw cause;
+    }
+  }
+
+  private void setEntityProperties(Entity entity) {
     entity.setProperty(ID_ENTITY_KEYWORD, this.getId());
     entity.setProperty(NAME_ENTITY_KEYWORD, this.getName());
     entity.setProperty(DATE_ENTITY_KEYWORD, this.getDate());
@@ -245,7 +483,5 @@ public abstract class Election {
     entity.setProperty(CONTESTS_ENTITY_KEYWORD, this.getContests());
     entity.setProperty(REFERENDUMS_ENTITY_KEYWORD, this.getReferendums());
     entity.setProperty(DIVISIONS_ENTITY_KEYWORD, this.getDivisions());
-    datastore.put(entity);
-    return entity.getKey().getId();
   }
 }
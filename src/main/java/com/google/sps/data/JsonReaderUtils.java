@@ -0,0 +1,90 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.data;
+
+import com.google.common.primitives.Doubles;
+import com.google.gson.JsonParseException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import java.io.IOException;
+import java.io.StringReader;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/** Helpers for reading Google Civic Information API output with a streaming JsonReader. */
+final class JsonReaderUtils {
+
+  /** Reads an object from the JSON value that a JsonReader is positioned at. */
+  interface ReaderFunction<T> {
+    T read(JsonReader reader) throws IOException;
+  }
+
+  // Private constructor to prevent instantiation.
+  private JsonReaderUtils() {
+    throw new AssertionError();
+  }
+
+  /**
+   * Reads an object from an already parsed JSONObject with the same function used for streaming API
+   * responses, so both share one parser.
+   *
+   * @param obj the JSON object to read
+   * @param readerFunction reads the object from a JsonReader positioned at "obj"
+   * @return the object read by "readerFunction"
+   */
+  static <T> T fromJSONObject(JSONObject obj, ReaderFunction<T> readerFunction)
+      throws JSONException {
+    try (JsonReader reader = new JsonReader(new StringReader(obj.toString()))) {
+      return readerFunction.read(reader);
+    } catch (IOException | IllegalStateException | JsonParseException e) {
+      throw new JSONException(e);
+    }
+  }
+
+  /** Reads the next string value, or returns "defaultValue" if the next value is null. */
+  static String nextStringOrDefault(JsonReader reader, String defaultValue) throws IOException {
+    if (reader.peek() == JsonToken.NULL) {
+      reader.nextNull();
+      return defaultValue;
+    }
+
+    return reader.nextString();
+  }
+
+  /**
+   * Reads the next number, which the API sometimes sends as a string, or returns null if it is
+   * missing or not a number.
+   */
+  static Double nextDoubleOrNull(JsonReader reader) throws IOException {
+    switch (reader.peek()) {
+      case NUMBER:
+        return reader.nextDouble();
+      case STRING:
+        return Doubles.tryParse(reader.nextString());
+      default:
+        reader.skipValue();
+        return null;
+    }
+  }
+
+  /** Reads the next boolean value, which the API sometimes sends as a string. */
+  static boolean nextLenientBoolean(JsonReader reader) throws IOException {
+    if (reader.peek() == JsonToken.STRING) {
+      return Boolean.parseBoolean(reader.nextString());
+    }
+
+    return reader.nextBoolean();
+  }
+}
@@ -0,0 +1,95 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.data;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.stream.JsonWriter;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+
+/** Helpers for writing the JSON responses of the servlets with a streaming JsonWriter. */
+public final class JsonWriterUtils {
+
+  // Gson instances are thread-safe and cache the type adapters they build, so one is shared by
+  // every request instead of rebuilding them each time.
+  private static final Gson GSON =
+      new GsonBuilder().registerTypeAdapterFactory(new ModelTypeAdapterFactory()).create();
+
+  /** Writes an object to a JsonWriter. */
+  interface WriterFunction {
+    void write(JsonWriter writer) throws IOException;
+  }
+
+  // Private constructor to prevent instantiation.
+  private JsonWriterUtils() {
+    throw new AssertionError();
+  }
+
+  /**
+   * Returns the Gson instance shared by every request. Election, Contest, Candidate, Referendum and
+   * PollingStation objects are written with their own writeJson methods rather than by reflection,
+   * and cannot be read: fromJson throws a JsonParseException for them.
+   */
+  public static Gson getGson() {
+    return GSON;
+  }
+
+  /**
+   * Creates a JsonWriter that produces the same output as the shared Gson instance: HTML characters
+   * are escaped and null fields are left out.
+   *
+   * @param out the Writer the JSON is written to
+   * @return the new JsonWriter
+   */
+  public static JsonWriter newJsonWriter(Writer out) {
+    JsonWriter writer = new JsonWriter(out);
+    writer.setHtmlSafe(true);
+    writer.setSerializeNulls(false);
+    return writer;
+  }
+
+  /** Writes an object with "writerFunction" and returns the JSON as a String. */
+  static String toJsonString(WriterFunction writerFunction) {
+    StringWriter out = new StringWriter();
+    try (JsonWriter writer = newJsonWriter(out)) {
+      writerFunction.write(writer);
+    } catch (IOException e) {
+      // A StringWriter never throws, so this cannot happen.
+      throw new UncheckedIOException(e);
+    }
+    return out.toString();
+  }
+
+  /** Writes the given numbers as a JSON array. */
+  static void writeLongArray(JsonWriter writer, Iterable<Long> values) throws IOException {
+    writer.beginArray();
+    for (long value : values) {
+      writer.value(value);
+    }
+    writer.endArray();
+  }
+
+  /** Writes the given strings as a JSON array. */
+  static void writeStringArray(JsonWriter writer, Iterable<String> values) throws IOException {
+    writer.beginArray();
+    for (String value : values) {
+      writer.value(value);
+    }
+    writer.endArray();
+  }
+}
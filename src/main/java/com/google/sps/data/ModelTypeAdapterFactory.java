@@ -0,0 +1,86 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.data;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.TypeAdapter;
+import com.google.gson.TypeAdapterFactory;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Provides Gson TypeAdapters for the AutoValue data classes that write each object with its
+ * writeJson method, so Gson never reflects over the generated AutoValue_* classes.
+ *
+ * <p>The data classes are only ever sent to the frontend, so the adapters are write-only: reading
+ * one of them with Gson.fromJson throws a JsonParseException naming the class, like any other JSON
+ * that Gson cannot turn into the requested type. Data sent back by the frontend is read by the
+ * servlets directly instead.
+ */
+final class ModelTypeAdapterFactory implements TypeAdapterFactory {
+
+  private static final ImmutableMap<Class<?>, TypeAdapter<?>> ADAPTERS =
+      ImmutableMap.<Class<?>, TypeAdapter<?>>builder()
+          .put(Election.class, writeOnlyAdapter(Election.class, Election::writeJson))
+          .put(Contest.class, writeOnlyAdapter(Contest.class, Contest::writeJson))
+          .put(Candidate.class, writeOnlyAdapter(Candidate.class, Candidate::writeJson))
+          .put(Referendum.class, writeOnlyAdapter(Referendum.class, Referendum::writeJson))
+          .put(
+              PollingStation.class,
+              writeOnlyAdapter(PollingStation.class, PollingStation::writeJson))
+          .build();
+
+  /** Writes one object to a JsonWriter. */
+  private interface ObjectWriter<T> {
+    void write(T value, JsonWriter writer) throws IOException;
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public <T> TypeAdapter<T> create(Gson gson, TypeToken<T> type) {
+    // Gson asks for the generated AutoValue_* subclass of the data class being written.
+    for (Map.Entry<Class<?>, TypeAdapter<?>> adapter : ADAPTERS.entrySet()) {
+      if (adapter.getKey().isAssignableFrom(type.getRawType())) {
+        return (TypeAdapter<T>) adapter.getValue();
+      }
+    }
+    return null;
+  }
+
+  private static <T> TypeAdapter<T> writeOnlyAdapter(
+      Class<T> dataClass, ObjectWriter<T> objectWriter) {
+    return new TypeAdapter<T>() {
+      @Override
+      public void write(JsonWriter writer, T value) throws IOException {
+        if (value == null) {
+          writer.nullValue();
+          return;
+        }
+        objectWriter.write(value, writer);
+      }
+
+      @Override
+      public T read(JsonReader reader) {
+        throw new JsonParseException(
+            dataClass.getSimpleName() + " objects are only written as JSON, never read.");
+      }
+    };
+  }
+}
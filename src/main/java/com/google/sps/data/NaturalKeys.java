@@ -0,0 +1,73 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.data;
+
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Derives the Datastore keys of ballot Entities from the fields that identify them, so that storing
+ * the same ballot again overwrites its Entities instead of adding new copies of them.
+ *
+ * <p>The keys have numeric IDs like the allocated keys they replace, so Elections and Contests keep
+ * referencing them by ID. An ID is the first 63 bits of a SHA-256 hash of the identifying fields,
+ * which makes it vanishingly unlikely to equal another hashed ID or an ID Datastore allocated.
+ */
+final class NaturalKeys {
+
+  // Private constructor to prevent instantiation.
+  private NaturalKeys() {
+    throw new AssertionError();
+  }
+
+  /**
+   * Returns the key of the Contest Entity for an office in a division of an election. The contest
+   * type is part of the key because a division can hold several contests for one office, such as
+   * the primaries of different parties.
+   */
+  static Key forContest(String electionId, String division, String type, String office) {
+    return KeyFactory.createKey(Contest.ENTITY_KIND, hashToId(electionId, division, type, office));
+  }
+
+  /** Returns the key of the Referendum Entity for a measure in a division of an election. */
+  static Key forReferendum(String electionId, String division, String title) {
+    return KeyFactory.createKey(Referendum.ENTITY_KIND, hashToId(electionId, division, title));
+  }
+
+  /**
+   * Returns the key of the Candidate Entity for a candidate of a Contest. Candidates are keyed by
+   * their contest, so a person running for two offices has an Entity for each.
+   */
+  static Key forCandidate(Key contestKey, String name, String partyAffiliation) {
+    return KeyFactory.createKey(
+        Candidate.ENTITY_KIND, hashToId(Long.toString(contestKey.getId()), name, partyAffiliation));
+  }
+
+  // Each field is prefixed with its length, so different splits of the same characters do not
+  // hash alike.
+  private static long hashToId(String... fields) {
+    Hasher hasher = Hashing.sha256().newHasher();
+    for (String field : fields) {
+      hasher.putInt(field.length()).putString(field, StandardCharsets.UTF_8);
+    }
+
+    long id = hasher.hash().asLong() & Long.MAX_VALUE;
+    // Datastore IDs must be positive.
+    return id == 0 ? 1 : id;
+  }
+}
@@ -0,0 +1,209 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.data;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Text;
+import com.google.common.base.CharMatcher;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.sps.servlets.ServletUtils;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A two-level cache of the WeVote descriptions of candidates, keyed by normalized candidate name.
+ * Descriptions are kept in an in-memory LRU cache and in PlatformDescription Entities in Datastore,
+ * so they are shared between instances and survive restarts. Searches that found no candidate are
+ * cached too, for a shorter time.
+ */
+public final class PlatformDescriptionCache {
+  public static final String ENTITY_KIND = "PlatformDescription";
+  public static final String WE_VOTE_ID_ENTITY_KEYWORD = "weVoteId";
+  public static final String DESCRIPTION_ENTITY_KEYWORD = "description";
+  public static final String FETCHED_ENTITY_KEYWORD = "fetched";
+
+  private static final int DEFAULT_MAXIMUM_SIZE = 2000;
+  private static final Duration DEFAULT_TIME_TO_LIVE = Duration.ofDays(7);
+  private static final Duration DEFAULT_NOT_FOUND_TIME_TO_LIVE = Duration.ofDays(1);
+  private static final PlatformDescriptionCache INSTANCE =
+      new PlatformDescriptionCache(
+          DEFAULT_MAXIMUM_SIZE,
+          DEFAULT_TIME_TO_LIVE,
+          DEFAULT_NOT_FOUND_TIME_TO_LIVE,
+          Clock.systemUTC());
+
+  private final Cache<String, CachedDescription> memory;
+  private final Duration timeToLive;
+  private final Duration notFoundTimeToLive;
+  private final Clock clock;
+  // Descriptions cached since the last save, keyed by normalized name. They are kept here rather
+  // than re-read from memory, which may have evicted them by the time they are saved.
+  private final Map<String, CachedDescription> unsaved = new ConcurrentHashMap<>();
+
+  /**
+   * Creates an empty cache.
+   *
+   * @param maximumSize how many descriptions to keep in memory
+   * @param timeToLive how long a description is used before WeVote is asked again
+   * @param notFoundTimeToLive how long a search that found no candidate is remembered
+   * @param clock the time source used to decide when descriptions are too old
+   */
+  public PlatformDescriptionCache(
+      int maximumSize, Duration timeToLive, Duration notFoundTimeToLive, Clock clock) {
+    this.memory = CacheBuilder.newBuilder().maximumSize(maximumSize).build();
+    this.timeToLive = timeToLive;
+    this.notFoundTimeToLive = notFoundTimeToLive;
+    this.clock = clock;
+  }
+
+  /** Returns the cache shared by every request. */
+  public static PlatformDescriptionCache getInstance() {
+    return INSTANCE;
+  }
+
+  /** Returns the name a candidate's description is cached under, ignoring case and spacing. */
+  public static String normalizeName(String candidateName) {
+    return CharMatcher.whitespace()
+        .trimAndCollapseFrom(candidateName, ' ')
+        .toLowerCase(Locale.ROOT);
+  }
+
+  /**
+   * Finds the cached descriptions of the given candidates. Names missing from memory are looked up
+   * in Datastore in one batch call.
+   *
+   * @param datastore the Datastore containing the PlatformDescription Entities
+   * @param candidateNames the names of the candidates to look up
+   * @return the descriptions that are cached and not too old, keyed by the names as given
+   */
+  public Map<String, WeVoteDescription> getAll(
+      DatastoreService datastore, Iterable<String> candidateNames) {
+    Map<String, WeVoteDescription> descriptions = new HashMap<>();
+    Map<Key, String> keysToLoad = new HashMap<>();
+
+    for (String candidateName : candidateNames) {
+      String normalizedName = normalizeName(candidateName);
+      if (normalizedName.isEmpty()) {
+        continue;
+      }
+
+      CachedDescription cached = memory.getIfPresent(normalizedName);
+      if (cached != null && isFresh(cached)) {
+        descriptions.put(candidateName, cached.description);
+      } else {
+        keysToLoad.put(KeyFactory.createKey(ENTITY_KIND, normalizedName), candidateName);
+      }
+    }
+
+    if (keysToLoad.isEmpty()) {
+      return descriptions;
+    }
+
+    for (Entity entity :
+        ServletUtils.getAllFromDatastore(datastore, keysToLoad.keySet()).values()) {
+      CachedDescription cached = fromEntity(entity);
+      if (isFresh(cached)) {
+        memory.put(entity.getKey().getName(), cached);
+        descriptions.put(keysToLoad.get(entity.getKey()), cached.description);
+      }
+    }
+
+    return descriptions;
+  }
+
+  /**
+   * Caches the description of a candidate in memory. It is written to Datastore by the next call to
+   * save, so upstream calls can cache descriptions as they arrive.
+   *
+   * @param candidateName the name the description was looked up with
+   * @param description the result of looking up the candidate with WeVote
+   */
+  public void put(String candidateName, WeVoteDescription description) {
+    String normalizedName = normalizeName(candidateName);
+    if (normalizedName.isEmpty()) {
+      return;
+    }
+
+    CachedDescription cached = new CachedDescription(description, clock.instant());
+    memory.put(normalizedName, cached);
+    unsaved.put(normalizedName, cached);
+  }
+
+  /**
+   * Writes the descriptions cached since the last call to Datastore in as few batch calls as
+   * possible.
+   *
+   * @param datastore the Datastore to store the PlatformDescription Entities in
+   */
+  public void save(DatastoreService datastore) {
+    List<Entity> entities = new ArrayList<>();
+    for (String normalizedName : unsaved.keySet()) {
+      // Concurrent callers only save each description once.
+      CachedDescription cached = unsaved.remove(normalizedName);
+      if (cached != null) {
+        entities.add(toEntity(normalizedName, cached));
+      }
+    }
+
+    ServletUtils.putAllInDatastore(datastore, entities);
+  }
+
+  private boolean isFresh(CachedDescription cached) {
+    Duration maxAge = cached.description.isFound() ? timeToLive : notFoundTimeToLive;
+    return cached.fetched.plus(maxAge).isAfter(clock.instant());
+  }
+
+  private static Entity toEntity(String normalizedName, CachedDescription cached) {
+    Entity entity = new Entity(ENTITY_KIND, normalizedName);
+    entity.setProperty(WE_VOTE_ID_ENTITY_KEYWORD, cached.description.getWeVoteId());
+    // Ballotpedia summaries can be longer than a String property allows.
+    entity.setUnindexedProperty(
+        DESCRIPTION_ENTITY_KEYWORD, new Text(cached.description.getDescription()));
+    entity.setProperty(FETCHED_ENTITY_KEYWORD, Date.from(cached.fetched));
+    return entity;
+  }
+
+  private static CachedDescription fromEntity(Entity entity) {
+    return new CachedDescription(
+        WeVoteDescription.builder()
+            .setWeVoteId((String) entity.getProperty(WE_VOTE_ID_ENTITY_KEYWORD))
+            .setDescription(((Text) entity.getProperty(DESCRIPTION_ENTITY_KEYWORD)).getValue())
+            .build(),
+        ((Date) entity.getProperty(FETCHED_ENTITY_KEYWORD)).toInstant());
+  }
+
+  // A description and when it was looked up.
+  private static final class CachedDescription {
+    private final WeVoteDescription description;
+    private final Instant fetched;
+
+    private CachedDescription(WeVoteDescription description, Instant fetched) {
+      this.description = description;
+      this.fetched = fetched;
+    }
+  }
+}
@@ -15,10 +15,18 @@
 package com.google.sps.data;
 
 import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
 import com.google.auto.value.AutoValue;
 import com.google.common.collect.ImmutableList;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
 import org.json.JSONException;
 import org.json.JSONObject;
 
@@ -33,6 +41,8 @@ public abstract class PollingStation {
   public static final String LOCATION_TYPE_JSON_KEYWORD = "locationType";
   public static final String POLLING_HOURS_JSON_KEYWORD = "pollingHours";
   public static final String SOURCES_JSON_KEYWORD = "sources";
+  public static final String LATITUDE_JSON_KEYWORD = "latitude";
+  public static final String LONGITUDE_JSON_KEYWORD = "longitude";
 
   public abstract String getName();
 
@@ -48,6 +58,12 @@ public abstract class PollingStation {
 
   public abstract ImmutableList<String> getSources();
 
+  /** The latitude of the station in degrees, if the API geocoded its address. */
+  public abstract Optional<Double> getLatitude();
+
+  /** The longitude of the station in degrees, if the API geocoded its address. */
+  public abstract Optional<Double> getLongitude();
+
   public static Builder builder() {
     return new AutoValue_PollingStation.Builder();
   }
@@ -68,6 +84,10 @@ public abstract class PollingStation {
 
     public abstract Builder setSources(List<String> sources);
 
+    public abstract Builder setLatitude(double latitude);
+
+    public abstract Builder setLongitude(double longitude);
+
     public abstract PollingStation build();
   }
 
@@ -77,110 +97,170 @@ public abstract class PollingStation {
    *
    * @param obj the JSON oject we are reading the PollingStation object from, retrieved from a call
    *     to the Google Civic Information API
-   * @param electionId the election ID of an election the polling station can be used for
    * @param locationType the type of station this is for the election signified by electionId.
    */
   public static PollingStation fromJSONObject(JSONObject obj, String locationType)
       throws JSONException {
+    return JsonReaderUtils.fromJSONObject(obj, reader -> fromJsonReader(reader, locationType));
+  }
 
-    String line1;
-    String line2;
-    String line3;
-    String streetName = "";
-    String zipCode;
+  /**
+   * Creates a new PollingStation object from the polling location object "reader" is positioned at,
+   * so a list of stations can be read directly from an API response stream.
+   *
+   * @param reader a JsonReader positioned at the start of a polling location object from the Google
+   *     Civic Information API
+   * @param locationType the type of station this is, such as "earlyVoteSites"
+   * @throws JSONException if the station's address has no city or state
+   */
+  public static PollingStation fromJsonReader(JsonReader reader, String locationType)
+      throws IOException {
+    Map<String, String> address = new HashMap<>();
     List<String> sources = new ArrayList<>();
 
-    String name;
-    String pollingHours;
-    String startDate;
-    String endDate;
-
-    try {
-      line1 = obj.getJSONObject(ADDRESS_JSON_KEYWORD).getString("line1");
-      streetName += line1;
-    } catch (JSONException e) {
-      line1 = "";
-    }
-
-    try {
-      line2 = obj.getJSONObject(ADDRESS_JSON_KEYWORD).getString("line2");
-      if (!streetName.isEmpty()) {
-        streetName += " ";
+    String name = "Polling Station";
+    String pollingHours = "daily";
+    String startDate = "on an unknown start date";
+    String endDate = "an unknown end date";
+    Double latitude = null;
+    Double longitude = null;
+
+    reader.beginObject();
+    while (reader.hasNext()) {
+      switch (reader.nextName()) {
+        case ADDRESS_JSON_KEYWORD:
+          readAddress(reader, address);
+          break;
+        case NAME_JSON_KEYWORD:
+          name = JsonReaderUtils.nextStringOrDefault(reader, name);
+          break;
+        case POLLING_HOURS_JSON_KEYWORD:
+          pollingHours = JsonReaderUtils.nextStringOrDefault(reader, pollingHours);
+          break;
+        case START_DATE_JSON_KEYWORD:
+          startDate = JsonReaderUtils.nextStringOrDefault(reader, startDate);
+          break;
+        case END_DATE_JSON_KEYWORD:
+          endDate = JsonReaderUtils.nextStringOrDefault(reader, endDate);
+          break;
+        case SOURCES_JSON_KEYWORD:
+          readOfficialSources(reader, sources);
+          break;
+        case LATITUDE_JSON_KEYWORD:
+          latitude = JsonReaderUtils.nextDoubleOrNull(reader);
+          break;
+        case LONGITUDE_JSON_KEYWORD:
+          longitude = JsonReaderUtils.nextDoubleOrNull(reader);
+          break;
+        default:
+          reader.skipValue();
       }
-      streetName += line2;
-    } catch (JSONException e) {
-      line2 = "";
     }
+    reader.endObject();
 
-    try {
-      line3 = obj.getJSONObject(ADDRESS_JSON_KEYWORD).getString("line3");
-      if (!streetName.isEmpty()) {
-        streetName += " ";
-      }
-      streetName += line3;
-    } catch (JSONException e) {
-      line3 = "";
-    }
-
-    try {
-      zipCode = obj.getJSONObject(ADDRESS_JSON_KEYWORD).getString("zip");
-    } catch (JSONException e) {
-      zipCode = "";
+    if (!address.containsKey("city") || !address.containsKey("state")) {
+      throw new JSONException("Malformed polling station: address is missing a city or state.");
     }
 
-    try {
-      name = obj.getString(NAME_JSON_KEYWORD);
-    } catch (JSONException e) {
-      name = "Polling Station";
-    }
-
-    try {
-      pollingHours = obj.getString(POLLING_HOURS_JSON_KEYWORD);
-    } catch (JSONException e) {
-      pollingHours = "daily";
+    String streetName = "";
+    for (String line : ImmutableList.of("line1", "line2", "line3")) {
+      if (address.containsKey(line)) {
+        if (!streetName.isEmpty()) {
+          streetName += " ";
+        }
+        streetName += address.get(line);
+      }
     }
 
-    try {
-      startDate = obj.getString(START_DATE_JSON_KEYWORD);
-    } catch (JSONException e) {
-      startDate = "on an unknown start date";
+    String fullAddress =
+        streetName
+            + ", "
+            + address.get("city")
+            + ", "
+            + address.get("state")
+            + " "
+            + address.getOrDefault("zip", "");
+
+    PollingStation.Builder builder =
+        PollingStation.builder()
+            .setName(name)
+            .setAddress(fullAddress)
+            .setPollingHours(pollingHours)
+            .setStartDate(startDate)
+            .setEndDate(endDate)
+            .setLocationType(locationType)
+            .setSources(ImmutableList.copyOf(sources));
+    // A station is only placed on the map if both of its coordinates are known.
+    if (latitude != null && longitude != null) {
+      builder.setLatitude(latitude).setLongitude(longitude);
     }
+    return builder.build();
+  }
 
-    try {
-      endDate = obj.getString(END_DATE_JSON_KEYWORD);
-    } catch (JSONException e) {
-      endDate = "an unknown end date";
+  // Reads every string field of an address object, such as "line1", "city" and "zip".
+  private static void readAddress(JsonReader reader, Map<String, String> address)
+      throws IOException {
+    reader.beginObject();
+    while (reader.hasNext()) {
+      String field = reader.nextName();
+      if (reader.peek() == JsonToken.STRING) {
+        address.put(field, reader.nextString());
+      } else {
+        reader.skipValue();
+      }
     }
+    reader.endObject();
+  }
 
-    if (obj.has(SOURCES_JSON_KEYWORD)) {
-      for (Object sourceObject : obj.getJSONArray(SOURCES_JSON_KEYWORD)) {
-        JSONObject source = (JSONObject) sourceObject;
-        if (source.getBoolean("official")) {
-          sources.add(source.getString("name"));
+  // Only the names of official sources are shown to voters.
+  private static void readOfficialSources(JsonReader reader, List<String> sources)
+      throws IOException {
+    reader.beginArray();
+    while (reader.hasNext()) {
+      String sourceName = null;
+      boolean official = false;
+
+      reader.beginObject();
+      while (reader.hasNext()) {
+        switch (reader.nextName()) {
+          case "name":
+            sourceName = JsonReaderUtils.nextStringOrDefault(reader, null);
+            break;
+          case "official":
+            official = JsonReaderUtils.nextLenientBoolean(reader);
+            break;
+          default:
+            reader.skipValue();
         }
       }
+      reader.endObject();
+
+      if (official && sourceName != null) {
+        sources.add(sourceName);
+      }
     }
+    reader.endArray();
+  }
 
-    String address =
-        streetName
-            + ", "
-            + obj.getJSONObject(ADDRESS_JSON_KEYWORD).getString("city")
-            + ", "
-            + obj.getJSONObject(ADDRESS_JSON_KEYWORD).getString("state")
-            + " "
-            + zipCode;
-
-    ImmutableList<String> sourcesList = ImmutableList.copyOf(sources);
-
-    return PollingStation.builder()
-        .setName(name)
-        .setAddress(address)
-        .setPollingHours(pollingHours)
-        .setStartDate(startDate)
-        .setEndDate(endDate)
-        .setLocationType(locationType)
-        .setSources(sourcesList)
-        .build();
+  /**
+   * Writes this PollingStation object as a JSON object to "writer".
+   *
+   * @param writer the JsonWriter to write the PollingStation to
+   */
+  public void writeJson(JsonWriter writer) throws IOException {
+    writer.beginObject();
+    writer.name(NAME_JSON_KEYWORD).value(this.getName());
+    writer.name(ADDRESS_JSON_KEYWORD).value(this.getAddress());
+    writer.name(POLLING_HOURS_JSON_KEYWORD).value(this.getPollingHours());
+    writer.name(START_DATE_JSON_KEYWORD).value(this.getStartDate());
+    writer.name(END_DATE_JSON_KEYWORD).value(this.getEndDate());
+    writer.name(LOCATION_TYPE_JSON_KEYWORD).value(this.getLocationType());
+    JsonWriterUtils.writeStringArray(writer.name(SOURCES_JSON_KEYWORD), this.getSources());
+    if (this.getLatitude().isPresent() && this.getLongitude().isPresent()) {
+      writer.name(LATITUDE_JSON_KEYWORD).value(this.getLatitude().get());
+      writer.name(LONGITUDE_JSON_KEYWORD).value(this.getLongitude().get());
+    }
+    writer.endObject();
   }
 
   /**
@@ -194,15 +274,21 @@ public abstract class PollingStation {
             ? ImmutableList.of()
             : ImmutableList.copyOf((ArrayList<String>) entity.getProperty(SOURCES_JSON_KEYWORD));
 
-    return PollingStation.builder()
-        .setName((String) entity.getProperty(NAME_JSON_KEYWORD))
-        .setAddress((String) entity.getProperty(ADDRESS_JSON_KEYWORD))
-        .setPollingHours((String) entity.getProperty(POLLING_HOURS_JSON_KEYWORD))
-        .setStartDate((String) entity.getProperty(START_DATE_JSON_KEYWORD))
-        .setEndDate((String) entity.getProperty(END_DATE_JSON_KEYWORD))
-        .setLocationType((String) entity.getProperty(LOCATION_TYPE_JSON_KEYWORD))
-        .setSources(sources)
-        .build();
+    PollingStation.Builder builder =
+        PollingStation.builder()
+            .setName((String) entity.getProperty(NAME_JSON_KEYWORD))
+            .setAddress((String) entity.getProperty(ADDRESS_JSON_KEYWORD))
+            .setPollingHours((String) entity.getProperty(POLLING_HOURS_JSON_KEYWORD))
+            .setStartDate((String) entity.getProperty(START_DATE_JSON_KEYWORD))
+            .setEndDate((String) entity.getProperty(END_DATE_JSON_KEYWORD))
+            .setLocationType((String) entity.getProperty(LOCATION_TYPE_JSON_KEYWORD))
+            .setSources(sources);
+    if (entity.hasProperty(LATITUDE_JSON_KEYWORD) && entity.hasProperty(LONGITUDE_JSON_KEYWORD)) {
+      builder
+          .setLatitude((Double) entity.getProperty(LATITUDE_JSON_KEYWORD))
+          .setLongitude((Double) entity.getProperty(LONGITUDE_JSON_KEYWORD));
+    }
+    return builder.build();
   }
 
   /**
@@ -211,7 +297,20 @@ public abstract class PollingStation {
    * @return an Entity that can be stored in Datastore
    */
   public Entity toEntity() {
-    Entity entity = new Entity(ENTITY_KIND);
+    return setEntityProperties(new Entity(ENTITY_KIND));
+  }
+
+  /**
+   * Creates a new Entity with the given key and sets the proper properties.
+   *
+   * @param key the key of the new Entity, for example one with the list of stations as parent
+   * @return an Entity that can be stored in Datastore
+   */
+  public Entity toEntity(Key key) {
+    return setEntityProperties(new Entity(key));
+  }
+
+  private Entity setEntityProperties(Entity entity) {
     entity.setProperty(NAME_JSON_KEYWORD, this.getName());
     entity.setProperty(ADDRESS_JSON_KEYWORD, this.getAddress());
     entity.setProperty(POLLING_HOURS_JSON_KEYWORD, this.getPollingHours());
@@ -219,6 +318,10 @@ public abstract class PollingStation {
     entity.setProperty(END_DATE_JSON_KEYWORD, this.getEndDate());
     entity.setProperty(LOCATION_TYPE_JSON_KEYWORD, this.getLocationType());
     entity.setProperty(SOURCES_JSON_KEYWORD, new ArrayList<String>(this.getSources()));
+    if (this.getLatitude().isPresent() && this.getLongitude().isPresent()) {
+      entity.setUnindexedProperty(LATITUDE_JSON_KEYWORD, this.getLatitude().get());
+      entity.setUnindexedProperty(LONGITUDE_JSON_KEYWORD, this.getLongitude().get());
+    }
     return entity;
   }
 }
@@ -0,0 +1,224 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.data;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableListMultimap;
+import com.google.common.collect.Ordering;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * An in-memory index of the polling stations of an election by location, for finding the stations
+ * nearest to a voter.
+ *
+ * <p>Stations are bucketed into a grid of cells a few kilometers across. A search visits the cells
+ * in rings around the voter's cell, and stops once no station in the next ring could be nearer than
+ * the ones already found, so it only looks at the stations around the voter however many the
+ * election has. Distances are measured on an equirectangular projection around the voter, which is
+ * accurate at the distances between a voter and the stations they could get to.
+ */
+public final class PollingStationIndex {
+  private static final double CELL_SIZE_DEGREES = 0.05;
+
+  private final ImmutableListMultimap<Long, LocatedStation> cells;
+  private final int size;
+  private final int minRow;
+  private final int maxRow;
+  private final int minColumn;
+  private final int maxColumn;
+
+  private PollingStationIndex(ImmutableListMultimap<Long, LocatedStation> cells) {
+    this.cells = cells;
+    this.size = cells.size();
+
+    int minRow = Integer.MAX_VALUE;
+    int maxRow = Integer.MIN_VALUE;
+    int minColumn = Integer.MAX_VALUE;
+    int maxColumn = Integer.MIN_VALUE;
+    for (LocatedStation station : cells.values()) {
+      minRow = Math.min(minRow, station.row);
+      maxRow = Math.max(maxRow, station.row);
+      minColumn = Math.min(minColumn, station.column);
+      maxColumn = Math.max(maxColumn, station.column);
+    }
+    this.minRow = minRow;
+    this.maxRow = maxRow;
+    this.minColumn = minColumn;
+    this.maxColumn = maxColumn;
+  }
+
+  /**
+   * Indexes the stations that have coordinates. The stations of an election are stored once for
+   * each address that was looked up, so a station listed for several addresses is only indexed
+   * once, even if the copies differ in details such as their sources. Stations of different
+   * location types at the same place, such as an early vote site and a drop off location, are kept
+   * apart.
+   *
+   * @param stations the stations of an election
+   */
+  public static PollingStationIndex of(Iterable<PollingStation> stations) {
+    Map<List<Object>, PollingStation> uniqueStations = new LinkedHashMap<>();
+    for (PollingStation station : stations) {
+      if (station.getLatitude().isPresent() && station.getLongitude().isPresent()) {
+        uniqueStations.putIfAbsent(
+            Arrays.asList(
+                station.getAddress(),
+                station.getLatitude().get(),
+                station.getLongitude().get(),
+                station.getLocationType()),
+            station);
+      }
+    }
+
+    ImmutableListMultimap.Builder<Long, LocatedStation> cells = ImmutableListMultimap.builder();
+    for (PollingStation station : uniqueStations.values()) {
+      LocatedStation located = new LocatedStation(station);
+      cells.put(toCellKey(located.row, located.column), located);
+    }
+    return new PollingStationIndex(cells.build());
+  }
+
+  /** Returns the number of stations in the index. */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Finds the stations nearest to a location.
+   *
+   * @param latitude the latitude of the location in degrees
+   * @param longitude the longitude of the location in degrees
+   * @param count how many stations to return
+   * @return at most "count" stations, nearest first
+   */
+  public ImmutableList<PollingStation> findNearest(double latitude, double longitude, int count) {
+    if (size == 0 || count <= 0) {
+      return ImmutableList.of();
+    }
+
+    // Longitude degrees shrink towards the poles, so they are scaled to the voter's latitude.
+    double longitudeScale = Math.cos(Math.toRadians(latitude));
+    double minCellSpan = CELL_SIZE_DEGREES * Math.min(1, longitudeScale);
+    Comparator<Match> byDistance = Comparator.comparingDouble(match -> match.distance);
+    // The farthest of the nearest stations found so far is at the head, to be replaced first.
+    PriorityQueue<Match> nearest = new PriorityQueue<>(count, byDistance.reversed());
+
+    int row = toCell(latitude);
+    int column = toCell(longitude);
+    int firstRing =
+        Math.max(
+            Math.max(minRow - row, row - maxRow), Math.max(minColumn - column, column - maxColumn));
+    int lastRing =
+        Math.max(
+            Math.max(row - minRow, maxRow - row), Math.max(column - minColumn, maxColumn - column));
+
+    for (int ring = Math.max(0, firstRing); ring <= lastRing; ring++) {
+      // Every station in this ring is at least ring - 1 whole cells away from the voter.
+      double ringDistance = (ring - 1) * minCellSpan;
+      if (nearest.size() == count
+          && ring > 0
+          && ringDistance * ringDistance >= nearest.peek().distance) {
+        break;
+      }
+
+      for (int ringRow = Math.max(row - ring, minRow);
+          ringRow <= Math.min(row + ring, maxRow);
+          ringRow++) {
+        if (Math.abs(ringRow - row) == ring) {
+          for (int ringColumn = Math.max(column - ring, minColumn);
+              ringColumn <= Math.min(column + ring, maxColumn);
+              ringColumn++) {
+            addMatches(ringRow, ringColumn, latitude, longitude, longitudeScale, count, nearest);
+          }
+        } else {
+          addMatches(ringRow, column - ring, latitude, longitude, longitudeScale, count, nearest);
+          addMatches(ringRow, column + ring, latitude, longitude, longitudeScale, count, nearest);
+        }
+      }
+    }
+
+    List<Match> sorted = Ordering.from(byDistance).sortedCopy(nearest);
+    ImmutableList.Builder<PollingStation> stations = ImmutableList.builder();
+    for (Match match : sorted) {
+      stations.add(match.station);
+    }
+    return stations.build();
+  }
+
+  // Offers the stations of a cell to "nearest", keeping only the "count" nearest.
+  private void addMatches(
+      int row,
+      int column,
+      double latitude,
+      double longitude,
+      double longitudeScale,
+      int count,
+      PriorityQueue<Match> nearest) {
+    for (LocatedStation located : cells.get(toCellKey(row, column))) {
+      double latitudeDistance = located.latitude - latitude;
+      double longitudeDistance = (located.longitude - longitude) * longitudeScale;
+      // Squared distances order the same way as distances, without a square root per station.
+      double distance = latitudeDistance * latitudeDistance + longitudeDistance * longitudeDistance;
+
+      if (nearest.size() < count) {
+        nearest.add(new Match(located.station, distance));
+      } else if (distance < nearest.peek().distance) {
+        nearest.poll();
+        nearest.add(new Match(located.station, distance));
+      }
+    }
+  }
+
+  private static int toCell(double degrees) {
+    return (int) Math.floor(degrees / CELL_SIZE_DEGREES);
+  }
+
+  private static long toCellKey(int row, int column) {
+    return ((long) row << 32) | (column & 0xffffffffL);
+  }
+
+  // A station with its coordinates unboxed and its grid cell, so searches do not unwrap Optionals.
+  private static final class LocatedStation {
+    private final PollingStation station;
+    private final double latitude;
+    private final double longitude;
+    private final int row;
+    private final int column;
+
+    private LocatedStation(PollingStation station) {
+      this.station = station;
+      this.latitude = station.getLatitude().get();
+      this.longitude = station.getLongitude().get();
+      this.row = toCell(latitude);
+      this.column = toCell(longitude);
+    }
+  }
+
+  // A station found by a search and its squared distance from the searched location.
+  private static final class Match {
+    private final PollingStation station;
+    private final double distance;
+
+    private Match(PollingStation station, double distance) {
+      this.station = station;
+      this.distance = distance;
+    }
+  }
+}
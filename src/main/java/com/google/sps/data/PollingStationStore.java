@@ -0,0 +1,243 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.data;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Query.FilterOperator;
+import com.google.appengine.api.datastore.Query.FilterPredicate;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
+import com.google.sps.servlets.ServletUtils;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stores the polling stations of an election for an address, so that the address is served the
+ * stations again without a voterInfoQuery call. Addresses in the same districts can still be
+ * assigned different polling places, so a list is only served for the address it was looked up for.
+ *
+ * <p>Each stored list is a PollingStationList Entity keyed by the election and a hash of the
+ * normalized address, so the address itself is not stored, with one PollingStation Entity per
+ * station as its children, in the order the API returned them. Lists older than the refresh
+ * interval are still served but should be refreshed; lists older than the maximum age are not
+ * served at all.
+ *
+ * <p>Every station is also tagged with its election, so all the stored stations of an election can
+ * be indexed by location. The index is kept in memory for a few minutes, and dropped when this
+ * instance stores new stations for the election.
+ */
+public final class PollingStationStore {
+  public static final String LIST_ENTITY_KIND = "PollingStationList";
+  public static final String ELECTION_ID_ENTITY_KEYWORD = "electionId";
+  public static final String FETCHED_ENTITY_KEYWORD = "fetched";
+
+  private static final Duration DEFAULT_REFRESH_INTERVAL = Duration.ofHours(6);
+  private static final Duration DEFAULT_MAXIMUM_AGE = Duration.ofDays(7);
+  // Other instances may store stations too, so indexes are rebuilt after a while.
+  private static final Duration INDEX_TIME_TO_LIVE = Duration.ofMinutes(10);
+  private static final int INDEX_QUERY_CHUNK_SIZE = 500;
+  private static final PollingStationStore INSTANCE =
+      new PollingStationStore(DEFAULT_REFRESH_INTERVAL, DEFAULT_MAXIMUM_AGE, Clock.systemUTC());
+
+  private final Duration refreshInterval;
+  private final Duration maximumAge;
+  private final Clock clock;
+  private final Cache<String, PollingStationIndex> indexes =
+      CacheBuilder.newBuilder()
+          .expireAfterWrite(INDEX_TIME_TO_LIVE.toMillis(), TimeUnit.MILLISECONDS)
+          .build();
+
+  /** The stored polling stations of an election for an address. */
+  public static final class StoredStations {
+    private final ImmutableList<PollingStation> stations;
+    private final Instant fetched;
+    private final boolean stale;
+
+    private StoredStations(ImmutableList<PollingStation> stations, Instant fetched, boolean stale) {
+      this.stations = stations;
+      this.fetched = fetched;
+      this.stale = stale;
+    }
+
+    public ImmutableList<PollingStation> getStations() {
+      return stations;
+    }
+
+    /** Returns when the stations were looked up. */
+    public Instant getFetched() {
+      return fetched;
+    }
+
+    /** Returns true if the stations are older than the refresh interval. */
+    public boolean isStale() {
+      return stale;
+    }
+  }
+
+  /**
+   * Creates a store.
+   *
+   * @param refreshInterval how long stations are served before they should be looked up again
+   * @param maximumAge how long stations are served at all if they could not be looked up again
+   * @param clock the time source used to decide when stations are too old
+   */
+  public PollingStationStore(Duration refreshInterval, Duration maximumAge, Clock clock) {
+    this.refreshInterval = refreshInterval;
+    this.maximumAge = maximumAge;
+    this.clock = clock;
+  }
+
+  /** Returns the store shared by every request. */
+  public static PollingStationStore getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * Finds the stored polling stations of an election for an address, ignoring differences in case
+   * and spacing.
+   *
+   * @param datastore the Datastore containing the polling stations
+   * @param electionId the ID of the election
+   * @param address the address the stations are for
+   * @return the stations, or an empty Optional if none are stored or they are too old
+   */
+  public Optional<StoredStations> get(
+      DatastoreService datastore, String electionId, String address) {
+    Key listKey = toListKey(electionId, address);
+    Entity listEntity;
+    try {
+      listEntity = datastore.get(listKey);
+    } catch (EntityNotFoundException e) {
+      return Optional.empty();
+    }
+
+    Instant fetched = ((Date) listEntity.getProperty(FETCHED_ENTITY_KEYWORD)).toInstant();
+    Instant now = clock.instant();
+    if (!fetched.plus(maximumAge).isAfter(now)) {
+      return Optional.empty();
+    }
+
+    ImmutableList.Builder<PollingStation> stations = ImmutableList.builder();
+    for (Entity stationEntity : queryStations(datastore, listKey, /* keysOnly= */ false)) {
+      stations.add(PollingStation.fromEntity(stationEntity));
+    }
+    return Optional.of(
+        new StoredStations(stations.build(), fetched, !fetched.plus(refreshInterval).isAfter(now)));
+  }
+
+  /**
+   * Stores the polling stations of an election for an address, replacing any stored before.
+   *
+   * @param datastore the Datastore to store the polling stations in
+   * @param electionId the ID of the election
+   * @param address the address the stations were looked up for
+   * @param stations the stations, in the order they should be served
+   */
+  public void put(
+      DatastoreService datastore,
+      String electionId,
+      String address,
+      List<PollingStation> stations) {
+    Key listKey = toListKey(electionId, address);
+
+    // Stations are numbered from 1, so their keys sort in the order they are served and the new
+    // stations overwrite the old ones. Only old stations past the end of the new list are deleted.
+    List<Key> removedStationKeys = new ArrayList<>();
+    for (Entity stationEntity : queryStations(datastore, listKey, /* keysOnly= */ true)) {
+      if (stationEntity.getKey().getId() > stations.size()) {
+        removedStationKeys.add(stationEntity.getKey());
+      }
+    }
+
+    Entity listEntity = new Entity(listKey);
+    listEntity.setProperty(ELECTION_ID_ENTITY_KEYWORD, electionId);
+    listEntity.setProperty(FETCHED_ENTITY_KEYWORD, Date.from(clock.instant()));
+
+    List<Entity> entities = new ArrayList<>();
+    entities.add(listEntity);
+    for (int i = 0; i < stations.size(); i++) {
+      Key stationKey = KeyFactory.createKey(listKey, PollingStation.ENTITY_KIND, i + 1);
+      Entity stationEntity = stations.get(i).toEntity(stationKey);
+      stationEntity.setProperty(ELECTION_ID_ENTITY_KEYWORD, electionId);
+      entities.add(stationEntity);
+    }
+
+    ServletUtils.putAllInDatastore(datastore, entities);
+    ServletUtils.deleteAllFromDatastore(datastore, removedStationKeys);
+    indexes.invalidate(electionId);
+  }
+
+  /**
+   * Returns an index by location of every polling station stored for an election, building it from
+   * Datastore if this instance has not built it recently.
+   *
+   * @param datastore the Datastore containing the polling stations
+   * @param electionId the ID of the election
+   */
+  public PollingStationIndex getIndex(DatastoreService datastore, String electionId) {
+    PollingStationIndex index = indexes.getIfPresent(electionId);
+    if (index != null) {
+      return index;
+    }
+
+    // Concurrent requests may both build the index; the last one built is kept.
+    Query query =
+        new Query(PollingStation.ENTITY_KIND)
+            .setFilter(
+                new FilterPredicate(ELECTION_ID_ENTITY_KEYWORD, FilterOperator.EQUAL, electionId));
+    List<PollingStation> stations = new ArrayList<>();
+    for (Entity stationEntity :
+        datastore
+            .prepare(query)
+            .asIterable(FetchOptions.Builder.withChunkSize(INDEX_QUERY_CHUNK_SIZE))) {
+      stations.add(PollingStation.fromEntity(stationEntity));
+    }
+
+    index = PollingStationIndex.of(stations);
+    indexes.put(electionId, index);
+    return index;
+  }
+
+  private static Key toListKey(String electionId, String address) {
+    return KeyFactory.createKey(
+        LIST_ENTITY_KIND, electionId + "/" + AddressDivisionsCache.hashAddress(address));
+  }
+
+  // Returns the station Entities of a list in the order they are served.
+  private static Iterable<Entity> queryStations(
+      DatastoreService datastore, Key listKey, boolean keysOnly) {
+    Query query =
+        new Query(PollingStation.ENTITY_KIND)
+            .setAncestor(listKey)
+            .addSort(Entity.KEY_RESERVED_PROPERTY, Query.SortDirection.ASCENDING);
+    if (keysOnly) {
+      query.setKeysOnly();
+    }
+    return datastore.prepare(query).asIterable(FetchOptions.Builder.withDefaults());
+  }
+}
@@ -16,13 +16,12 @@ package com.google.sps.data;
 
 import com.google.appengine.api.datastore.DatastoreService;
 import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
 import com.google.auto.value.AutoValue;
-import com.google.gson.Gson;
+import com.google.gson.stream.JsonWriter;
+import java.io.IOException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.stream.Collectors;
-import java.util.stream.StreamSupport;
-import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
@@ -75,56 +74,42 @@ public abstract class Referendum {
 
   // creates a new Referendum object by extracting the properties from "obj"
   public static Referendum fromJSONObject(JSONObject obj) throws JSONException {
-    String description;
-    String title;
-    String source = "";
-    String division = "";
-    String url;
-
-    try {
-      title = obj.getString(TITLE_JSON_KEYWORD);
-    } catch (JSONException e) {
-      LOGGER.logp(Level.WARNING, SOURCE_CLASS, "fromJSONObject", "referendumTitle does not exist");
-      throw new JSONException("Malformed referendum JSONObject: referendumTitle does not exist.");
-    }
-
-    try {
-      url = obj.getString(URL_JSON_KEYWORD);
-    } catch (JSONException e) {
-      url = "";
-    }
-
-    try {
-      description = obj.getString(DESCRIPTION_JSON_KEYWORD);
-    } catch (JSONException e) {
-      description = "";
-    }
-
-    if (obj.has(SOURCE_JSON_KEYWORD)) {
-      // "source" field is given as a list of Strings, so put them into a list as one String
-      JSONArray sourceList = obj.getJSONArray(SOURCE_JSON_KEYWORD);
-      source =
-          StreamSupport.stream(sourceList.spliterator(), false)
-              .map(sourceObject -> ((JSONObject) sourceObject).getString(SOURCE_NAME_JSON_KEYWORD))
-              .collect(Collectors.joining(", "));
-    }
+    return fromVoterInfoContest(
+        JsonReaderUtils.fromJSONObject(obj, VoterInfoContest::fromJsonReader));
+  }
 
-    if (obj.has(DIVISION_JSON_KEYWORD)) {
-      division = obj.getJSONObject(DIVISION_JSON_KEYWORD).getString("id");
+  // creates a new Referendum object from a referendum read from the output of a voterInfoQuery
+  public static Referendum fromVoterInfoContest(VoterInfoContest contest) throws JSONException {
+    if (!contest.getReferendumTitle().isPresent()) {
+      LOGGER.logp(
+          Level.WARNING, SOURCE_CLASS, "fromVoterInfoContest", "referendumTitle does not exist");
+      throw new JSONException("Malformed referendum JSONObject: referendumTitle does not exist.");
     }
 
     return Referendum.builder()
-        .setTitle(title)
-        .setDescription(description)
-        .setSource(source)
-        .setUrl(url)
-        .setDivision(division)
+        .setTitle(contest.getReferendumTitle().get())
+        .setDescription(contest.getReferendumSubtitle())
+        .setSource(contest.getSource())
+        .setUrl(contest.getReferendumUrl())
+        .setDivision(contest.getDivision())
         .build();
   }
 
   // Converts this Referendum object to a JSON string.
   public String toJsonString() {
-    return new Gson().toJson(this);
+    return JsonWriterUtils.toJsonString(this::writeJson);
+  }
+
+  // Writes this Referendum object as a JSON object to "writer", with the same fields as
+  // toJsonString.
+  public void writeJson(JsonWriter writer) throws IOException {
+    writer.beginObject();
+    writer.name(TITLE_ENTITY_KEYWORD).value(this.getTitle());
+    writer.name(DESCRIPTION_ENTITY_KEYWORD).value(this.getDescription());
+    writer.name(SOURCE_ENTITY_KEYWORD).value(this.getSource());
+    writer.name(URL_ENTITY_KEYWORD).value(this.getUrl());
+    writer.name(DIVISION_ENTITY_KEYWORD).value(this.getDivision());
+    writer.endObject();
   }
 
   // Creates a new Referendum object by using the propperties of the provided Referendum entity
@@ -141,13 +126,22 @@ public abstract class Referendum {
   // Converts the Referendum into a Datastore Entity and puts the Entity into the given Datastore
   // instance.
   public long addToDatastore(DatastoreService datastore) {
-    Entity entity = new Entity(ENTITY_KIND);
+    Entity entity = setEntityProperties(new Entity(ENTITY_KIND));
+    datastore.put(entity);
+    return entity.getKey().getId();
+  }
+
+  // Converts this Referendum into a Datastore Entity with the given key, without storing it.
+  public Entity toEntity(Key key) {
+    return setEntityProperties(new Entity(key));
+  }
+
+  private Entity setEntityProperties(Entity entity) {
     entity.setProperty(TITLE_ENTITY_KEYWORD, this.getTitle());
     entity.setProperty(DESCRIPTION_ENTITY_KEYWORD, this.getDescription());
     entity.setProperty(SOURCE_ENTITY_KEYWORD, this.getSource());
     entity.setProperty(URL_ENTITY_KEYWORD, this.getUrl());
     entity.setProperty(DIVISION_ENTITY_KEYWORD, this.getDivision());
-    datastore.put(entity);
-    return entity.getKey().getId();
+    return entity;
   }
 }
@@ -0,0 +1,208 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.data;
+
+import com.google.auto.value.AutoValue;
+import com.google.common.collect.ImmutableList;
+import com.google.gson.stream.JsonReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * An entry of the "contests" list in the output of a voterInfoQuery, as read from the API before
+ * anything is stored in Datastore. Depending on its type it becomes either a Contest or a
+ * Referendum.
+ */
+@AutoValue
+public abstract class VoterInfoContest {
+  public static final String DIVISION_ID_JSON_KEYWORD = "id";
+
+  public abstract String getType();
+
+  public abstract String getDivision();
+
+  public abstract Optional<String> getOffice();
+
+  public abstract String getSource();
+
+  // The candidates running for this contest's office, without their platform descriptions.
+  public abstract ImmutableList<Candidate> getCandidates();
+
+  public abstract Optional<String> getReferendumTitle();
+
+  public abstract String getReferendumSubtitle();
+
+  public abstract String getReferendumUrl();
+
+  public static Builder builder() {
+    return new AutoValue_VoterInfoContest.Builder()
+        .setType("")
+        .setDivision("")
+        .setSource("")
+        .setCandidates(ImmutableList.of())
+        .setReferendumSubtitle("")
+        .setReferendumUrl("");
+  }
+
+  @AutoValue.Builder
+  public abstract static class Builder {
+    public abstract Builder setType(String type);
+
+    public abstract Builder setDivision(String division);
+
+    public abstract Builder setOffice(String office);
+
+    public abstract Builder setSource(String source);
+
+    public abstract Builder setCandidates(List<Candidate> candidates);
+
+    public abstract Builder setReferendumTitle(String referendumTitle);
+
+    public abstract Builder setReferendumSubtitle(String referendumSubtitle);
+
+    public abstract Builder setReferendumUrl(String referendumUrl);
+
+    public abstract VoterInfoContest build();
+  }
+
+  // Referendums are a separate contest type from office positions.
+  public boolean isReferendum() {
+    return getType().equals(Referendum.ENTITY_KIND);
+  }
+
+  /**
+   * Reads every entry of the "contests" list of a voterInfoQuery response, skipping all other
+   * fields without building them in memory.
+   *
+   * @param reader a JsonReader positioned at the start of the voterInfoQuery output
+   * @return the contests in the order they appear in the response
+   */
+  public static ImmutableList<VoterInfoContest> listFromVoterInfoQuery(JsonReader reader)
+      throws IOException {
+    ImmutableList.Builder<VoterInfoContest> contests = ImmutableList.builder();
+
+    reader.beginObject();
+    while (reader.hasNext()) {
+      if (reader.nextName().equals(Election.CONTESTS_JSON_KEYWORD)) {
+        reader.beginArray();
+        while (reader.hasNext()) {
+          contests.add(fromJsonReader(reader));
+        }
+        reader.endArray();
+      } else {
+        reader.skipValue();
+      }
+    }
+    reader.endObject();
+
+    return contests.build();
+  }
+
+  /**
+   * Reads one contest object from the output of a voterInfoQuery.
+   *
+   * @param reader a JsonReader positioned at the start of the contest object
+   * @return the new VoterInfoContest object
+   */
+  public static VoterInfoContest fromJsonReader(JsonReader reader) throws IOException {
+    Builder builder = builder();
+
+    reader.beginObject();
+    while (reader.hasNext()) {
+      switch (reader.nextName()) {
+        case Contest.TYPE_JSON_KEYWORD:
+          builder.setType(JsonReaderUtils.nextStringOrDefault(reader, ""));
+          break;
+        case Contest.NAME_JSON_KEYWORD:
+          builder.setOffice(JsonReaderUtils.nextStringOrDefault(reader, ""));
+          break;
+        case Contest.DIVISION_JSON_KEYWORD:
+          builder.setDivision(readDivisionId(reader));
+          break;
+        case Contest.SOURCE_JSON_KEYWORD:
+          builder.setSource(readSourceNames(reader));
+          break;
+        case Contest.CANDIDATES_JSON_KEYWORD:
+          builder.setCandidates(readCandidates(reader));
+          break;
+        case Referendum.TITLE_JSON_KEYWORD:
+          builder.setReferendumTitle(JsonReaderUtils.nextStringOrDefault(reader, ""));
+          break;
+        case Referendum.DESCRIPTION_JSON_KEYWORD:
+          builder.setReferendumSubtitle(JsonReaderUtils.nextStringOrDefault(reader, ""));
+          break;
+        case Referendum.URL_JSON_KEYWORD:
+          builder.setReferendumUrl(JsonReaderUtils.nextStringOrDefault(reader, ""));
+          break;
+        default:
+          reader.skipValue();
+      }
+    }
+    reader.endObject();
+
+    return builder.build();
+  }
+
+  private static String readDivisionId(JsonReader reader) throws IOException {
+    String divisionId = "";
+
+    reader.beginObject();
+    while (reader.hasNext()) {
+      if (reader.nextName().equals(DIVISION_ID_JSON_KEYWORD)) {
+        divisionId = JsonReaderUtils.nextStringOrDefault(reader, "");
+      } else {
+        reader.skipValue();
+      }
+    }
+    reader.endObject();
+
+    return divisionId;
+  }
+
+  // "sources" field is given as a list of objects, so put their names into one String
+  private static String readSourceNames(JsonReader reader) throws IOException {
+    List<String> sourceNames = new ArrayList<>();
+
+    reader.beginArray();
+    while (reader.hasNext()) {
+      reader.beginObject();
+      while (reader.hasNext()) {
+        if (reader.nextName().equals(Contest.SOURCE_NAME_JSON_KEYWORD)) {
+          sourceNames.add(JsonReaderUtils.nextStringOrDefault(reader, ""));
+        } else {
+          reader.skipValue();
+        }
+      }
+      reader.endObject();
+    }
+    reader.endArray();
+
+    return String.join(", ", sourceNames);
+  }
+
+  private static ImmutableList<Candidate> readCandidates(JsonReader reader) throws IOException {
+    ImmutableList.Builder<Candidate> candidates = ImmutableList.builder();
+
+    reader.beginArray();
+    while (reader.hasNext()) {
+      candidates.add(Candidate.fromJsonReader(reader));
+    }
+    reader.endArray();
+
+    return candidates.build();
+  }
+}
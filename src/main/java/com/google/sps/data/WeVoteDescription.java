@@ -0,0 +1,49 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.data;
+
+import com.google.auto.value.AutoValue;
+
+/** The result of searching WeVote for a candidate and retrieving their Ballotpedia summary. */
+@AutoValue
+public abstract class WeVoteDescription {
+
+  // Empty if WeVote has no candidate with the searched name.
+  public abstract String getWeVoteId();
+
+  public abstract String getDescription();
+
+  public static Builder builder() {
+    return new AutoValue_WeVoteDescription.Builder();
+  }
+
+  @AutoValue.Builder
+  public abstract static class Builder {
+    public abstract Builder setWeVoteId(String weVoteId);
+
+    public abstract Builder setDescription(String description);
+
+    public abstract WeVoteDescription build();
+  }
+
+  // The result of a search that found no candidate.
+  public static WeVoteDescription notFound() {
+    return builder().setWeVoteId("").setDescription("").build();
+  }
+
+  public boolean isFound() {
+    return !getWeVoteId().isEmpty();
+  }
+}
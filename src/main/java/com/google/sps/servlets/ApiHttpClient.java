@@ -0,0 +1,202 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.auto.value.AutoValue;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.ByteStreams;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.time.Duration;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Makes outbound GET requests to the Civic Information, WeVote and FVAP APIs. Connections are kept
+ * alive and reused between requests to the same host, every request is bounded by its host's
+ * connect and read timeouts, and each host has a limit on how many requests can be in flight at
+ * once.
+ */
+public final class ApiHttpClient {
+
+  /** Timeouts and concurrency limit for requests to one host. */
+  @AutoValue
+  public abstract static class HostSettings {
+    public abstract Duration getConnectTimeout();
+
+    public abstract Duration getReadTimeout();
+
+    public abstract int getMaxConcurrentRequests();
+
+    public static Builder builder() {
+      return new AutoValue_ApiHttpClient_HostSettings.Builder();
+    }
+
+    @AutoValue.Builder
+    public abstract static class Builder {
+      public abstract Builder setConnectTimeout(Duration connectTimeout);
+
+      public abstract Builder setReadTimeout(Duration readTimeout);
+
+      public abstract Builder setMaxConcurrentRequests(int maxConcurrentRequests);
+
+      public abstract HostSettings build();
+    }
+  }
+
+  /** Converts the body of a successful response into an object. */
+  public interface ResponseParser<T> {
+    T parse(InputStream body) throws IOException;
+  }
+
+  private static final Logger logger = Logger.getLogger(ApiHttpClient.class.getName());
+
+  private static final HostSettings DEFAULT_HOST_SETTINGS =
+      HostSettings.builder()
+          .setConnectTimeout(Duration.ofSeconds(5))
+          .setReadTimeout(Duration.ofSeconds(10))
+          .setMaxConcurrentRequests(20)
+          .build();
+
+  private static final ImmutableMap<String, HostSettings> API_HOST_SETTINGS =
+      ImmutableMap.<String, HostSettings>builder()
+          .put("civicinfo.googleapis.com", DEFAULT_HOST_SETTINGS)
+          .put("www.googleapis.com", DEFAULT_HOST_SETTINGS)
+          // WeVote descriptions are optional, so don't let a slow lookup hold up a ballot.
+          .put(
+              "api.wevoteusa.org",
+              HostSettings.builder()
+                  .setConnectTimeout(Duration.ofSeconds(3))
+                  .setReadTimeout(Duration.ofSeconds(5))
+                  .setMaxConcurrentRequests(10)
+                  .build())
+          .put(
+              "fvap.gov",
+              HostSettings.builder()
+                  .setConnectTimeout(Duration.ofSeconds(5))
+                  .setReadTimeout(Duration.ofSeconds(15))
+                  .setMaxConcurrentRequests(5)
+                  .build())
+          .build();
+
+  private final HostSettings defaultHostSettings;
+  private final ImmutableMap<String, HostSettings> hostSettings;
+  private final Map<String, Semaphore> hostPermits = new ConcurrentHashMap<>();
+
+  /**
+   * Creates a client for the given hosts.
+   *
+   * @param defaultHostSettings the settings for requests to hosts without their own settings
+   * @param hostSettings the settings for requests to specific hosts, keyed by host name
+   */
+  public ApiHttpClient(HostSettings defaultHostSettings, Map<String, HostSettings> hostSettings) {
+    this.defaultHostSettings = defaultHostSettings;
+    this.hostSettings = ImmutableMap.copyOf(hostSettings);
+  }
+
+  /** Creates a client configured for the APIs this project calls. */
+  public static ApiHttpClient createDefault() {
+    return new ApiHttpClient(DEFAULT_HOST_SETTINGS, API_HOST_SETTINGS);
+  }
+
+  /**
+   * Makes a GET request to the given URL and parses the response body.
+   *
+   * @param urlString the URL to request
+   * @param parser converts the (decompressed) response body into the returned object
+   * @return an Optional containing the parsed body, or empty if the request failed, timed out or
+   *     did not return HTTP 200
+   */
+  public <T> Optional<T> get(String urlString, ResponseParser<T> parser) {
+    URL url;
+    try {
+      url = new URL(urlString);
+    } catch (MalformedURLException e) {
+      logger.log(Level.SEVERE, "URL is incorrectly formatted");
+      return Optional.empty();
+    }
+
+    HostSettings settings = hostSettings.getOrDefault(url.getHost(), defaultHostSettings);
+    Semaphore permits =
+        hostPermits.computeIfAbsent(
+            url.getHost(), host -> new Semaphore(settings.getMaxConcurrentRequests()));
+
+    try {
+      if (!permits.tryAcquire(settings.getReadTimeout().toMillis(), TimeUnit.MILLISECONDS)) {
+        logger.log(Level.WARNING, "Too many concurrent requests to " + url.getHost());
+        return Optional.empty();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return Optional.empty();
+    }
+
+    try {
+      return request(url, settings, parser);
+    } catch (SocketTimeoutException e) {
+      logger.log(Level.WARNING, "Timed out while requesting " + url.getHost());
+      return Optional.empty();
+    } catch (IOException e) {
+      logger.log(Level.SEVERE, "Cannot retrieve information from provided URL");
+      return Optional.empty();
+    } finally {
+      permits.release();
+    }
+  }
+
+  private static <T> Optional<T> request(URL url, HostSettings settings, ResponseParser<T> parser)
+      throws IOException {
+    HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+    conn.setRequestMethod("GET");
+    conn.setConnectTimeout((int) settings.getConnectTimeout().toMillis());
+    conn.setReadTimeout((int) settings.getReadTimeout().toMillis());
+    conn.setRequestProperty("Accept", "application/json");
+    conn.setRequestProperty("Accept-Encoding", "gzip");
+
+    int responseCode = conn.getResponseCode();
+    if (responseCode != HttpURLConnection.HTTP_OK) {
+      // Drain the error body so the connection can go back into the keep-alive pool.
+      try (InputStream errorStream = conn.getErrorStream()) {
+        if (errorStream != null) {
+          ByteStreams.exhaust(errorStream);
+        }
+      }
+      logger.log(Level.WARNING, responseCode + " error: Could not GET " + url);
+      return Optional.empty();
+    }
+
+    // Close, but never disconnect(), so the underlying socket is reused for the next request.
+    try (InputStream body = decode(conn)) {
+      T result = parser.parse(body);
+      ByteStreams.exhaust(body);
+      return Optional.of(result);
+    }
+  }
+
+  private static InputStream decode(HttpURLConnection conn) throws IOException {
+    InputStream body = conn.getInputStream();
+    return "gzip".equalsIgnoreCase(conn.getContentEncoding()) ? new GZIPInputStream(body) : body;
+  }
+}
@@ -0,0 +1,79 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.sps.data.BallotGarbageCollector;
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * This servlet is called by the App Engine cron job in cron.xml to delete the Contest, Candidate
+ * and Referendum Entities no Election references any more, a few pages at a time.
+ */
+@WebServlet("/tasks/collect-ballot-garbage")
+public final class BallotGarbageCollectionServlet extends HttpServlet {
+  private static final String SOURCE_CLASS = BallotGarbageCollectionServlet.class.getName();
+  private static final Logger logger = Logger.getLogger(SOURCE_CLASS);
+  // App Engine sets this header on cron requests and strips it from requests made by anyone else.
+  private static final String CRON_HEADER = "X-Appengine-Cron";
+
+  private final BallotGarbageCollector collector;
+
+  public BallotGarbageCollectionServlet() {
+    this(BallotGarbageCollector.getInstance());
+  }
+
+  public BallotGarbageCollectionServlet(BallotGarbageCollector collector) {
+    this.collector = collector;
+  }
+
+  @Override
+  public void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+    if (!"true".equals(request.getHeader(CRON_HEADER))) {
+      response.setStatus(403);
+      logger.logp(
+          Level.WARNING,
+          SOURCE_CLASS,
+          "doGet",
+          "Rejected a garbage collection request not from cron.");
+      return;
+    }
+
+    BallotGarbageCollector.RunResult result;
+    try {
+      result = collector.run(DatastoreServiceFactory.getDatastoreService());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      response.setStatus(503);
+      return;
+    }
+
+    response.setContentType("text/plain");
+    response
+        .getWriter()
+        .println(
+            String.format(
+                "Scanned %d, deleted %d, pass %s.",
+                result.getScanned(),
+                result.getDeleted(),
+                result.isPassComplete() ? "complete" : "incomplete"));
+  }
+}
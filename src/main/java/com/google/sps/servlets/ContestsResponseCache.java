@@ -0,0 +1,120 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.common.base.Joiner;
+import com.google.common.base.Ticker;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableSortedSet;
+import java.time.Duration;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An in-memory cache of the /contests responses, keyed by election ID and the set of divisions of
+ * the user's address. Responses are kept as the encoded bytes written to the client, so a repeat
+ * request for the same district does not touch Datastore or Gson at all.
+ *
+ * <p>Entries of an election are dropped when the election is stored again. Other instances do not
+ * hear about that, so entries also expire after a short time.
+ */
+public final class ContestsResponseCache {
+  private static final int DEFAULT_MAXIMUM_SIZE = 1000;
+  private static final Duration DEFAULT_TIME_TO_LIVE = Duration.ofMinutes(10);
+  // Separates the election ID from the divisions in a cache key. Neither can contain it.
+  private static final char KEY_SEPARATOR = '\n';
+  private static final ContestsResponseCache INSTANCE =
+      new ContestsResponseCache(DEFAULT_MAXIMUM_SIZE, DEFAULT_TIME_TO_LIVE, Ticker.systemTicker());
+
+  private final Cache<String, byte[]> responses;
+  // Counts invalidations, so that a response built from Datastore reads that started before an
+  // invalidation is not cached after it.
+  private final AtomicLong generation = new AtomicLong();
+
+  /**
+   * Creates an empty cache.
+   *
+   * @param maximumSize how many responses to keep
+   * @param timeToLive how long a response is served after it was built
+   * @param ticker the time source used to expire responses
+   */
+  public ContestsResponseCache(int maximumSize, Duration timeToLive, Ticker ticker) {
+    this.responses =
+        CacheBuilder.newBuilder()
+            .maximumSize(maximumSize)
+            .expireAfterWrite(timeToLive.toNanos(), TimeUnit.NANOSECONDS)
+            .ticker(ticker)
+            .build();
+  }
+
+  /** Returns the cache shared by every request. */
+  public static ContestsResponseCache getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * Finds the response built for an election and set of divisions, in any order.
+   *
+   * @return the encoded response, or an empty Optional if it is not cached
+   */
+  public Optional<byte[]> get(String electionId, Set<String> divisions) {
+    return Optional.ofNullable(responses.getIfPresent(toKey(electionId, divisions)));
+  }
+
+  /**
+   * Returns the current generation of the cache, to be read before reading the Datastore Entities a
+   * response is built from and passed to put.
+   */
+  public long getGeneration() {
+    return generation.get();
+  }
+
+  /**
+   * Caches the encoded response for an election and set of divisions, unless the cache was
+   * invalidated while the response was being built.
+   *
+   * @param electionId the ID of the election the response lists the contests of
+   * @param divisions the divisions of the address the response was built for
+   * @param response the encoded response
+   * @param builtFromGeneration the value of getGeneration before the response was built
+   */
+  public void put(
+      String electionId, Set<String> divisions, byte[] response, long builtFromGeneration) {
+    String key = toKey(electionId, divisions);
+    if (generation.get() != builtFromGeneration) {
+      return;
+    }
+
+    responses.put(key, response);
+    // An invalidation may have run between the check above and the put, and missed this entry.
+    if (generation.get() != builtFromGeneration) {
+      responses.asMap().remove(key, response);
+    }
+  }
+
+  /** Drops every response of the given election, for example after its contests changed. */
+  public void invalidate(String electionId) {
+    generation.incrementAndGet();
+    String keyPrefix = electionId + KEY_SEPARATOR;
+    responses.asMap().keySet().removeIf(key -> key.startsWith(keyPrefix));
+  }
+
+  private static String toKey(String electionId, Set<String> divisions) {
+    return electionId + KEY_SEPARATOR + Joiner.on('|').join(ImmutableSortedSet.copyOf(divisions));
+  }
+}
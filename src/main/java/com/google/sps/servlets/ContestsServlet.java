@@ -17,19 +17,23 @@ package com.google.sps.servlets;
 import com.google.appengine.api.datastore.DatastoreService;
 import com.google.appengine.api.datastore.DatastoreServiceFactory;
 import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
 import com.google.appengine.api.datastore.KeyFactory;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
-import com.google.gson.Gson;
-import com.google.gson.JsonElement;
-import com.google.gson.JsonNull;
-import com.google.gson.JsonParser;
+import com.google.common.collect.Iterables;
+import com.google.gson.stream.JsonWriter;
 import com.google.sps.data.Contest;
 import com.google.sps.data.Election;
+import com.google.sps.data.JsonWriterUtils;
 import com.google.sps.data.Referendum;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -49,6 +53,16 @@ public final class ContestsServlet extends HttpServlet {
   private static final String SOURCE_CLASS = ContestsServlet.class.getName();
   private static final Logger logger = Logger.getLogger(SOURCE_CLASS);
 
+  private final ContestsResponseCache responseCache;
+
+  public ContestsServlet() {
+    this(ContestsResponseCache.getInstance());
+  }
+
+  public ContestsServlet(ContestsResponseCache responseCache) {
+    this.responseCache = responseCache;
+  }
+
   @Override
   public void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
     Optional<String> electionIdOptional =
@@ -60,8 +74,30 @@ public final class ContestsServlet extends HttpServlet {
 
     String electionId = electionIdOptional.get();
 
+    // The divisions are read first so that a cached response can be served without looking up the
+    // election. A missing cookie is only reported once the election is found, as it was before
+    // responses were cached, so a request with a bad electionId gets the same error either way.
+    Optional<ImmutableSet<String>> addressDivisionsOptional = Optional.empty();
+    String cookieError = "";
+    try {
+      addressDivisionsOptional = Optional.of(getAddressDivisionSetFromCookie(request));
+    } catch (Exception e) {
+      cookieError = e.getMessage();
+    }
+
     DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
 
+    long cacheGeneration = responseCache.getGeneration();
+    if (addressDivisionsOptional.isPresent()) {
+      Optional<byte[]> cachedResponse =
+          responseCache.get(electionId, addressDivisionsOptional.get());
+      if (cachedResponse.isPresent()) {
+        deleteAddressDivisionCookie(request, response);
+        writeJsonResponse(response, cachedResponse.get());
+        return;
+      }
+    }
+
     Optional<Entity> electionEntityOptional =
         ServletUtils.findElectionInDatastore(datastore, electionId);
 
@@ -74,93 +110,123 @@ public final class ContestsServlet extends HttpServlet {
       return;
     }
 
-    Election election = Election.fromEntity(electionEntityOptional.get());
-
-    ImmutableSet<String> addressDivisions = ImmutableSet.of();
-    try {
-      addressDivisions = getAddressDivisionSetFromCookie(request, response);
-    } catch (Exception e) {
+    if (!addressDivisionsOptional.isPresent()) {
       response.setContentType("text/html");
-      response.getWriter().println(e.getMessage());
+      response.getWriter().println(cookieError);
       response.setStatus(400);
       return;
     }
 
+    ImmutableSet<String> addressDivisions = addressDivisionsOptional.get();
+    deleteAddressDivisionCookie(request, response);
+
+    Election election = Election.fromEntity(electionEntityOptional.get());
+
     // Need to make final copy to use in lambda expressions later on.
     final ImmutableSet<String> finalAddressDivisions = ImmutableSet.copyOf(addressDivisions);
 
-    List<JsonElement> contestJsonList =
+    ImmutableList<Key> contestKeys =
         election
             .getContests()
             .stream()
             .map(id -> KeyFactory.createKey(Contest.ENTITY_KIND, id.longValue()))
-            .map(key -> ServletUtils.getFromDatastore(datastore, key))
-            .map(
-                entity ->
-                    entity.isPresent()
-                            && finalAddressDivisions.contains(
-                                entity.get().getProperty(Contest.DIVISION_ENTITY_KEYWORD))
-                        ? JsonParser.parseString(
-                            Contest.fromEntity(entity.get()).toJsonString(datastore))
-                        : JsonNull.INSTANCE)
-            .collect(Collectors.toList());
-
-    List<JsonElement> referendumJsonList =
+            .collect(ImmutableList.toImmutableList());
+    ImmutableList<Key> referendumKeys =
         election
             .getReferendums()
             .stream()
             .map(id -> KeyFactory.createKey(Referendum.ENTITY_KIND, id.longValue()))
-            .map(key -> ServletUtils.getFromDatastore(datastore, key))
-            .map(
+            .collect(ImmutableList.toImmutableList());
+
+    // Load every Contest and Referendum on this Election's ballot in batch calls, then every
+    // Candidate of the Contests in the address's divisions.
+    Map<Key, Entity> ballotEntities =
+        ServletUtils.getAllFromDatastore(datastore, Iterables.concat(contestKeys, referendumKeys));
+
+    List<Contest> contests =
+        contestKeys
+            .stream()
+            .filter(ballotEntities::containsKey)
+            .map(ballotEntities::get)
+            .filter(
                 entity ->
-                    entity.isPresent()
-                            && finalAddressDivisions.contains(
-                                entity.get().getProperty(Referendum.DIVISION_ENTITY_KEYWORD))
-                        ? JsonParser.parseString(Referendum.fromEntity(entity.get()).toJsonString())
-                        : JsonNull.INSTANCE)
+                    finalAddressDivisions.contains(
+                        entity.getProperty(Contest.DIVISION_ENTITY_KEYWORD)))
+            .map(Contest::fromEntity)
             .collect(Collectors.toList());
 
-    contestJsonList.removeAll(Collections.singleton(JsonNull.INSTANCE));
-    referendumJsonList.removeAll(Collections.singleton(JsonNull.INSTANCE));
-
-    Gson gson = new Gson();
-    String contestJson = gson.toJson(contestJsonList);
-    String referendumJson = gson.toJson(referendumJsonList);
-
-    response.setContentType("application/json;");
-    response
-        .getWriter()
-        .println(
-            "{\""
-                + Election.CONTESTS_ENTITY_KEYWORD
-                + "\":"
-                + contestJson
-                + ",\""
-                + Election.REFERENDUMS_ENTITY_KEYWORD
-                + "\":"
-                + referendumJson
-                + "}");
+    Map<Key, Entity> candidateEntities =
+        ServletUtils.getAllFromDatastore(
+            datastore,
+            contests
+                .stream()
+                .flatMap(contest -> contest.getCandidateKeys().stream())
+                .collect(Collectors.toList()));
+
+    List<Referendum> referendums =
+        referendumKeys
+            .stream()
+            .filter(ballotEntities::containsKey)
+            .map(ballotEntities::get)
+            .filter(
+                entity ->
+                    finalAddressDivisions.contains(
+                        entity.getProperty(Referendum.DIVISION_ENTITY_KEYWORD)))
+            .map(Referendum::fromEntity)
+            .collect(Collectors.toList());
+
+    // Write the response in one pass. It is buffered rather than written to the client directly so
+    // that it can be cached.
+    ByteArrayOutputStream responseBuffer = new ByteArrayOutputStream();
+    try (JsonWriter writer =
+        JsonWriterUtils.newJsonWriter(
+            new OutputStreamWriter(responseBuffer, StandardCharsets.UTF_8))) {
+      writer.beginObject();
+      writer.name(Election.CONTESTS_ENTITY_KEYWORD).beginArray();
+      for (Contest contest : contests) {
+        contest.writeJson(writer, candidateEntities);
+      }
+      writer.endArray();
+      writer.name(Election.REFERENDUMS_ENTITY_KEYWORD).beginArray();
+      for (Referendum referendum : referendums) {
+        referendum.writeJson(writer);
+      }
+      writer.endArray();
+      writer.endObject();
+    }
+
+    byte[] responseBytes = responseBuffer.toByteArray();
+    responseCache.put(electionId, addressDivisions, responseBytes, cacheGeneration);
+    writeJsonResponse(response, responseBytes);
+  }
+
+  private static void writeJsonResponse(HttpServletResponse response, byte[] responseBytes)
+      throws IOException {
+    response.setContentType("application/json;charset=UTF-8");
+    response.setContentLength(responseBytes.length);
+    response.getOutputStream().write(responseBytes);
   }
 
   /**
    * Helper function that returns the set of divisions returned by voterInfoQuery in
    * InfoCardServlet.
    */
-  private static ImmutableSet<String> getAddressDivisionSetFromCookie(
-      HttpServletRequest request, HttpServletResponse response) throws Exception {
+  private static ImmutableSet<String> getAddressDivisionSetFromCookie(HttpServletRequest request)
+      throws Exception {
     Cookie[] addressDivisionCookies = request.getCookies();
     if (addressDivisionCookies.length <= 0) {
       throw new Exception("Divisions information for address not found");
     }
 
-    Cookie addressDivisionCookie = addressDivisionCookies[0];
-    List<String> divisionsList = Arrays.asList(addressDivisionCookie.getValue().split("\\|"));
-    ImmutableSet<String> addressDivisionsSet = ImmutableSet.copyOf(divisionsList);
+    List<String> divisionsList = Arrays.asList(addressDivisionCookies[0].getValue().split("\\|"));
+    return ImmutableSet.copyOf(divisionsList);
+  }
 
-    // Delete cookie
+  /** Deletes the cookie read by getAddressDivisionSetFromCookie once it has been used. */
+  private static void deleteAddressDivisionCookie(
+      HttpServletRequest request, HttpServletResponse response) {
+    Cookie addressDivisionCookie = request.getCookies()[0];
     addressDivisionCookie.setMaxAge(0);
     response.addCookie(addressDivisionCookie);
-
-    return addressDivisionsSet;
   }
 }
@@ -14,10 +14,24 @@
 
 package com.google.sps.servlets;
 
+import com.google.common.base.Ticker;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
 import com.google.common.collect.ImmutableMap;
-import com.google.gson.Gson;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import com.google.sps.data.JsonWriterUtils;
 import java.io.IOException;
+import java.time.Duration;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
@@ -26,7 +40,7 @@ import org.json.JSONArray;
 import org.json.JSONObject;
 
 /** This servlet is used to retrieve the information on the voting deadlines for a user's state. */
-@WebServlet("/deadlines")
+@WebServlet(urlPatterns = "/deadlines", loadOnStartup = 1, asyncSupported = true)
 public final class DeadlinesServlet extends HttpServlet {
 
   private static final ImmutableMap<String, String> STATE_MAP =
@@ -90,10 +104,67 @@ public final class DeadlinesServlet extends HttpServlet {
 
   private static final String BASE_URL = "https://fvap.gov/xml-api";
   private static final String DEADLINES_PARAM = "deadline-dates.xml";
+  // System properties, set in appengine-web.xml, that configure the deadlines cache.
+  private static final String REFRESH_HOURS_PROPERTY = "deadlines.refreshHours";
+  private static final String PREWARM_PROPERTY = "deadlines.prewarm";
+  private static final long DEFAULT_REFRESH_HOURS = 24;
+  private static final String DEADLINES_CALL = "deadlines";
+  private static final ExecutorService refreshExecutor =
+      Executors.newSingleThreadExecutor(
+          new ThreadFactoryBuilder().setNameFormat("deadlines-refresh-%d").setDaemon(true).build());
+  private static final Logger logger = Logger.getLogger(DeadlinesServlet.class.getName());
+
+  // The serialized response for each state abbreviation. FVAP deadlines only change a few times a
+  // year, so a state's response is refreshed in the background once it is older than the refresh
+  // interval, and the previous response is served until the refresh succeeds.
+  private final LoadingCache<String, String> deadlinesCache;
+  private final Executor executor;
+
+  public DeadlinesServlet() {
+    this(
+        Duration.ofHours(Long.getLong(REFRESH_HOURS_PROPERTY, DEFAULT_REFRESH_HOURS)),
+        Ticker.systemTicker(),
+        refreshExecutor);
+  }
+
+  /**
+   * Creates a servlet whose cached deadlines are refreshed on the given schedule.
+   *
+   * @param refreshInterval how long a state's deadlines are served before they are refreshed
+   * @param ticker the time source used to decide when deadlines are due for a refresh
+   * @param executor runs background refreshes and prewarming
+   */
+  DeadlinesServlet(Duration refreshInterval, Ticker ticker, Executor executor) {
+    this.executor = executor;
+    this.deadlinesCache =
+        CacheBuilder.newBuilder()
+            .refreshAfterWrite(refreshInterval)
+            .ticker(ticker)
+            .build(
+                CacheLoader.asyncReloading(
+                    new CacheLoader<String, String>() {
+                      @Override
+                      public String load(String state) throws IOException {
+                        return fetchDeadlinesJson(state);
+                      }
+                    },
+                    executor));
+  }
+
+  /** Loads the deadlines of every state in the background if prewarming is enabled. */
+  @Override
+  public void init() {
+    if (Boolean.getBoolean(PREWARM_PROPERTY)) {
+      for (String state : STATE_MAP.keySet()) {
+        executor.execute(() -> deadlinesCache.refresh(state));
+      }
+    }
+  }
 
   /**
    * Retrieves the deadllines for mail in voting and registration for a given state using the FVAP
-   * API
+   * API. Responses are served from memory once a state has been loaded; until then the request is
+   * suspended while the state is loaded.
    *
    * @param request the HTTP request containing the user's state
    * @param response the HTTP response, contains error message if an error occurs
@@ -115,16 +186,56 @@ public final class DeadlinesServlet extends HttpServlet {
       return;
     }
 
-    String fullStateName = STATE_MAP.get(stateOptional.get());
+    String state = stateOptional.get();
+    Optional<String> json = Optional.ofNullable(deadlinesCache.getIfPresent(state));
+    if (!json.isPresent()) {
+      CompletableFuture<Optional<String>> loadCall =
+          UpstreamCalls.start(request, DEADLINES_CALL, () -> loadDeadlinesJson(state));
+      if (!UpstreamCalls.isDoneOrSuspend(request, loadCall)) {
+        return;
+      }
+      json = UpstreamCalls.getResultOrEmpty(loadCall);
+    }
 
-    JSONObject deadlinesObject =
+    if (!json.isPresent()) {
+      response.setContentType("text/html");
+      response
+          .getWriter()
+          .println(String.format("Deadlines for %s could not be retrieved.", stateOptional.get()));
+      response.setStatus(400);
+      return;
+    }
+
+    response.setContentType("application/json;");
+    response.getWriter().println(json.get());
+  }
+
+  // Loads a state into the cache. Returns an empty Optional if its deadlines could not be
+  // retrieved.
+  private Optional<String> loadDeadlinesJson(String state) {
+    try {
+      return Optional.of(deadlinesCache.get(state));
+    } catch (ExecutionException | UncheckedExecutionException e) {
+      logger.log(Level.WARNING, "Could not load deadlines for " + state, e.getCause());
+      return Optional.empty();
+    }
+  }
+
+  // Fetches the deadlines of a state from the FVAP API and serializes them into a response.
+  private static String fetchDeadlinesJson(String state) throws IOException {
+    String fullStateName = STATE_MAP.get(state);
+
+    Optional<JSONObject> deadlinesObject =
         ServletUtils.readFromApiUrl(
-                String.format(BASE_URL + "/%s/%s", fullStateName, DEADLINES_PARAM),
-                /* isXml= */ true)
-            .get();
+            String.format(BASE_URL + "/%s/%s", fullStateName, DEADLINES_PARAM), /* isXml= */ true);
+
+    if (!deadlinesObject.isPresent()) {
+      throw new IOException("Could not retrieve deadlines for " + fullStateName);
+    }
 
     JSONArray dates =
         deadlinesObject
+            .get()
             .getJSONObject("evag")
             .getJSONObject("deadline-dates")
             .getJSONArray("deadline-date");
@@ -133,10 +244,6 @@ public final class DeadlinesServlet extends HttpServlet {
     deadlines.put("dates", dates);
     deadlines.put("state", fullStateName.replace("%20", " "));
 
-    Gson gson = new Gson();
-    String json = gson.toJson(deadlines);
-
-    response.setContentType("application/json;");
-    response.getWriter().println(json);
+    return JsonWriterUtils.getGson().toJson(deadlines);
   }
 }
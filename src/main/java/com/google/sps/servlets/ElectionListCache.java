@@ -0,0 +1,140 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.common.base.Ticker;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.Hashing;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An in-memory cache of the serialized /election responses, with an entity tag for each so that
+ * clients can revalidate their copy instead of downloading the list again.
+ *
+ * <p>The cache is dropped whenever an Election Entity is written through this instance. Other
+ * instances do not hear about that, so responses also expire after a short time. Entity tags are a
+ * hash of the response, so every instance gives the same list the same tag.
+ */
+public final class ElectionListCache {
+  private static final Duration DEFAULT_TIME_TO_LIVE = Duration.ofMinutes(1);
+  // The number of entity tag characters kept from the SHA-256 hash of a response.
+  private static final int ENTITY_TAG_LENGTH = 32;
+  private static final ElectionListCache INSTANCE =
+      new ElectionListCache(DEFAULT_TIME_TO_LIVE, Ticker.systemTicker());
+
+  private final Cache<String, Listing> listings;
+  // Counts invalidations, so that a response built from Datastore reads that started before an
+  // invalidation is not cached after it.
+  private final AtomicLong generation = new AtomicLong();
+
+  /** A serialized election list and its entity tag. */
+  public static final class Listing {
+    private final String json;
+    private final String entityTag;
+
+    private Listing(String json) {
+      this.json = json;
+      this.entityTag =
+          "\""
+              + Hashing.sha256()
+                  .hashString(json, StandardCharsets.UTF_8)
+                  .toString()
+                  .substring(0, ENTITY_TAG_LENGTH)
+              + "\"";
+    }
+
+    public String getJson() {
+      return json;
+    }
+
+    /** Returns the strong entity tag of the response, including its quotes. */
+    public String getEntityTag() {
+      return entityTag;
+    }
+  }
+
+  /**
+   * Creates an empty cache. The servlets that write Elections invalidate the shared instance, so
+   * there is only ever the one.
+   *
+   * @param timeToLive how long a response is served after it was built
+   * @param ticker the time source used to expire responses
+   */
+  private ElectionListCache(Duration timeToLive, Ticker ticker) {
+    this.listings =
+        CacheBuilder.newBuilder()
+            .expireAfterWrite(timeToLive.toNanos(), TimeUnit.NANOSECONDS)
+            .ticker(ticker)
+            .build();
+  }
+
+  /** Returns the cache shared by every request. */
+  public static ElectionListCache getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * Finds the cached response of a view of the election list.
+   *
+   * @param view identifies the form of the list, since the same elections can be written in more
+   *     than one way
+   * @return the response, or an empty Optional if it is not cached
+   */
+  public Optional<Listing> get(String view) {
+    return Optional.ofNullable(listings.getIfPresent(view));
+  }
+
+  /**
+   * Returns the current generation of the cache, to be read before reading the Election Entities a
+   * response is built from and passed to put.
+   */
+  public long getGeneration() {
+    return generation.get();
+  }
+
+  /**
+   * Caches the response of a view of the election list, unless the cache was invalidated while the
+   * response was being built.
+   *
+   * @param view identifies the form of the list
+   * @param json the response
+   * @param builtFromGeneration the value of getGeneration before the response was built
+   * @return the response with its entity tag, whether or not it was cached
+   */
+  public Listing put(String view, String json, long builtFromGeneration) {
+    Listing listing = new Listing(json);
+    if (generation.get() != builtFromGeneration) {
+      return listing;
+    }
+
+    listings.put(view, listing);
+    // An invalidation may have run between the check above and the put, and missed this entry.
+    if (generation.get() != builtFromGeneration) {
+      listings.asMap().remove(view, listing);
+    }
+    return listing;
+  }
+
+  /** Drops every cached response, for example after an Election Entity was written. */
+  public void invalidate() {
+    generation.incrementAndGet();
+    listings.invalidateAll();
+  }
+}
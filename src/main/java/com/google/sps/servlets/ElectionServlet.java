@@ -17,18 +17,26 @@ package com.google.sps.servlets;
 import com.google.appengine.api.datastore.DatastoreService;
 import com.google.appengine.api.datastore.DatastoreServiceFactory;
 import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
 import com.google.appengine.api.datastore.Key;
-import com.google.appengine.api.datastore.KeyFactory;
 import com.google.appengine.api.datastore.PreparedQuery;
+import com.google.appengine.api.datastore.PropertyProjection;
 import com.google.appengine.api.datastore.Query;
-import com.google.appengine.api.datastore.Transaction;
-import com.google.appengine.api.datastore.TransactionOptions;
-import com.google.gson.Gson;
+import com.google.auto.value.AutoValue;
+import com.google.common.collect.ImmutableList;
+import com.google.gson.stream.JsonWriter;
 import com.google.sps.data.Election;
+import com.google.sps.data.JsonWriterUtils;
 import java.io.IOException;
+import java.io.StringWriter;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.logging.Logger;
 import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
@@ -46,10 +54,36 @@ import org.json.JSONObject;
 public final class ElectionServlet extends HttpServlet {
 
   private static final String BASE_URL = "https://www.googleapis.com/civicinfo/v2/elections?key=%s";
+  private static final Logger logger = Logger.getLogger(ElectionServlet.class.getName());
+  private static final String FULL_VIEW = "full";
+  // Only the fields lists of elections show, read with a projection query.
+  private static final String LIST_VIEW = "list";
+  private static final ImmutableList<String> LIST_VIEW_PROPERTIES =
+      ImmutableList.of(
+          Election.ID_ENTITY_KEYWORD,
+          Election.NAME_ENTITY_KEYWORD,
+          Election.DATE_ENTITY_KEYWORD,
+          Election.SCOPE_ENTITY_KEYWORD);
+  // Clients may keep the list, but must check it is still current before using it.
+  private static final String CACHE_CONTROL = "public, no-cache";
+
+  /** How many stored elections a sync added, updated and removed. */
+  @AutoValue
+  abstract static class SyncResult {
+    abstract int getAdded();
+
+    abstract int getUpdated();
+
+    abstract int getRemoved();
+
+    static SyncResult create(int added, int updated, int removed) {
+      return new AutoValue_ElectionServlet_SyncResult(added, updated, removed);
+    }
+  }
 
   /**
-   * Makes an API call to electionQuery in the Google Civic Information API. Deletes existing
-   * Election Entities from Datastore and creates and stores new Entities from the API response.
+   * Makes an API call to electionQuery in the Google Civic Information API and syncs the stored
+   * Election Entities with the API response; see syncElections.
    *
    * @param request the HTTP request containing user address and electionId as parameters
    * @param response the HTTP response, contains error message if an error occurs
@@ -68,41 +102,131 @@ public final class ElectionServlet extends HttpServlet {
     JSONArray electionQueryArray =
         electionQueryData.get().getJSONArray(Election.ELECTIONS_JSON_KEYWORD);
 
-    DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
-    PreparedQuery results = datastore.prepare(new Query(Election.ENTITY_KIND));
-    // Have to make this a cross-group transaction because Election contains Embedded Entities for
-    // its PollingStations
-    Transaction txn = datastore.beginTransaction(TransactionOptions.Builder.withXG(true));
-    try {
-      for (Entity entity : results.asIterable()) {
-        Key electionKey = KeyFactory.createKey(Election.ENTITY_KIND, entity.getKey().getId());
-        datastore.delete(electionKey);
+    List<Election> elections = new ArrayList<>();
+    for (Object obj : electionQueryArray) {
+      elections.add(Election.fromElectionQuery((JSONObject) obj));
+    }
+
+    SyncResult result = syncElections(DatastoreServiceFactory.getDatastoreService(), elections);
+    logger.info(
+        String.format(
+            "Synced elections: %d added, %d updated, %d removed.",
+            result.getAdded(), result.getUpdated(), result.getRemoved()));
+  }
+
+  /**
+   * Makes the stored Election Entities match the elections from an electionQuery, matching them by
+   * their Civic Information API IDs. New elections are added and elections no longer listed are
+   * removed, in batches. Elections whose name, date or scope changed are updated one by one in
+   * their own transactions, keeping the contests, referendums and divisions stored for them.
+   * Unchanged elections are not written at all, so their cached responses stay valid.
+   *
+   * @param datastore the Datastore containing the Election Entities
+   * @param elections the elections listed by the electionQuery
+   * @return how many elections were added, updated and removed
+   */
+  static SyncResult syncElections(DatastoreService datastore, List<Election> elections) {
+    Map<String, Entity> storedById = new HashMap<>();
+    List<Key> removedKeys = new ArrayList<>();
+    for (Entity entity : datastore.prepare(new Query(Election.ENTITY_KIND)).asIterable()) {
+      String id = (String) entity.getProperty(Election.ID_ENTITY_KEYWORD);
+      Entity other = storedById.get(id);
+      // Queries are eventually consistent, so a sync right after another one may have added an
+      // election twice. The copy with the most ballot data is kept.
+      if (other != null && countBallotItems(other) >= countBallotItems(entity)) {
+        removedKeys.add(entity.getKey());
+        continue;
+      }
+      if (other != null) {
+        removedKeys.add(other.getKey());
+      }
+      storedById.put(id, entity);
+    }
+
+    Set<String> listedIds = new HashSet<>();
+    List<Entity> addedEntities = new ArrayList<>();
+    int updated = 0;
+    for (Election election : elections) {
+      if (!listedIds.add(election.getId())) {
+        continue;
       }
 
-      for (Object obj : electionQueryArray) {
-        Election.fromElectionQuery((JSONObject) obj).addToDatastore(datastore);
+      Entity stored = storedById.get(election.getId());
+      if (stored == null) {
+        addedEntities.add(election.toEntity());
+      } else if (!election.hasSameListing(Election.fromEntity(stored))) {
+        try {
+          election.mergeListingIntoDatastore(datastore, stored.getKey());
+          ContestsResponseCache.getInstance().invalidate(election.getId());
+          updated++;
+        } catch (EntityNotFoundException e) {
+          // Another sync removed the election since it was queried, so it is added again.
+          addedEntities.add(election.toEntity());
+        }
       }
+    }
 
-      txn.commit();
-    } finally {
-      if (txn.isActive()) {
-        txn.rollback();
+    int removed = 0;
+    for (Map.Entry<String, Entity> stored : storedById.entrySet()) {
+      if (!listedIds.contains(stored.getKey())) {
+        removedKeys.add(stored.getValue().getKey());
+        ContestsResponseCache.getInstance().invalidate(stored.getKey());
+        removed++;
       }
     }
+
+    ServletUtils.putAllInDatastore(datastore, addedEntities);
+    ServletUtils.deleteAllFromDatastore(datastore, removedKeys);
+    if (!addedEntities.isEmpty() || !removedKeys.isEmpty() || updated > 0) {
+      ElectionListCache.getInstance().invalidate();
+    }
+    for (Entity added : addedEntities) {
+      ContestsResponseCache.getInstance()
+          .invalidate((String) added.getProperty(Election.ID_ENTITY_KEYWORD));
+    }
+
+    return SyncResult.create(addedEntities.size(), updated, removed);
+  }
+
+  private static int countBallotItems(Entity electionEntity) {
+    Election election = Election.fromEntity(electionEntity);
+    return election.getContests().size() + election.getReferendums().size();
   }
 
   /**
    * Retrieves the list of elections still open for voting on a given day in the form of a JSON
-   * object
+   * object. The list is served from memory while no election has changed, and requests whose
+   * If-None-Match header has the list's entity tag are answered with 304 Not Modified.
+   *
+   * <p>With the "view=list" parameter, each election only has its ID, name, date and scope. These
+   * are read with a projection query, so neither the response nor the read grows with the ballots
+   * stored for each election.
    *
    * @param request the HTTP request containing user address and electionId as parameters
    * @param response the HTTP response, contains error message if an error occurs
    */
   @Override
   public void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+    String view = LIST_VIEW.equals(request.getParameter("view")) ? LIST_VIEW : FULL_VIEW;
+    ElectionListCache listCache = ElectionListCache.getInstance();
+    Optional<ElectionListCache.Listing> cachedListing = listCache.get(view);
+    ElectionListCache.Listing listing;
+    if (cachedListing.isPresent()) {
+      listing = cachedListing.get();
+    } else {
+      long cacheGeneration = listCache.getGeneration();
+      DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+      String json =
+          view.equals(LIST_VIEW) ? readListViewJson(datastore) : readFullViewJson(datastore);
+      listing = listCache.put(view, json, cacheGeneration);
+    }
+
+    writeListing(request, response, listing);
+  }
+
+  private static String readFullViewJson(DatastoreService datastore) {
     Query query = new Query(Election.ENTITY_KIND);
 
-    DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
     PreparedQuery results = datastore.prepare(query);
 
     List<Election> elections = new ArrayList<Election>();
@@ -111,10 +235,58 @@ public final class ElectionServlet extends HttpServlet {
       elections.add(Election.fromEntity(entity));
     }
 
-    Gson gson = new Gson();
-    String json = gson.toJson(elections);
+    return JsonWriterUtils.getGson().toJson(elections);
+  }
+
+  private static String readListViewJson(DatastoreService datastore) throws IOException {
+    Query query = new Query(Election.ENTITY_KIND);
+    for (String property : LIST_VIEW_PROPERTIES) {
+      query.addProjection(new PropertyProjection(property, String.class));
+    }
+
+    StringWriter json = new StringWriter();
+    try (JsonWriter writer = JsonWriterUtils.newJsonWriter(json)) {
+      writer.beginArray();
+      for (Entity entity : datastore.prepare(query).asIterable()) {
+        Election.fromEntity(entity).writeListingJson(writer);
+      }
+      writer.endArray();
+    }
+    return json.toString();
+  }
+
+  private static void writeListing(
+      HttpServletRequest request, HttpServletResponse response, ElectionListCache.Listing listing)
+      throws IOException {
+    response.setHeader("ETag", listing.getEntityTag());
+    response.setHeader("Cache-Control", CACHE_CONTROL);
+    if (matchesEntityTag(request.getHeader("If-None-Match"), listing.getEntityTag())) {
+      response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+      return;
+    }
 
     response.setContentType("application/json;");
-    response.getWriter().println(json);
+    response.getWriter().println(listing.getJson());
+  }
+
+  /**
+   * Returns true if an If-None-Match header lists the given entity tag. If-None-Match uses the weak
+   * comparison, so a tag a proxy marked as weak still matches.
+   */
+  static boolean matchesEntityTag(String ifNoneMatch, String entityTag) {
+    if (ifNoneMatch == null) {
+      return false;
+    }
+
+    for (String listedTag : ifNoneMatch.split(",")) {
+      String tag = listedTag.trim();
+      if (tag.startsWith("W/")) {
+        tag = tag.substring(2);
+      }
+      if (tag.equals("*") || tag.equals(entityTag)) {
+        return true;
+      }
+    }
+    return false;
   }
 }
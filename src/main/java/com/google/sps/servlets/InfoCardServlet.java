@@ -17,12 +17,20 @@ package com.google.sps.servlets;
 import com.google.appengine.api.datastore.DatastoreService;
 import com.google.appengine.api.datastore.DatastoreServiceFactory;
 import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.auto.value.AutoValue;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
+import com.google.gson.stream.JsonReader;
 import com.google.sps.data.*;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.util.HashSet;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
@@ -40,7 +48,7 @@ import org.json.JSONObject;
  *
  * <p>TODO(caseyprice): Write unit tests using Mockito framework
  */
-@WebServlet("/info-cards")
+@WebServlet(urlPatterns = "/info-cards", asyncSupported = true)
 public final class InfoCardServlet extends HttpServlet {
   private static final String VOTER_QUERY_URL =
       "https://civicinfo.googleapis.com/civicinfo/v2/voterinfo?address=%s&electionId=%s"
@@ -53,20 +61,70 @@ public final class InfoCardServlet extends HttpServlet {
   private static final String SOURCE_CLASS = InfoCardServlet.class.getName();
   private static final Logger logger = Logger.getLogger(SOURCE_CLASS);
   private static final int SECONDS_PER_HOUR = 3600;
+  private static final String DIVISIONS_CALL = "divisions";
+  private static final String VOTER_INFO_CALL = "voterInfo";
+  // How long the representatives and voterInfoQuery calls may take together.
+  private static final Duration UPSTREAM_DEADLINE = Duration.ofSeconds(10);
+  // How long identical requests wait for the one leading them, which also has to store the ballot.
+  private static final Duration FLIGHT_DEADLINE = Duration.ofSeconds(30);
+  private static final String FLIGHT_ATTRIBUTE = InfoCardServlet.class.getName() + ".flight";
+  private static final String FOLLOWED_RESULT_ATTRIBUTE =
+      InfoCardServlet.class.getName() + ".followedResult";
+  // Separates the address from the election ID in a flight key. Neither can contain it.
+  private static final char KEY_SEPARATOR = '\n';
+
+  // Stands in for the voterInfoQuery call when the address's divisions are known to be stored.
+  private static final CompletableFuture<Optional<ImmutableList<VoterInfoContest>>>
+      VOTER_INFO_NOT_NEEDED = CompletableFuture.completedFuture(Optional.empty());
+
+  private final SingleFlight<String, PutResult> putFlights;
+
+  /** The outcome of a PUT, shared by every identical request made while it was in progress. */
+  @AutoValue
+  abstract static class PutResult {
+    /** The divisions of the address, which are saved in a cookie; empty if they are unknown. */
+    abstract ImmutableSet<String> getDivisions();
+
+    /** Why the ballot of the address could not be stored, if it could not be. */
+    abstract Optional<String> getErrorMessage();
+
+    static Builder builder() {
+      return new AutoValue_InfoCardServlet_PutResult.Builder();
+    }
+
+    @AutoValue.Builder
+    abstract static class Builder {
+      abstract Builder setDivisions(ImmutableSet<String> divisions);
+
+      abstract Builder setErrorMessage(String errorMessage);
+
+      abstract PutResult build();
+    }
+  }
+
+  public InfoCardServlet() {
+    this(new SingleFlight<>());
+  }
+
+  InfoCardServlet(SingleFlight<String, PutResult> putFlights) {
+    this.putFlights = putFlights;
+  }
 
   /**
    * Makes an API call to voterInfoQuery in the Google Civic Information API using the user-chosen
    * address and election ID as parameters. Puts Position and Candidate Entities in Datastore from
    * the response. Finds the chosen Election Entity in the Datastore and fills in properties with
-   * the corresponding API response data.
+   * the corresponding API response data. Both API queries are made at once, and the request is
+   * suspended while they are in flight and runs again from the start once they have finished;
+   * finished queries are not repeated. Requests for the same address and election made while one is
+   * in progress wait for it and respond with its result.
    *
    * @param request the HTTP request containing user address and electionId as parameters
    * @param response the HTTP response, contains error message if an error occurs
    */
   @Override
+  @SuppressWarnings("unchecked")
   public void doPut(HttpServletRequest request, HttpServletResponse response) throws IOException {
-    DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
-
     Optional<String> optionalAddress = ServletUtils.getRequestParam(request, response, "address");
     Optional<String> optionalElectionId =
         ServletUtils.getRequestParam(request, response, "electionId");
@@ -83,35 +141,155 @@ public final class InfoCardServlet extends HttpServlet {
     String address = optionalAddress.get();
     String electionId = optionalElectionId.get();
 
-    String divisionsCallUrl =
-        String.format(
-                REPRESENTATIVE_QUERY_URL,
-                address,
-                ServletUtils.getApiKey(PROJECT_ID, SECRET_MANAGER_ID, VERSION_ID))
-            .replaceAll(" ", "%20");
-    Optional<JSONObject> divisionsInfoData =
-        ServletUtils.readFromApiUrl(divisionsCallUrl, /* isXml= */ false);
+    // Identical requests that arrive while this one is in progress share its result, so the
+    // address is only looked up and the Election only written once.
+    SingleFlight.Flight<PutResult> flight =
+        (SingleFlight.Flight<PutResult>) request.getAttribute(FLIGHT_ATTRIBUTE);
+    if (flight == null) {
+      flight = putFlights.join(flightKey(address, electionId));
+      request.setAttribute(FLIGHT_ATTRIBUTE, flight);
+      if (flight.isLeader()) {
+        // Frees the key even if the leading request never finishes.
+        UpstreamCalls.setDeadline(FLIGHT_DEADLINE, flight.getResult());
+      } else {
+        // Each joining request waits on its own copy of the result, so that nothing done to it on
+        // behalf of this request reaches the leading request or the other joining ones.
+        CompletableFuture<PutResult> followedResult = flight.getResult().thenApply(r -> r);
+        request.setAttribute(FOLLOWED_RESULT_ATTRIBUTE, followedResult);
+        UpstreamCalls.setDeadline(FLIGHT_DEADLINE, followedResult);
+      }
+    }
+
+    if (!flight.isLeader()) {
+      CompletableFuture<PutResult> followedResult =
+          (CompletableFuture<PutResult>) request.getAttribute(FOLLOWED_RESULT_ATTRIBUTE);
+      if (!UpstreamCalls.isDoneOrSuspend(request, followedResult)) {
+        return;
+      }
+      logger.logp(Level.INFO, SOURCE_CLASS, "doPut", "Joined an identical PUT in progress.");
+      PutResult result;
+      try {
+        result = UpstreamCalls.getResult(followedResult);
+      } catch (IOException | RuntimeException e) {
+        // The leading request failed or missed the flight deadline, so answer the way it would have
+        // had its voterInfoQuery call failed.
+        logger.logp(
+            Level.WARNING, SOURCE_CLASS, "doPut", "The identical PUT in progress failed.", e);
+        result =
+            PutResult.builder()
+                .setDivisions(ImmutableSet.of())
+                .setErrorMessage(
+                    "Could not query with electionId "
+                        + electionId
+                        + " and address "
+                        + address
+                        + ".")
+                .build();
+      }
+      writePutResult(response, result);
+      return;
+    }
 
-    if (!divisionsInfoData.isPresent()) {
-      response.setContentType("text/html");
-      response
-          .getWriter()
-          .println("Could not get division information for address " + address + ".");
-      response.setStatus(400);
+    Optional<PutResult> result;
+    try {
+      result = putBallot(request, address, electionId);
+    } catch (IOException | RuntimeException e) {
+      flight.getResult().completeExceptionally(e);
+      throw e;
+    }
+    if (!result.isPresent()) {
       return;
     }
 
-    JSONObject addressDivisions = divisionsInfoData.get().getJSONObject("divisions");
+    flight.getResult().complete(result.get());
+    writePutResult(response, result.get());
+  }
+
+  /** Returns the key identical PUTs share a flight under. */
+  static String flightKey(String address, String electionId) {
+    return AddressDivisionsCache.normalizeAddress(address) + KEY_SEPARATOR + electionId;
+  }
+
+  /**
+   * Looks up the divisions and ballot of an address and adds the ballot to the stored Election.
+   *
+   * @return the outcome of the PUT, or an empty Optional if the request was suspended
+   */
+  private Optional<PutResult> putBallot(
+      HttpServletRequest request, String address, String electionId) throws IOException {
+    DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+
+    AddressDivisionsCache divisionsCache = AddressDivisionsCache.getInstance();
+    Optional<ImmutableSet<String>> cachedDivisions = divisionsCache.get(datastore, address);
+    String apiKey = ServletUtils.getApiKey(PROJECT_ID, SECRET_MANAGER_ID, VERSION_ID);
+
+    CompletableFuture<Optional<ImmutableSet<String>>> divisionsCall =
+        cachedDivisions.isPresent()
+            ? CompletableFuture.completedFuture(cachedDivisions)
+            : UpstreamCalls.start(
+                request,
+                DIVISIONS_CALL,
+                () ->
+                    ServletUtils.readFromApiUrl(
+                            String.format(REPRESENTATIVE_QUERY_URL, address, apiKey)
+                                .replaceAll(" ", "%20"),
+                            /* isXml= */ false)
+                        .map(InfoCardServlet::getDivisionIds));
+    // The voterInfoQuery call is only needed if the address has divisions the election has not
+    // been queried for yet. If the divisions are not cached, it is made alongside the
+    // representatives call and the Election lookup rather than after them, and cancelled if it
+    // turns out not to be needed.
+    CompletableFuture<Optional<ImmutableList<VoterInfoContest>>> voterInfoCall =
+        cachedDivisions.isPresent()
+            ? VOTER_INFO_NOT_NEEDED
+            : startVoterInfoCall(request, address, electionId, apiKey);
 
     Optional<Entity> optionalEntity = ServletUtils.findElectionInDatastore(datastore, electionId);
 
+    if (optionalEntity.isPresent()) {
+      ImmutableSet<String> divisionsQueried =
+          ImmutableSet.copyOf(Election.fromEntity(optionalEntity.get()).getDivisions());
+      if (cachedDivisions.isPresent()) {
+        if (!divisionsQueried.containsAll(cachedDivisions.get())) {
+          voterInfoCall = startVoterInfoCall(request, address, electionId, apiKey);
+        }
+      } else {
+        CompletableFuture<Optional<ImmutableList<VoterInfoContest>>> speculativeCall =
+            voterInfoCall;
+        divisionsCall.thenAccept(
+            divisions -> {
+              if (divisions.isPresent() && divisionsQueried.containsAll(divisions.get())) {
+                speculativeCall.cancel(/* mayInterruptIfRunning= */ false);
+              }
+            });
+      }
+    }
+    UpstreamCalls.setDeadline(UPSTREAM_DEADLINE, divisionsCall, voterInfoCall);
+
+    if (!UpstreamCalls.isDoneOrSuspend(request, divisionsCall, voterInfoCall)) {
+      return Optional.empty();
+    }
+
+    Optional<ImmutableSet<String>> addressDivisions = UpstreamCalls.getResultOrEmpty(divisionsCall);
+
+    if (!addressDivisions.isPresent()) {
+      return Optional.of(
+          PutResult.builder()
+              .setDivisions(ImmutableSet.of())
+              .setErrorMessage("Could not get division information for address " + address + ".")
+              .build());
+    }
+
+    if (!cachedDivisions.isPresent()) {
+      divisionsCache.put(datastore, address, addressDivisions.get());
+    }
+
     if (!optionalEntity.isPresent()) {
-      response.setContentType("text/html");
-      response
-          .getWriter()
-          .println("Could not find election with ID " + electionId + " in Datastore.");
-      response.setStatus(400);
-      return;
+      return Optional.of(
+          PutResult.builder()
+              .setDivisions(ImmutableSet.of())
+              .setErrorMessage("Could not find election with ID " + electionId + " in Datastore.")
+              .build());
     }
 
     logger.logp(Level.INFO, SOURCE_CLASS, "doPut", "Got election ID and user address.");
@@ -120,9 +298,7 @@ public final class InfoCardServlet extends HttpServlet {
     Election election = Election.fromEntity(electionEntity);
 
     ImmutableSet<String> divisionsQueried = ImmutableSet.copyOf(election.getDivisions());
-    ImmutableSet<String> addressDivisionsSet = ImmutableSet.copyOf(addressDivisions.keys());
-
-    response.addCookie(generateDivisionsCookie(addressDivisionsSet));
+    ImmutableSet<String> addressDivisionsSet = addressDivisions.get();
 
     if (divisionsQueried.containsAll(addressDivisionsSet)) {
       logger.logp(
@@ -130,41 +306,76 @@ public final class InfoCardServlet extends HttpServlet {
           SOURCE_CLASS,
           "doPut",
           "Address ballot info already in datastore. Exiting doPut.");
-      return;
+      return Optional.of(PutResult.builder().setDivisions(addressDivisionsSet).build());
     }
 
-    HashSet<String> updatedDivisions = new HashSet<>(divisionsQueried);
     ImmutableSet<String> newDivisions =
         getRelativeComplementSet(addressDivisionsSet, divisionsQueried);
-    updatedDivisions.addAll(newDivisions);
-    electionEntity.setProperty("divisions", updatedDivisions);
-    electionEntity.setProperty("contests", new HashSet<Long>());
-    electionEntity.setProperty("referendums", new HashSet<Long>());
-
-    String url =
-        String.format(
-                VOTER_QUERY_URL,
-                address,
-                electionId,
-                ServletUtils.getApiKey(PROJECT_ID, SECRET_MANAGER_ID, VERSION_ID))
-            .replaceAll(" ", "%20");
-
-    Optional<JSONObject> voterInfoData = ServletUtils.readFromApiUrl(url, /* isXml= */ false);
-    if (!voterInfoData.isPresent()) {
-      response.setContentType("text/html");
-      response
-          .getWriter()
-          .println(
-              "Could not query with electionId " + electionId + " and address " + address + ".");
-      response.setStatus(400);
-      return;
+
+    Optional<ImmutableList<VoterInfoContest>> voterInfoContests =
+        UpstreamCalls.getResultOrEmpty(voterInfoCall);
+    if (!voterInfoContests.isPresent()) {
+      return Optional.of(
+          PutResult.builder()
+              .setDivisions(addressDivisionsSet)
+              .setErrorMessage(
+                  "Could not query with electionId " + electionId + " and address " + address + ".")
+              .build());
     }
 
     logger.logp(Level.INFO, SOURCE_CLASS, "doPut", "Performing PUT on election from API response.");
-    election
-        .fromVoterInfoQuery(datastore, voterInfoData.get(), newDivisions)
-        .putInDatastore(datastore, electionEntity);
+    Election updatedElection =
+        election.fromVoterInfoQuery(datastore, voterInfoContests.get(), newDivisions);
+
+    // Other requests may have added the ballots of other addresses to this election since it was
+    // read, so merge into the stored Entity rather than overwriting it.
+    try {
+      updatedElection.mergeIntoDatastore(datastore, electionEntity.getKey());
+    } catch (EntityNotFoundException e) {
+      return Optional.of(
+          PutResult.builder()
+              .setDivisions(addressDivisionsSet)
+              .setErrorMessage("Could not find election with ID " + electionId + " in Datastore.")
+              .build());
+    }
+    // The election now lists the new ballot, so its cached responses are stale.
+    ContestsResponseCache.getInstance().invalidate(electionId);
+    ElectionListCache.getInstance().invalidate();
     logger.logp(Level.INFO, SOURCE_CLASS, "doPut", "PUT /info-cards is complete.");
+    return Optional.of(PutResult.builder().setDivisions(addressDivisionsSet).build());
+  }
+
+  // Only the contests are read out of the response as it streams in. Candidate descriptions are
+  // looked up once the response has been fully read.
+  private static CompletableFuture<Optional<ImmutableList<VoterInfoContest>>> startVoterInfoCall(
+      HttpServletRequest request, String address, String electionId, String apiKey) {
+    return UpstreamCalls.start(
+        request,
+        VOTER_INFO_CALL,
+        () ->
+            ServletUtils.readFromApiUrl(
+                String.format(VOTER_QUERY_URL, address, electionId, apiKey).replaceAll(" ", "%20"),
+                body ->
+                    VoterInfoContest.listFromVoterInfoQuery(
+                        new JsonReader(new InputStreamReader(body, StandardCharsets.UTF_8)))));
+  }
+
+  /** Returns the OCD division IDs in a representatives query response. */
+  private static ImmutableSet<String> getDivisionIds(JSONObject representativesResponse) {
+    return ImmutableSet.copyOf(representativesResponse.getJSONObject("divisions").keySet());
+  }
+
+  private static void writePutResult(HttpServletResponse response, PutResult result)
+      throws IOException {
+    if (!result.getDivisions().isEmpty()) {
+      response.addCookie(generateDivisionsCookie(result.getDivisions()));
+    }
+
+    if (result.getErrorMessage().isPresent()) {
+      response.setContentType("text/html");
+      response.getWriter().println(result.getErrorMessage().get());
+      response.setStatus(400);
+    }
   }
 
   /** Helper function that saves divisions returned by representative query in a cookie. */
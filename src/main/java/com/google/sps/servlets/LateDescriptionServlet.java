@@ -0,0 +1,146 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.RetryOptions;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.common.collect.Lists;
+import com.google.sps.data.CandidateEnricher;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * This servlet runs the tasks queued for candidates that were stored before their platform
+ * descriptions arrived, filling in each description and dropping the cached /contests responses of
+ * the candidate's election.
+ */
+@WebServlet(LateDescriptionServlet.URL)
+public final class LateDescriptionServlet extends HttpServlet {
+  static final String URL = "/tasks/store-late-description";
+
+  private static final String SOURCE_CLASS = LateDescriptionServlet.class.getName();
+  private static final Logger logger = Logger.getLogger(SOURCE_CLASS);
+  // App Engine sets this header on task requests and strips it from requests made by anyone else.
+  private static final String QUEUE_NAME_HEADER = "X-AppEngine-QueueName";
+  // Gives the lookup that missed the ballot's deadline time to finish and cache its description.
+  private static final Duration TASK_DELAY = Duration.ofMinutes(1);
+  private static final int TASK_RETRY_LIMIT = 3;
+  // The most tasks a queue accepts in one call.
+  private static final int MAX_TASKS_PER_ADD = 100;
+
+  private final CandidateEnricher enricher;
+  private final ContestsResponseCache responseCache;
+
+  public LateDescriptionServlet() {
+    this(CandidateEnricher.getInstance(), ContestsResponseCache.getInstance());
+  }
+
+  public LateDescriptionServlet(CandidateEnricher enricher, ContestsResponseCache responseCache) {
+    this.enricher = enricher;
+    this.responseCache = responseCache;
+  }
+
+  /**
+   * Queues a task for each candidate stored without its platform description. Used as the
+   * LateDescriptionQueue of the shared CandidateEnricher.
+   *
+   * @param electionId the ID of the election whose ballot the candidates were stored for
+   * @param candidateNames the name of each candidate, keyed by its Candidate Entity's key
+   */
+  public static void queueTasks(String electionId, Map<Key, String> candidateNames) {
+    List<TaskOptions> tasks = new ArrayList<>();
+    for (Map.Entry<Key, String> candidate : candidateNames.entrySet()) {
+      tasks.add(
+          TaskOptions.Builder.withUrl(URL)
+              .countdownMillis(TASK_DELAY.toMillis())
+              .param("candidateKey", KeyFactory.keyToString(candidate.getKey()))
+              .param("candidateName", candidate.getValue())
+              .param("electionId", electionId)
+              .retryOptions(RetryOptions.Builder.withTaskRetryLimit(TASK_RETRY_LIMIT)));
+    }
+
+    try {
+      for (List<TaskOptions> batch : Lists.partition(tasks, MAX_TASKS_PER_ADD)) {
+        QueueFactory.getDefaultQueue().add(batch);
+      }
+    } catch (RuntimeException e) {
+      // The candidates keep their empty descriptions until their ballot is stored again.
+      logger.logp(
+          Level.WARNING,
+          SOURCE_CLASS,
+          "queueTasks",
+          "Could not queue the late descriptions of election " + electionId,
+          e);
+    }
+  }
+
+  /**
+   * Stores the platform description of the candidate in the task. A failed lookup is answered with
+   * a 503 so that the task is retried.
+   *
+   * @param request the task request containing candidateKey, candidateName and electionId as
+   *     parameters
+   * @param response the HTTP response
+   */
+  @Override
+  public void doPost(HttpServletRequest request, HttpServletResponse response) throws IOException {
+    if (request.getHeader(QUEUE_NAME_HEADER) == null) {
+      response.setStatus(403);
+      logger.logp(
+          Level.WARNING,
+          SOURCE_CLASS,
+          "doPost",
+          "Rejected a late description request not from a task queue.");
+      return;
+    }
+
+    Optional<String> candidateKeyOptional =
+        ServletUtils.getRequestParam(request, response, "candidateKey");
+    Optional<String> candidateNameOptional =
+        ServletUtils.getRequestParam(request, response, "candidateName");
+    Optional<String> electionIdOptional =
+        ServletUtils.getRequestParam(request, response, "electionId");
+    if (!candidateKeyOptional.isPresent()
+        || !candidateNameOptional.isPresent()
+        || !electionIdOptional.isPresent()) {
+      return;
+    }
+
+    if (!enricher.storeLateDescription(
+        DatastoreServiceFactory.getDatastoreService(),
+        KeyFactory.stringToKey(candidateKeyOptional.get()),
+        candidateNameOptional.get())) {
+      response.setStatus(503);
+      return;
+    }
+
+    // Cached /contests responses of the election may still show the candidate without it.
+    responseCache.invalidate(electionIdOptional.get());
+  }
+}
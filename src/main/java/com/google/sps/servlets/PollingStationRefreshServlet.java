@@ -0,0 +1,106 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.sps.data.PollingStation;
+import com.google.sps.data.PollingStationStore;
+import java.io.IOException;
+import java.util.List;
+import java.util.Optional;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * This servlet runs the tasks PollingStationServlet queues when it serves stale stored polling
+ * stations, looking the stations up again and storing them for the next request.
+ */
+@WebServlet(PollingStationRefreshServlet.URL)
+public final class PollingStationRefreshServlet extends HttpServlet {
+  static final String URL = "/tasks/refresh-polling-stations";
+
+  private static final String SOURCE_CLASS = PollingStationRefreshServlet.class.getName();
+  private static final Logger logger = Logger.getLogger(SOURCE_CLASS);
+  // App Engine sets this header on task requests and strips it from requests made by anyone else.
+  private static final String QUEUE_NAME_HEADER = "X-AppEngine-QueueName";
+
+  private final PollingStationStore store;
+
+  public PollingStationRefreshServlet() {
+    this(PollingStationStore.getInstance());
+  }
+
+  public PollingStationRefreshServlet(PollingStationStore store) {
+    this.store = store;
+  }
+
+  /**
+   * Looks up the polling stations of the election for the address in the task and stores them. A
+   * failed lookup is answered with a 503 so that the task is retried.
+   *
+   * @param request the task request containing address and electionId as parameters
+   * @param response the HTTP response
+   */
+  @Override
+  public void doPost(HttpServletRequest request, HttpServletResponse response) throws IOException {
+    if (request.getHeader(QUEUE_NAME_HEADER) == null) {
+      response.setStatus(403);
+      logger.logp(
+          Level.WARNING,
+          SOURCE_CLASS,
+          "doPost",
+          "Rejected a refresh request not from a task queue.");
+      return;
+    }
+
+    Optional<String> electionIdOptional =
+        ServletUtils.getRequestParam(request, response, "electionId");
+    Optional<String> addressOptional = ServletUtils.getRequestParam(request, response, "address");
+    if (!electionIdOptional.isPresent() || !addressOptional.isPresent()) {
+      return;
+    }
+
+    String electionId = electionIdOptional.get();
+    Optional<List<PollingStation>> pollingStations;
+    try {
+      pollingStations =
+          PollingStationServlet.queryPollingStations(addressOptional.get(), electionId);
+    } catch (IOException e) {
+      logger.logp(
+          Level.WARNING,
+          SOURCE_CLASS,
+          "doPost",
+          "Could not refresh the polling stations of election " + electionId,
+          e);
+      pollingStations = Optional.empty();
+    }
+
+    // The stored stations are still served until they reach their maximum age.
+    if (!pollingStations.isPresent()) {
+      response.setStatus(503);
+      return;
+    }
+
+    store.put(
+        DatastoreServiceFactory.getDatastoreService(),
+        electionId,
+        addressOptional.get(),
+        pollingStations.get());
+  }
+}
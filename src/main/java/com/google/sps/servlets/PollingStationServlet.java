@@ -14,24 +14,43 @@
 
 package com.google.sps.servlets;
 
-import com.google.gson.Gson;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.RetryOptions;
+import com.google.appengine.api.taskqueue.TaskAlreadyExistsException;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ListMultimap;
+import com.google.common.hash.Hashing;
+import com.google.common.primitives.Doubles;
+import com.google.common.primitives.Ints;
+import com.google.gson.stream.JsonReader;
+import com.google.sps.data.AddressDivisionsCache;
+import com.google.sps.data.JsonWriterUtils;
 import com.google.sps.data.PollingStation;
+import com.google.sps.data.PollingStationStore;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import org.json.JSONArray;
-import org.json.JSONObject;
 
 /**
  * This servlet is used to retrieve the information on polling stations that an eligible voter can
  * use to vote in a given election.
  */
-@WebServlet("/polling-stations")
+@WebServlet(urlPatterns = "/polling-stations", asyncSupported = true)
 public final class PollingStationServlet extends HttpServlet {
 
   private static final String POLLING_STATION_QUERY_URL =
@@ -40,11 +59,36 @@ public final class PollingStationServlet extends HttpServlet {
   private static final String PROJECT_ID = "112408856470";
   private static final String SECRET_MANAGER_ID = "election-api-key";
   private static final String VERSION_ID = "1";
+  private static final String POLLING_STATIONS_CALL = "pollingStations";
+  private static final int DEFAULT_NEAREST_COUNT = 5;
+  private static final int MAX_NEAREST_COUNT = 50;
+  private static final ImmutableList<String> LOCATION_TYPES =
+      ImmutableList.of("earlyVoteSites", "dropOffLocations", "pollingLocations");
+  private static final int REFRESH_RETRY_LIMIT = 3;
+  private static final Logger logger = Logger.getLogger(PollingStationServlet.class.getName());
+
+  private final PollingStationStore store;
+
+  public PollingStationServlet() {
+    this(PollingStationStore.getInstance());
+  }
+
+  public PollingStationServlet(PollingStationStore store) {
+    this.store = store;
+  }
 
   /**
    * If there is an electionID present in the website URL, this method retrieves the polling
    * stations that can be used to vote in the election represented by that electionID; these polling
-   * station objects are instantiated after a call to the InfoCardServlet.
+   * station objects are instantiated after a call to the InfoCardServlet. The request is suspended
+   * while the Civic Information API is queried, and served again once the query has finished.
+   *
+   * <p>If stations are stored for the address, they are served without querying the API. Stored
+   * stations past their refresh interval are still served, and a task is queued to look them up
+   * again.
+   *
+   * <p>If the request has "lat" and "lng" parameters instead of an address, the "k" stations of the
+   * election nearest to that location are returned, nearest first, from the stations stored so far.
    *
    * @param request the HTTP request containing user address and electionId as parameters
    * @param response the HTTP response, contains error message if an error occurs
@@ -54,6 +98,13 @@ public final class PollingStationServlet extends HttpServlet {
     Optional<String> electionIdOptional =
         ServletUtils.getRequestParam(request, response, "electionId");
 
+    if (request.getParameter("lat") != null || request.getParameter("lng") != null) {
+      if (electionIdOptional.isPresent()) {
+        writeNearestPollingStations(request, response, electionIdOptional.get());
+      }
+      return;
+    }
+
     Optional<String> addressOptional = ServletUtils.getRequestParam(request, response, "address");
 
     if (!electionIdOptional.isPresent() || !addressOptional.isPresent()) {
@@ -63,45 +114,167 @@ public final class PollingStationServlet extends HttpServlet {
     String electionId = electionIdOptional.get();
     String address = addressOptional.get();
 
-    String url =
-        String.format(
-                POLLING_STATION_QUERY_URL,
-                address,
-                electionId,
-                ServletUtils.getApiKey(PROJECT_ID, SECRET_MANAGER_ID, VERSION_ID))
-            .replaceAll(" ", "%20");
+    DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+    Optional<PollingStationStore.StoredStations> stored = store.get(datastore, electionId, address);
+    if (stored.isPresent()) {
+      if (stored.get().isStale()) {
+        queueRefresh(address, electionId, stored.get());
+      }
+      writePollingStations(response, stored.get().getStations());
+      return;
+    }
 
-    Optional<JSONObject> pollingInfoData = ServletUtils.readFromApiUrl(url, /* isXml= */ false);
-    List<PollingStation> pollingStations = new ArrayList<PollingStation>();
+    CompletableFuture<Optional<List<PollingStation>>> pollingStationsCall =
+        UpstreamCalls.start(
+            request, POLLING_STATIONS_CALL, () -> queryPollingStations(address, electionId));
+    if (!UpstreamCalls.isDoneOrSuspend(request, pollingStationsCall)) {
+      return;
+    }
 
-    if (!pollingInfoData.isPresent()) {
+    Optional<List<PollingStation>> pollingStations =
+        UpstreamCalls.getResultOrEmpty(pollingStationsCall);
+
+    if (!pollingStations.isPresent()) {
       response.setContentType("text/html");
       response.getWriter().println("Polling locations for " + address + " were not found.");
       response.setStatus(400);
       return;
     }
 
-    JSONObject pollingInfo = pollingInfoData.get();
+    store.put(datastore, electionId, address, pollingStations.get());
+
+    writePollingStations(response, pollingStations.get());
+  }
 
-    addToPollingStationList(pollingStations, "earlyVoteSites", pollingInfo);
-    addToPollingStationList(pollingStations, "dropOffLocations", pollingInfo);
-    addToPollingStationList(pollingStations, "pollingLocations", pollingInfo);
+  private void writeNearestPollingStations(
+      HttpServletRequest request, HttpServletResponse response, String electionId)
+      throws IOException {
+    Double latitude = parseDouble(request.getParameter("lat"));
+    Double longitude = parseDouble(request.getParameter("lng"));
+    Integer count =
+        request.getParameter("k") == null
+            ? Integer.valueOf(DEFAULT_NEAREST_COUNT)
+            : Ints.tryParse(request.getParameter("k"));
 
-    Gson gson = new Gson();
-    String json = gson.toJson(pollingStations);
+    // Written as "not within range" so that NaN coordinates are rejected too.
+    if (latitude == null
+        || longitude == null
+        || !(Math.abs(latitude) <= 90)
+        || !(Math.abs(longitude) <= 180)
+        || count == null
+        || count < 1
+        || count > MAX_NEAREST_COUNT) {
+      response.setContentType("text/html");
+      response
+          .getWriter()
+          .println(
+              String.format(
+                  "Invalid lat, lng or k in the query URL; k must be between 1 and %d.",
+                  MAX_NEAREST_COUNT));
+      response.setStatus(400);
+      return;
+    }
+
+    DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+    writePollingStations(
+        response, store.getIndex(datastore, electionId).findNearest(latitude, longitude, count));
+  }
+
+  private static Double parseDouble(String value) {
+    return value == null ? null : Doubles.tryParse(value);
+  }
+
+  private static void writePollingStations(
+      HttpServletResponse response, List<PollingStation> pollingStations) throws IOException {
+    String json = JsonWriterUtils.getGson().toJson(pollingStations);
 
     response.setContentType("application/json;");
     response.getWriter().println(json);
   }
 
-  private static void addToPollingStationList(
-      List<PollingStation> pollingStations, String locationType, JSONObject pollingInfo) {
-    if (pollingInfo.has(locationType)) {
-      JSONArray pollingData = pollingInfo.getJSONArray(locationType);
-      for (Object pollingLocation : pollingData) {
-        JSONObject pollingLocationJSON = (JSONObject) pollingLocation;
-        pollingStations.add(PollingStation.fromJSONObject(pollingLocationJSON, locationType));
+  /**
+   * Queries the Civic Information API for the polling stations of an election for an address.
+   *
+   * @return the stations, or an empty Optional if the API did not return them
+   */
+  static Optional<List<PollingStation>> queryPollingStations(String address, String electionId)
+      throws IOException {
+    String url =
+        String.format(
+                POLLING_STATION_QUERY_URL,
+                address,
+                electionId,
+                ServletUtils.getApiKey(PROJECT_ID, SECRET_MANAGER_ID, VERSION_ID))
+            .replaceAll(" ", "%20");
+    return ServletUtils.readFromApiUrl(url, PollingStationServlet::readPollingStations);
+  }
+
+  /**
+   * Queues a task for PollingStationRefreshServlet to look stale stored stations up again. The task
+   * is named after the stored list, so requests on every instance that find the same stale list
+   * queue it only once.
+   */
+  private static void queueRefresh(
+      String address, String electionId, PollingStationStore.StoredStations stored) {
+    String taskName =
+        "polling-stations-"
+            + Hashing.sha256()
+                .hashString(
+                    electionId
+                        + "\n"
+                        + AddressDivisionsCache.normalizeAddress(address)
+                        + "\n"
+                        + stored.getFetched().toEpochMilli(),
+                    StandardCharsets.UTF_8)
+                .toString();
+    try {
+      QueueFactory.getDefaultQueue()
+          .add(
+              TaskOptions.Builder.withUrl(PollingStationRefreshServlet.URL)
+                  .taskName(taskName)
+                  .param("address", address)
+                  .param("electionId", electionId)
+                  .retryOptions(RetryOptions.Builder.withTaskRetryLimit(REFRESH_RETRY_LIMIT)));
+    } catch (TaskAlreadyExistsException e) {
+      // Another request has already queued the refresh.
+    } catch (RuntimeException e) {
+      // The stored stations are served either way, and a later request queues the refresh again.
+      logger.log(
+          Level.WARNING,
+          "Could not queue a refresh of the polling stations of election " + electionId,
+          e);
+    }
+  }
+
+  /**
+   * Reads the polling stations of every location type out of a voterInfoQuery response as it
+   * streams in, ordered by LOCATION_TYPES.
+   */
+  private static List<PollingStation> readPollingStations(InputStream body) throws IOException {
+    ListMultimap<String, PollingStation> pollingStationsByType = ArrayListMultimap.create();
+    JsonReader reader = new JsonReader(new InputStreamReader(body, StandardCharsets.UTF_8));
+
+    reader.beginObject();
+    while (reader.hasNext()) {
+      String locationType = reader.nextName();
+      if (!LOCATION_TYPES.contains(locationType)) {
+        reader.skipValue();
+        continue;
       }
+
+      reader.beginArray();
+      while (reader.hasNext()) {
+        pollingStationsByType.put(
+            locationType, PollingStation.fromJsonReader(reader, locationType));
+      }
+      reader.endArray();
+    }
+    reader.endObject();
+
+    List<PollingStation> pollingStations = new ArrayList<>();
+    for (String locationType : LOCATION_TYPES) {
+      pollingStations.addAll(pollingStationsByType.get(locationType));
     }
+    return pollingStations;
   }
 }
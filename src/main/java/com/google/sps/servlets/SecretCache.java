@@ -0,0 +1,147 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.cloud.secretmanager.v1.AccessSecretVersionResponse;
+import com.google.cloud.secretmanager.v1.SecretManagerServiceClient;
+import com.google.cloud.secretmanager.v1.SecretVersionName;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.time.Duration;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A process-wide cache of secrets stored in GCP Secret Manager. Each project/secret/version is
+ * fetched once, then served from memory and refreshed in the background once it is older than the
+ * cache's refresh interval. Callers keep getting the previous value while a refresh is in flight,
+ * or if it fails. The first fetch of a secret is bounded by a timeout, so a request waiting for it
+ * fails with an IOException rather than hanging; the fetch carries on and fills the cache for later
+ * requests.
+ */
+public final class SecretCache {
+
+  /** A source of secret values, such as GCP Secret Manager or a local fake for tests. */
+  public interface SecretSource {
+    String accessSecret(SecretVersionName secretVersionName) throws IOException;
+  }
+
+  private static final Duration DEFAULT_REFRESH_INTERVAL = Duration.ofHours(1);
+  private static final Duration DEFAULT_FETCH_TIMEOUT = Duration.ofSeconds(10);
+  private static final ExecutorService refreshExecutor =
+      Executors.newSingleThreadExecutor(
+          new ThreadFactoryBuilder().setNameFormat("secret-refresh-%d").setDaemon(true).build());
+  // Concurrent first fetches of a secret share one load, so this rarely holds more than a thread
+  // per secret.
+  private static final ExecutorService fetchExecutor =
+      Executors.newCachedThreadPool(
+          new ThreadFactoryBuilder().setNameFormat("secret-fetch-%d").setDaemon(true).build());
+  private static final SecretCache INSTANCE =
+      new SecretCache(
+          SecretCache::accessSecretManager, DEFAULT_REFRESH_INTERVAL, DEFAULT_FETCH_TIMEOUT);
+
+  private final LoadingCache<SecretVersionName, String> secrets;
+  private final Duration fetchTimeout;
+
+  /**
+   * Creates a cache that loads its secrets from the given source.
+   *
+   * @param source where to fetch secrets that are missing or due for a refresh
+   * @param refreshInterval how long a fetched secret is served before it is refreshed
+   */
+  public SecretCache(SecretSource source, Duration refreshInterval) {
+    this(source, refreshInterval, DEFAULT_FETCH_TIMEOUT);
+  }
+
+  /**
+   * Creates a cache that loads its secrets from the given source.
+   *
+   * @param source where to fetch secrets that are missing or due for a refresh
+   * @param refreshInterval how long a fetched secret is served before it is refreshed
+   * @param fetchTimeout how long get waits for a secret that was never fetched before
+   */
+  public SecretCache(SecretSource source, Duration refreshInterval, Duration fetchTimeout) {
+    this.fetchTimeout = fetchTimeout;
+    this.secrets =
+        CacheBuilder.newBuilder()
+            .refreshAfterWrite(refreshInterval)
+            .build(
+                CacheLoader.asyncReloading(
+                    new CacheLoader<SecretVersionName, String>() {
+                      @Override
+                      public String load(SecretVersionName secretVersionName) throws IOException {
+                        return source.accessSecret(secretVersionName);
+                      }
+                    },
+                    refreshExecutor));
+  }
+
+  /** Returns the cache shared by every servlet, backed by GCP Secret Manager. */
+  public static SecretCache getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * Get the value of a secret, fetching it from this cache's source only if it was never fetched
+   * before.
+   *
+   * @param projectId the GCP project ID, available through the Cloud Dashboard
+   * @param secretId the ID of the "secret" in GCP Secret Manager
+   * @param versionId the version of the secret we want to access
+   */
+  public String get(String projectId, String secretId, String versionId) throws IOException {
+    SecretVersionName secretVersionName = SecretVersionName.of(projectId, secretId, versionId);
+    try {
+      // A fetched secret is returned straight away, even when due for a refresh, since refreshes
+      // run in the background.
+      if (secrets.asMap().containsKey(secretVersionName)) {
+        return secrets.get(secretVersionName);
+      }
+    } catch (ExecutionException | UncheckedExecutionException e) {
+      throw new IOException("Could not access secret " + secretId, e.getCause());
+    }
+
+    Future<String> fetch = fetchExecutor.submit(() -> secrets.get(secretVersionName));
+    try {
+      return fetch.get(fetchTimeout.toMillis(), TimeUnit.MILLISECONDS);
+    } catch (TimeoutException e) {
+      throw new IOException("Timed out accessing secret " + secretId, e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted accessing secret " + secretId);
+    } catch (ExecutionException e) {
+      // The fetch failed with the exception the cache wraps the source's failure in.
+      throw new IOException("Could not access secret " + secretId, e.getCause().getCause());
+    }
+  }
+
+  private static String accessSecretManager(SecretVersionName secretVersionName)
+      throws IOException {
+    try (SecretManagerServiceClient client = SecretManagerServiceClient.create()) {
+      AccessSecretVersionResponse response = client.accessSecretVersion(secretVersionName);
+
+      return response.getPayload().getData().toStringUtf8();
+    }
+  }
+}
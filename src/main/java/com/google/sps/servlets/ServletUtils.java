@@ -17,31 +17,49 @@ package com.google.sps.servlets;
 import com.google.appengine.api.datastore.DatastoreService;
 import com.google.appengine.api.datastore.Entity;
 import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.FetchOptions;
 import com.google.appengine.api.datastore.Key;
-import com.google.appengine.api.datastore.KeyFactory;
 import com.google.appengine.api.datastore.PreparedQuery;
 import com.google.appengine.api.datastore.Query;
-import com.google.cloud.secretmanager.v1.AccessSecretVersionResponse;
-import com.google.cloud.secretmanager.v1.SecretManagerServiceClient;
-import com.google.cloud.secretmanager.v1.SecretVersionName;
+import com.google.appengine.api.datastore.Query.FilterOperator;
+import com.google.appengine.api.datastore.Query.FilterPredicate;
+import com.google.appengine.api.datastore.QueryResultList;
+import com.google.common.base.Stopwatch;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.io.CharStreams;
 import com.google.sps.data.Election;
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.net.HttpURLConnection;
-import java.net.MalformedURLException;
-import java.net.URL;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import org.json.JSONObject;
+import org.json.JSONTokener;
 import org.json.XML;
 
 public class ServletUtils {
 
   private static final Logger logger = Logger.getLogger(ServletUtils.class.getName());
+  // The most Entities Datastore accepts in a single batch put.
+  private static final int MAX_ENTITIES_PER_PUT = 500;
+  // The most keys Datastore accepts in a single batch get.
+  private static final int MAX_KEYS_PER_GET = 1000;
+  // The most keys Datastore accepts in a single batch delete.
+  private static final int MAX_KEYS_PER_DELETE = 500;
+
+  private static volatile ApiHttpClient httpClient = ApiHttpClient.createDefault();
 
   // Private constructor to prevent instantiation.
   private ServletUtils() {
@@ -73,7 +91,8 @@ public class ServletUtils {
   }
 
   /**
-   * Access the api key stored in gcloud secret manager.
+   * Access the api key stored in gcloud secret manager. The key is cached process-wide after the
+   * first call, so later calls do not make a remote call.
    *
    * @param projectId the GCP project ID, available through the Cloud Dashboard
    * @param secretId the ID of the "secret" containing the API key in GCP Secret Manager
@@ -81,12 +100,17 @@ public class ServletUtils {
    */
   public static String getApiKey(String projectId, String secretId, String versionId)
       throws IOException {
-    try (SecretManagerServiceClient client = SecretManagerServiceClient.create()) {
-      SecretVersionName secretVersionName = SecretVersionName.of(projectId, secretId, versionId);
-      AccessSecretVersionResponse response = client.accessSecretVersion(secretVersionName);
+    return SecretCache.getInstance().get(projectId, secretId, versionId);
+  }
 
-      return response.getPayload().getData().toStringUtf8();
-    }
+  /**
+   * Replaces the client used to make outbound API requests, for example with one that has different
+   * timeouts or concurrency limits.
+   *
+   * @param client the client that readFromApiUrl should use from now on
+   */
+  public static void setHttpClient(ApiHttpClient client) {
+    httpClient = client;
   }
 
   /**
@@ -98,68 +122,79 @@ public class ServletUtils {
    */
   public static Optional<JSONObject> readFromApiUrl(String urlString, boolean isXML)
       throws IOException {
-    StringBuilder strBuf = new StringBuilder();
-    HttpURLConnection conn = null;
-    BufferedReader reader = null;
-    URL url = new URL(urlString);
-
-    try {
-      conn = (HttpURLConnection) url.openConnection();
-      conn.setRequestMethod("GET");
-      conn.setRequestProperty("Accept", "application/json");
+    return readFromApiUrl(
+        urlString,
+        body -> {
+          Reader reader = new InputStreamReader(body, StandardCharsets.UTF_8);
+          // org.json can only convert XML from a String, but JSON is tokenized straight from the
+          // response stream.
+          return isXML
+              ? XML.toJSONObject(CharStreams.toString(reader))
+              : new JSONObject(new JSONTokener(reader));
+        });
+  }
 
-      if (conn.getResponseCode() != HttpURLConnection.HTTP_OK) {
-        logger.log(Level.WARNING, conn.getResponseCode() + " error: Could not GET " + urlString);
-        return Optional.empty();
-      }
+  /**
+   * Reads the information avaiable at the provided API URL with the given parser, which consumes
+   * the response body as it arrives instead of buffering it into a String first.
+   *
+   * @param urlString a valid API URL, accessible with the project's API keys
+   * @param parser converts the response body into the returned object
+   * @return an Optional containing the parsed response, or empty if the request failed
+   */
+  public static <T> Optional<T> readFromApiUrl(
+      String urlString, ApiHttpClient.ResponseParser<T> parser) {
+    return httpClient.get(urlString, parser);
+  }
 
-      // Using IO Stream with Buffer for increased efficiency
-      reader = new BufferedReader(new InputStreamReader(conn.getInputStream(), "utf-8"));
-      String output = null;
+  /**
+   * Deletes every Entity of a kind. Keys are read a page at a time with keys-only queries, and each
+   * page is deleted in one batch call, so the cost is a few calls per thousand Entities rather than
+   * a read and a delete per Entity.
+   *
+   * @param datastore the Datastore containing the Entities
+   * @param entityKind the kind of the Entities to delete
+   * @return the number of Entities deleted
+   */
+  public static int deleteAllEntitiesOfKind(DatastoreService datastore, String entityKind) {
+    Stopwatch stopwatch = Stopwatch.createStarted();
+    PreparedQuery keysQuery = datastore.prepare(new Query(entityKind).setKeysOnly());
+    FetchOptions options = FetchOptions.Builder.withLimit(MAX_KEYS_PER_DELETE);
+    int deleted = 0;
 
-      while ((output = reader.readLine()) != null) {
-        strBuf.append(output);
+    while (true) {
+      QueryResultList<Entity> page = keysQuery.asQueryResultList(options);
+      if (page.isEmpty()) {
+        break;
       }
 
-    } catch (MalformedURLException e) {
-      logger.log(Level.SEVERE, "URL is incorrectly formatted");
-    } catch (IOException e) {
-      logger.log(Level.SEVERE, "Cannot retrieve information from provided URL");
-    } finally {
-      if (reader != null) {
-        try {
-          reader.close();
-        } catch (IOException e) {
-          logger.log(Level.WARNING, e.getMessage());
-        }
+      List<Key> keys = new ArrayList<>(page.size());
+      for (Entity entity : page) {
+        keys.add(entity.getKey());
       }
+      datastore.delete(keys);
+      deleted += keys.size();
+      logger.log(Level.FINE, "Deleted " + deleted + " " + entityKind + " Entities so far.");
 
-      if (conn != null) {
-        conn.disconnect();
+      if (page.size() < MAX_KEYS_PER_DELETE) {
+        break;
       }
+      options.startCursor(page.getCursor());
     }
 
-    JSONObject obj;
-
-    // handle case where web API output is in XML
-    String results = strBuf.toString();
-    obj = isXML ? new JSONObject(XML.toJSONObject(results).toString()) : new JSONObject(results);
-
-    return Optional.of(obj);
-  }
-
-  public static void deleteAllEntitiesOfKind(DatastoreService datastore, String entityKind) {
-    // Deleting the queries from yesterday in the case that they are outdated
-    PreparedQuery results = datastore.prepare(new Query(entityKind));
-
-    for (Entity entity : results.asIterable()) {
-      Key entityKey = KeyFactory.createKey(entityKind, entity.getKey().getId());
-      datastore.delete(entityKey);
-    }
+    long elapsedMillis = Math.max(1, stopwatch.elapsed(TimeUnit.MILLISECONDS));
+    logger.log(
+        Level.INFO,
+        String.format(
+            "Deleted %d %s Entities in %d ms (%d per second).",
+            deleted, entityKind, elapsedMillis, deleted * 1000L / elapsedMillis));
+    return deleted;
   }
 
   /**
-   * Find an Election Entity in the Datastore based off its electionId property.
+   * Find an Election Entity in the Datastore based off its electionId property. Uses an equality
+   * filter on the built-in single-property index, so the cost does not grow with the number of
+   * Election Entities.
    *
    * @param datastore the Datastore containing all election data
    * @param electionId the ID of the election being queried
@@ -167,16 +202,13 @@ public class ServletUtils {
    */
   public static Optional<Entity> findElectionInDatastore(
       DatastoreService datastore, String electionId) {
-    Query query = new Query(Election.ENTITY_KIND);
-    PreparedQuery results = datastore.prepare(query);
+    Query query =
+        new Query(Election.ENTITY_KIND)
+            .setFilter(
+                new FilterPredicate(Election.ID_ENTITY_KEYWORD, FilterOperator.EQUAL, electionId));
+    List<Entity> results = datastore.prepare(query).asList(FetchOptions.Builder.withLimit(1));
 
-    for (Entity entity : results.asIterable()) {
-      if (entity.getProperty(Election.ID_ENTITY_KEYWORD).equals(electionId)) {
-        return Optional.of(entity);
-      }
-    }
-
-    return Optional.empty();
+    return results.isEmpty() ? Optional.empty() : Optional.of(results.get(0));
   }
 
   /**
@@ -195,4 +227,69 @@ public class ServletUtils {
       return Optional.empty();
     }
   }
+
+  /**
+   * Reserves IDs for new Entities of one kind in a single call, so that Entities can reference each
+   * other's keys before any of them are put into Datastore.
+   *
+   * @param datastore the Datastore to allocate the IDs in
+   * @param kind the kind of the new Entities
+   * @param count how many keys to allocate
+   * @return the allocated keys, in order
+   */
+  public static Iterator<Key> allocateKeys(DatastoreService datastore, String kind, int count) {
+    if (count == 0) {
+      return Collections.emptyIterator();
+    }
+
+    return datastore.allocateIds(kind, count).iterator();
+  }
+
+  /**
+   * Puts all of the given Entities into Datastore using as few batch calls as Datastore allows.
+   *
+   * @param datastore the Datastore to store the Entities in
+   * @param entities the Entities to store, possibly of different kinds
+   */
+  public static void putAllInDatastore(DatastoreService datastore, List<Entity> entities) {
+    for (List<Entity> batch : Lists.partition(entities, MAX_ENTITIES_PER_PUT)) {
+      datastore.put(batch);
+    }
+  }
+
+  /**
+   * Deletes all of the given Entity keys from Datastore using as few batch calls as Datastore
+   * allows.
+   *
+   * @param datastore the Datastore containing the Entities
+   * @param keys the keys of the Entities to delete, possibly of different kinds
+   */
+  public static void deleteAllFromDatastore(DatastoreService datastore, List<Key> keys) {
+    for (List<Key> batch : Lists.partition(keys, MAX_KEYS_PER_DELETE)) {
+      datastore.delete(batch);
+    }
+  }
+
+  /**
+   * Queries Datastore for all of the given Entity keys using as few batch calls as Datastore
+   * allows. Keys that are not present in Datastore are omitted from the returned map.
+   *
+   * @param datastore the Datastore containing all election data
+   * @param keys the keys corresponding to the Entities being queried, possibly of different kinds
+   * @return a map from each key found in Datastore to its Entity
+   */
+  public static Map<Key, Entity> getAllFromDatastore(
+      DatastoreService datastore, Iterable<Key> keys) {
+    Map<Key, Entity> entities = new HashMap<>();
+    for (List<Key> batch : Iterables.partition(keys, MAX_KEYS_PER_GET)) {
+      entities.putAll(datastore.get(batch));
+    }
+    int missingEntities = Iterables.size(keys) - entities.size();
+
+    if (missingEntities > 0) {
+      logger.log(Level.WARNING, missingEntities + " requested Entities were not in Datastore.");
+    }
+
+    return entities;
+  }
 }
@@ -0,0 +1,71 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Coalesces concurrent requests for the same work. The first request to join a key leads: it does
+ * the work and completes the flight's result. Requests that join the key while the flight is in
+ * progress follow: they do no work of their own and are given the leader's result. Once the result
+ * is complete the key is free again, and the next request to join it leads a new flight.
+ *
+ * @param <K> identifies the work, for example the parameters of a request
+ * @param <V> the result of the work
+ */
+final class SingleFlight<K, V> {
+
+  /** A request's place in a flight. */
+  static final class Flight<V> {
+    private final CompletableFuture<V> result;
+    private final boolean isLeader;
+
+    private Flight(CompletableFuture<V> result, boolean isLeader) {
+      this.result = result;
+      this.isLeader = isLeader;
+    }
+
+    /** Returns true if this request has to do the work and complete the result. */
+    boolean isLeader() {
+      return isLeader;
+    }
+
+    /** Returns the result shared by every request in the flight. */
+    CompletableFuture<V> getResult() {
+      return result;
+    }
+  }
+
+  private final ConcurrentMap<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+
+  /**
+   * Joins the flight in progress for a key, or starts a new one led by the caller.
+   *
+   * @param key identifies the work
+   * @return the caller's place in the flight
+   */
+  Flight<V> join(K key) {
+    CompletableFuture<V> started = new CompletableFuture<>();
+    CompletableFuture<V> inProgress = inFlight.putIfAbsent(key, started);
+    if (inProgress != null) {
+      return new Flight<>(inProgress, /* isLeader= */ false);
+    }
+
+    started.whenComplete((result, error) -> inFlight.remove(key, started));
+    return new Flight<>(started, /* isLeader= */ true);
+  }
+}
@@ -0,0 +1,235 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.Uninterruptibles;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.Duration;
+import java.util.Optional;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Runs the blocking calls a request makes to the Civic Information, WeVote and FVAP APIs on a
+ * shared executor, so the container thread serving the request is released while they are in
+ * flight.
+ *
+ * <p>A servlet starts its calls with start and then asks isDoneOrSuspend whether their results are
+ * ready. If they are not, the request is suspended and dispatched to the servlet again once every
+ * call has finished. The servlet should return straight away, and on the next pass start returns
+ * the same finished calls, which are kept in request attributes.
+ *
+ * <p>Calls only ever make outbound HTTP requests. Datastore is only reachable from the request
+ * thread, so everything else stays in the servlet.
+ */
+final class UpstreamCalls {
+
+  /** Makes a blocking API request and returns its result. */
+  interface Call<T> {
+    T get() throws IOException;
+  }
+
+  // Enough threads for every per-host permit of ApiHttpClient to be in use at once.
+  private static final int THREAD_COUNT = 64;
+  // Longer than the connect and read timeouts of any API host, so a suspended request is always
+  // dispatched again by its calls rather than timed out by the container.
+  private static final long ASYNC_TIMEOUT_MILLIS = 60_000;
+  private static final ExecutorService executor =
+      Executors.newFixedThreadPool(
+          THREAD_COUNT,
+          new ThreadFactoryBuilder().setNameFormat("upstream-call-%d").setDaemon(true).build());
+  private static final ScheduledExecutorService deadlineTimer =
+      Executors.newSingleThreadScheduledExecutor(
+          new ThreadFactoryBuilder().setNameFormat("upstream-deadline-%d").setDaemon(true).build());
+  private static final Logger logger = Logger.getLogger(UpstreamCalls.class.getName());
+
+  // Private constructor to prevent instantiation.
+  private UpstreamCalls() {
+    throw new AssertionError();
+  }
+
+  /**
+   * Starts an upstream call for a request, or returns the call started for it on an earlier pass.
+   * Calls started together run in parallel.
+   *
+   * @param request the HTTP request the call is made for
+   * @param name identifies the call among the calls of the request
+   * @param call makes the blocking API request and returns its result
+   * @return the started call
+   */
+  @SuppressWarnings("unchecked")
+  static <T> CompletableFuture<T> start(HttpServletRequest request, String name, Call<T> call) {
+    String attribute = UpstreamCalls.class.getName() + "." + name;
+    CompletableFuture<T> started = (CompletableFuture<T>) request.getAttribute(attribute);
+    if (started == null) {
+      started = CompletableFuture.supplyAsync(() -> getUnchecked(call), executor);
+      request.setAttribute(attribute, started);
+    }
+    return started;
+  }
+
+  /**
+   * Fails every given call that has not finished once the timeout has passed, so that a request
+   * waiting on several calls gives up on all of them at the same time. The calls keep running until
+   * their own timeouts, but their results are dropped.
+   *
+   * @param timeout how long the calls may take, from now
+   * @param calls calls returned by start
+   */
+  static void setDeadline(Duration timeout, CompletableFuture<?>... calls) {
+    for (CompletableFuture<?> call : calls) {
+      if (call.isDone()) {
+        continue;
+      }
+      ScheduledFuture<?> timer =
+          deadlineTimer.schedule(
+              () -> call.completeExceptionally(new TimeoutException("Deadline exceeded")),
+              timeout.toMillis(),
+              TimeUnit.MILLISECONDS);
+      call.whenComplete((result, error) -> timer.cancel(false));
+    }
+  }
+
+  /**
+   * Returns true if every given call has finished, successfully or not. Otherwise suspends the
+   * request until they have, and returns false; the servlet should then return without writing the
+   * response. If the request cannot be suspended, waits for the calls and returns true.
+   *
+   * <p>The calls are only waited on, never changed, since other requests may wait on them too. A
+   * suspended request that times out or fails is dispatched again, and suspended again if its calls
+   * are still running; setDeadline is what bounds how long they run.
+   *
+   * @param request the HTTP request the calls were started for
+   * @param calls calls returned by start
+   */
+  static boolean isDoneOrSuspend(HttpServletRequest request, CompletableFuture<?>... calls) {
+    CompletableFuture<Void> allCalls = CompletableFuture.allOf(calls);
+    if (allCalls.isDone()) {
+      return true;
+    }
+
+    if (!request.isAsyncSupported()) {
+      try {
+        Uninterruptibles.getUninterruptibly(allCalls);
+      } catch (ExecutionException | CancellationException e) {
+        // The servlet reads the failure from the call that failed.
+      }
+      return true;
+    }
+
+    AsyncContext asyncContext = request.startAsync();
+    asyncContext.setTimeout(ASYNC_TIMEOUT_MILLIS);
+    AtomicBoolean dispatched = new AtomicBoolean();
+    Runnable dispatchOnce =
+        () -> {
+          if (dispatched.compareAndSet(false, true)) {
+            asyncContext.dispatch();
+          }
+        };
+    // If the container gives up on the request first, the servlet runs again rather than leaving
+    // the request suspended until the container writes an error response of its own.
+    asyncContext.addListener(
+        new AsyncListener() {
+          @Override
+          public void onTimeout(AsyncEvent event) {
+            logger.log(Level.WARNING, "A suspended request timed out waiting for upstream calls.");
+            dispatchOnce.run();
+          }
+
+          @Override
+          public void onError(AsyncEvent event) {
+            logger.log(
+                Level.WARNING,
+                "A suspended request failed waiting for upstream calls.",
+                event.getThrowable());
+            dispatchOnce.run();
+          }
+
+          @Override
+          public void onComplete(AsyncEvent event) {}
+
+          @Override
+          public void onStartAsync(AsyncEvent event) {}
+        });
+    allCalls.whenComplete((result, error) -> dispatchOnce.run());
+    return false;
+  }
+
+  /**
+   * Returns the result of a finished call, throwing the exception the call failed with, if any.
+   *
+   * @param call a call for which isDoneOrSuspend returned true
+   */
+  static <T> T getResult(CompletableFuture<T> call) throws IOException {
+    try {
+      return call.join();
+    } catch (CompletionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof UncheckedIOException) {
+        throw ((UncheckedIOException) cause).getCause();
+      }
+      Throwables.throwIfInstanceOf(cause, IOException.class);
+      Throwables.throwIfUnchecked(cause);
+      throw e;
+    }
+  }
+
+  /**
+   * Returns the result of a finished call that returns an Optional, or an empty Optional if the
+   * call was cancelled or missed its deadline.
+   *
+   * @param call a call for which isDoneOrSuspend returned true
+   */
+  static <T> Optional<T> getResultOrEmpty(CompletableFuture<Optional<T>> call) throws IOException {
+    if (call.isCancelled()) {
+      return Optional.empty();
+    }
+    try {
+      return getResult(call);
+    } catch (CompletionException e) {
+      if (e.getCause() instanceof TimeoutException) {
+        logger.log(Level.WARNING, "An upstream call missed its deadline.");
+        return Optional.empty();
+      }
+      throw e;
+    }
+  }
+
+  private static <T> T getUnchecked(Call<T> call) {
+    try {
+      return call.get();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+}
@@ -8,7 +8,7 @@ Handlebars.registerHelper({
 });
 
 function onElectionInfoLoad(){
-  fetch('/election')
+  fetch('/election?view=list')
   .then(response => {
     if (response.ok) { // if HTTP-status is 200-299
       return response.json();
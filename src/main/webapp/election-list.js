@@ -38,7 +38,7 @@ function listElections() {
     return;
   }
 
-  fetch('/election')
+  fetch('/election?view=list')
     .then(response => {
       if (response.ok) { // if HTTP-status is 200-299
         return response.json();
@@ -0,0 +1,58 @@
+package com.google.sps.data;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Query;
+import com.google.common.collect.ImmutableSet;
+import java.time.Duration;
+import java.util.Optional;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class AddressDivisionsCacheTest {
+  private static final ImmutableSet<String> DIVISIONS =
+      ImmutableSet.of("ocd-division/country:us", "ocd-division/country:us/state:ca");
+
+  @Rule public final DatastoreClockRule datastoreClock = new DatastoreClockRule();
+
+  // Each cache stands in for another instance, sharing only Datastore with the others.
+  private AddressDivisionsCache newCache() {
+    return new AddressDivisionsCache(100, Duration.ofDays(30), datastoreClock.getClock());
+  }
+
+  @Test
+  public void cachedInMemory_differentSpacingAndCase() {
+    DatastoreService ds = datastoreClock.getDatastore();
+    AddressDivisionsCache cache = newCache();
+
+    cache.put(ds, "1600 Amphitheatre Pkwy", DIVISIONS);
+
+    Assert.assertEquals(Optional.of(DIVISIONS), cache.get(ds, " 1600  amphitheatre PKWY "));
+    Assert.assertEquals(Optional.empty(), cache.get(ds, "1601 Amphitheatre Pkwy"));
+  }
+
+  @Test
+  public void savedToDatastore_foundByOtherCache_addressNotStored() {
+    DatastoreService ds = datastoreClock.getDatastore();
+
+    newCache().put(ds, "1600 Amphitheatre Pkwy", DIVISIONS);
+
+    Assert.assertEquals(Optional.of(DIVISIONS), newCache().get(ds, "1600 Amphitheatre Pkwy"));
+    Entity entity = ds.prepare(new Query(AddressDivisionsCache.ENTITY_KIND)).asSingleEntity();
+    Assert.assertFalse(entity.getKey().getName().contains("amphitheatre"));
+  }
+
+  @Test
+  public void divisionsOlderThanTimeToLive_notReturned() {
+    DatastoreService ds = datastoreClock.getDatastore();
+    newCache().put(ds, "1600 Amphitheatre Pkwy", DIVISIONS);
+
+    datastoreClock.advance(Duration.ofDays(31));
+
+    Assert.assertEquals(Optional.empty(), newCache().get(ds, "1600 Amphitheatre Pkwy"));
+  }
+}
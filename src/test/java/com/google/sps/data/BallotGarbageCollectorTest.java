@@ -0,0 +1,157 @@
+package com.google.sps.data;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Query;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.StreamSupport;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class BallotGarbageCollectorTest {
+  @Rule public final DatastoreClockRule datastoreClock = new DatastoreClockRule();
+
+  private BallotGarbageCollector newCollector(int pageSize, int pagesPerRun) {
+    return new BallotGarbageCollector(
+        pageSize, pagesPerRun, Duration.ZERO, Duration.ofHours(1), datastoreClock.getClock());
+  }
+
+  private static Entity newEntity(String kind, long id, Instant stored) {
+    Entity entity = new Entity(kind, id);
+    BallotGarbageCollector.markStored(ImmutableList.of(entity), stored);
+    return entity;
+  }
+
+  private Instant dayAgo() {
+    return datastoreClock.now().minus(Duration.ofDays(1));
+  }
+
+  private Entity newContest(long id, Set<Long> candidates) {
+    Entity contest = newEntity(Contest.ENTITY_KIND, id, dayAgo());
+    contest.setProperty(Contest.CANDIDATES_ENTITY_KEYWORD, candidates);
+    return contest;
+  }
+
+  private static Set<Long> storedIds(DatastoreService ds, String kind) {
+    return StreamSupport.stream(
+            ds.prepare(new Query(kind).setKeysOnly())
+                .asIterable(FetchOptions.Builder.withDefaults())
+                .spliterator(),
+            false)
+        .map(entity -> entity.getKey().getId())
+        .collect(Collectors.toSet());
+  }
+
+  // Stores an Election referencing contest 1 and referendum 1; contest 1 references candidate 1.
+  private void putReferencedBallot(DatastoreService ds) {
+    Entity election = new Entity(Election.ENTITY_KIND);
+    election.setProperty(Election.CONTESTS_ENTITY_KEYWORD, ImmutableSet.of(1L));
+    election.setProperty(Election.REFERENDUMS_ENTITY_KEYWORD, ImmutableSet.of(1L));
+    ds.put(election);
+    ds.put(newContest(1, ImmutableSet.of(1L)));
+    ds.put(newEntity(Referendum.ENTITY_KIND, 1, dayAgo()));
+    ds.put(newEntity(Candidate.ENTITY_KIND, 1, dayAgo()));
+  }
+
+  @Test
+  public void unreferencedEntities_deleted_referencedEntitiesKept() throws Exception {
+    DatastoreService ds = datastoreClock.getDatastore();
+    putReferencedBallot(ds);
+    // An orphaned contest, and its candidate which only it references.
+    ds.put(newContest(2, ImmutableSet.of(2L)));
+    ds.put(newEntity(Candidate.ENTITY_KIND, 2, dayAgo()));
+    ds.put(newEntity(Referendum.ENTITY_KIND, 2, dayAgo()));
+    // Stored before ballot Entities were stamped.
+    ds.put(new Entity(Candidate.ENTITY_KIND, 3));
+
+    BallotGarbageCollector.RunResult result = newCollector(100, 10).run(ds);
+
+    Assert.assertEquals(7, result.getScanned());
+    Assert.assertEquals(4, result.getDeleted());
+    Assert.assertTrue(result.isPassComplete());
+    Assert.assertEquals(ImmutableSet.of(1L), storedIds(ds, Contest.ENTITY_KIND));
+    Assert.assertEquals(ImmutableSet.of(1L), storedIds(ds, Candidate.ENTITY_KIND));
+    Assert.assertEquals(ImmutableSet.of(1L), storedIds(ds, Referendum.ENTITY_KIND));
+    Assert.assertTrue(storedIds(ds, BallotGarbageCollector.STATE_ENTITY_KIND).isEmpty());
+    Assert.assertTrue(storedIds(ds, BallotGarbageCollector.MARKS_ENTITY_KIND).isEmpty());
+  }
+
+  @Test
+  public void unreferencedEntitiesWithinGracePeriod_kept() throws Exception {
+    DatastoreService ds = datastoreClock.getDatastore();
+    putReferencedBallot(ds);
+    ds.put(newEntity(Candidate.ENTITY_KIND, 2, datastoreClock.now().minus(Duration.ofMinutes(5))));
+
+    BallotGarbageCollector.RunResult result = newCollector(100, 10).run(ds);
+
+    Assert.assertEquals(0, result.getDeleted());
+    Assert.assertEquals(ImmutableSet.of(1L, 2L), storedIds(ds, Candidate.ENTITY_KIND));
+  }
+
+  @Test
+  public void runsLimitedToPagesPerRun_resumeFromSavedCursor() throws Exception {
+    DatastoreService ds = datastoreClock.getDatastore();
+    putReferencedBallot(ds);
+    for (long id = 2; id <= 5; id++) {
+      ds.put(newEntity(Candidate.ENTITY_KIND, id, dayAgo()));
+    }
+    BallotGarbageCollector collector = newCollector(2, 2);
+
+    int runs = 0;
+    int deleted = 0;
+    BallotGarbageCollector.RunResult result;
+    do {
+      result = collector.run(ds);
+      Assert.assertTrue(result.getScanned() <= 4);
+      deleted += result.getDeleted();
+      runs++;
+    } while (!result.isPassComplete());
+
+    Assert.assertTrue(runs > 1);
+    Assert.assertEquals(4, deleted);
+    Assert.assertEquals(ImmutableSet.of(1L), storedIds(ds, Candidate.ENTITY_KIND));
+  }
+
+  @Test
+  public void referencesChangedDuringPass_passUsesMarksFromItsStart() throws Exception {
+    DatastoreService ds = datastoreClock.getDatastore();
+    putReferencedBallot(ds);
+    for (long id = 2; id <= 5; id++) {
+      ds.put(newEntity(Candidate.ENTITY_KIND, id, dayAgo()));
+    }
+    BallotGarbageCollector collector = newCollector(2, 1);
+    collector.run(ds);
+
+    // The Election stops referencing its ballot, and a new one is stored for another Election.
+    ds.delete(ds.prepare(new Query(Election.ENTITY_KIND).setKeysOnly()).asSingleEntity().getKey());
+    datastoreClock.advance(Duration.ofHours(2));
+    ds.put(newEntity(Candidate.ENTITY_KIND, 6, datastoreClock.now()));
+    BallotGarbageCollector.RunResult result;
+    do {
+      result = collector.run(ds);
+    } while (!result.isPassComplete());
+
+    Assert.assertEquals(ImmutableSet.of(1L, 6L), storedIds(ds, Candidate.ENTITY_KIND));
+    Assert.assertEquals(ImmutableSet.of(1L), storedIds(ds, Contest.ENTITY_KIND));
+
+    // The next pass marks the Entities again, and nothing references the old ballot any more.
+    datastoreClock.advance(Duration.ofHours(2));
+    do {
+      result = collector.run(ds);
+    } while (!result.isPassComplete());
+
+    Assert.assertTrue(storedIds(ds, Candidate.ENTITY_KIND).isEmpty());
+    Assert.assertTrue(storedIds(ds, Contest.ENTITY_KIND).isEmpty());
+    Assert.assertTrue(storedIds(ds, Referendum.ENTITY_KIND).isEmpty());
+  }
+}
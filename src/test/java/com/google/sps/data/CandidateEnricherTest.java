@@ -0,0 +1,246 @@
+package com.google.sps.data;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class CandidateEnricherTest {
+  private final LocalServiceTestHelper helper =
+      new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+  private static final String ELECTION_ID = "2000";
+
+  private final ExecutorService executor = Executors.newFixedThreadPool(4);
+  // The candidates each enricher sends to its LateDescriptionQueue.
+  private final Map<Key, String> lateCandidates = new HashMap<>();
+
+  @Before
+  public void setUp() {
+    helper.setUp();
+  }
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+    helper.tearDown();
+  }
+
+  // The LateDescriptionQueue of the enrichers under test.
+  private void queueLate(String electionId, Map<Key, String> candidateNames) {
+    Assert.assertEquals(ELECTION_ID, electionId);
+    lateCandidates.putAll(candidateNames);
+  }
+
+  private static Candidate candidate(String name) {
+    return Candidate.builder()
+        .setName(name)
+        .setPartyAffiliation("")
+        .setCampaignSite("")
+        .setPlatformDescription("")
+        .setChannels(ImmutableMap.of())
+        .build();
+  }
+
+  private static WeVoteDescription description(String description) {
+    return WeVoteDescription.builder().setWeVoteId("myId").setDescription(description).build();
+  }
+
+  private static PlatformDescriptionCache newCache() {
+    return new PlatformDescriptionCache(
+        100, Duration.ofDays(7), Duration.ofDays(1), Clock.systemUTC());
+  }
+
+  // Stores a candidate the way Election does, under a pre-allocated key.
+  private static long store(
+      DatastoreService ds, CandidateEnricher.Ballot ballot, Candidate candidate) {
+    Key candidateKey = ds.allocateIds(Candidate.ENTITY_KIND, 1).getStart();
+    ds.put(ballot.withPlatformDescription(candidate, candidateKey).toEntity(candidateKey));
+    return candidateKey.getId();
+  }
+
+  private static String storedDescription(DatastoreService ds, long candidateId) throws Exception {
+    return (String)
+        ds.get(KeyFactory.createKey(Candidate.ENTITY_KIND, candidateId))
+            .getProperty(Candidate.PLATFORM_ENTITY_KEYWORD);
+  }
+
+  @Test
+  public void descriptionsArriveBeforeDeadline_storedWithDescriptions() throws Exception {
+    DatastoreService ds = DatastoreServiceFactory.getDatastoreService();
+    CandidateEnricher enricher =
+        new CandidateEnricher(
+            name -> Optional.of(description(name + " description")),
+            newCache(),
+            this::queueLate,
+            executor,
+            Duration.ofSeconds(10));
+    Candidate janeDoe = candidate("Jane Doe");
+    Candidate johnDoe = candidate("John Doe");
+
+    CandidateEnricher.Ballot ballot =
+        enricher.startBallot(ds, ELECTION_ID, ImmutableList.of(janeDoe, johnDoe));
+    long janeDoeId = store(ds, ballot, janeDoe);
+    long johnDoeId = store(ds, ballot, johnDoe);
+
+    Assert.assertEquals("Jane Doe description", storedDescription(ds, janeDoeId));
+    Assert.assertEquals("John Doe description", storedDescription(ds, johnDoeId));
+    ballot.finish(ds);
+    Assert.assertEquals(ImmutableMap.of(), lateCandidates);
+  }
+
+  @Test
+  public void descriptionsLookedUpConcurrently() throws Exception {
+    DatastoreService ds = DatastoreServiceFactory.getDatastoreService();
+    // Each lookup waits until both have started, so this only finishes in time if they overlap.
+    CountDownLatch bothStarted = new CountDownLatch(2);
+    CandidateEnricher enricher =
+        new CandidateEnricher(
+            name -> {
+              bothStarted.countDown();
+              try {
+                return bothStarted.await(5, TimeUnit.SECONDS)
+                    ? Optional.of(description("description"))
+                    : Optional.empty();
+              } catch (InterruptedException e) {
+                return Optional.empty();
+              }
+            },
+            newCache(),
+            this::queueLate,
+            executor,
+            Duration.ofSeconds(10));
+    Candidate janeDoe = candidate("Jane Doe");
+    Candidate johnDoe = candidate("John Doe");
+
+    CandidateEnricher.Ballot ballot =
+        enricher.startBallot(ds, ELECTION_ID, ImmutableList.of(janeDoe, johnDoe));
+
+    Assert.assertEquals("description", storedDescription(ds, store(ds, ballot, janeDoe)));
+    Assert.assertEquals("description", storedDescription(ds, store(ds, ballot, johnDoe)));
+  }
+
+  @Test
+  public void descriptionMissesDeadline_storedEmptyThenFilledIn() throws Exception {
+    DatastoreService ds = DatastoreServiceFactory.getDatastoreService();
+    CountDownLatch releaseLookup = new CountDownLatch(1);
+    AtomicInteger lookups = new AtomicInteger();
+    CandidateEnricher enricher =
+        new CandidateEnricher(
+            name -> {
+              lookups.incrementAndGet();
+              try {
+                releaseLookup.await();
+              } catch (InterruptedException e) {
+                return Optional.empty();
+              }
+              return Optional.of(description("late description"));
+            },
+            newCache(),
+            this::queueLate,
+            executor,
+            Duration.ofMillis(50));
+    Candidate janeDoe = candidate("Jane Doe");
+
+    CandidateEnricher.Ballot ballot =
+        enricher.startBallot(ds, ELECTION_ID, ImmutableList.of(janeDoe));
+    long janeDoeId = store(ds, ballot, janeDoe);
+    ballot.finish(ds);
+
+    Key janeDoeKey = KeyFactory.createKey(Candidate.ENTITY_KIND, janeDoeId);
+    Assert.assertEquals("", storedDescription(ds, janeDoeId));
+    Assert.assertEquals(ImmutableMap.of(janeDoeKey, "Jane Doe"), lateCandidates);
+
+    releaseLookup.countDown();
+    executor.shutdown();
+    executor.awaitTermination(5, TimeUnit.SECONDS);
+
+    // The queued task finds the description the missed lookup cached.
+    Assert.assertTrue(enricher.storeLateDescription(ds, janeDoeKey, "Jane Doe"));
+    Assert.assertEquals("late description", storedDescription(ds, janeDoeId));
+    Assert.assertEquals(1, lookups.get());
+  }
+
+  @Test
+  public void lateDescriptionNotCached_lookedUpAgain() throws Exception {
+    DatastoreService ds = DatastoreServiceFactory.getDatastoreService();
+    CandidateEnricher enricher =
+        new CandidateEnricher(
+            name -> Optional.of(description("description")),
+            newCache(),
+            this::queueLate,
+            executor,
+            Duration.ofSeconds(10));
+    Key janeDoeKey = ds.allocateIds(Candidate.ENTITY_KIND, 1).getStart();
+    ds.put(candidate("Jane Doe").toEntity(janeDoeKey));
+
+    Assert.assertTrue(enricher.storeLateDescription(ds, janeDoeKey, "Jane Doe"));
+
+    Assert.assertEquals("description", storedDescription(ds, janeDoeKey.getId()));
+  }
+
+  @Test
+  public void lateDescriptionLookupFails_reportedForRetry() throws Exception {
+    DatastoreService ds = DatastoreServiceFactory.getDatastoreService();
+    CandidateEnricher enricher =
+        new CandidateEnricher(
+            name -> Optional.empty(),
+            newCache(),
+            this::queueLate,
+            executor,
+            Duration.ofSeconds(10));
+    Key janeDoeKey = ds.allocateIds(Candidate.ENTITY_KIND, 1).getStart();
+    ds.put(candidate("Jane Doe").toEntity(janeDoeKey));
+
+    Assert.assertFalse(enricher.storeLateDescription(ds, janeDoeKey, "Jane Doe"));
+
+    Assert.assertEquals("", storedDescription(ds, janeDoeKey.getId()));
+  }
+
+  @Test
+  public void descriptionCached_sourceNotCalledAgain() throws Exception {
+    DatastoreService ds = DatastoreServiceFactory.getDatastoreService();
+    AtomicInteger lookups = new AtomicInteger();
+    CandidateEnricher enricher =
+        new CandidateEnricher(
+            name -> {
+              lookups.incrementAndGet();
+              return Optional.of(description("description"));
+            },
+            newCache(),
+            this::queueLate,
+            executor,
+            Duration.ofSeconds(10));
+    Candidate janeDoe = candidate("Jane Doe");
+
+    CandidateEnricher.Ballot ballot =
+        enricher.startBallot(ds, ELECTION_ID, ImmutableList.of(janeDoe));
+    store(ds, ballot, janeDoe);
+    ballot.finish(ds);
+    long janeDoeId =
+        store(ds, enricher.startBallot(ds, ELECTION_ID, ImmutableList.of(janeDoe)), janeDoe);
+
+    Assert.assertEquals(1, lookups.get());
+    Assert.assertEquals("description", storedDescription(ds, janeDoeId));
+  }
+}
@@ -0,0 +1,71 @@
+package com.google.sps.data;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import org.junit.rules.ExternalResource;
+
+/**
+ * Gives each test an empty local Datastore and a clock that only moves when the test advances it,
+ * for testing the classes that expire what they store.
+ */
+final class DatastoreClockRule extends ExternalResource {
+  private static final Instant START = Instant.parse("2020-10-01T00:00:00Z");
+
+  private final LocalServiceTestHelper helper =
+      new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+  private final FakeClock clock = new FakeClock();
+
+  @Override
+  protected void before() {
+    helper.setUp();
+    clock.now = START;
+  }
+
+  @Override
+  protected void after() {
+    helper.tearDown();
+  }
+
+  DatastoreService getDatastore() {
+    return DatastoreServiceFactory.getDatastoreService();
+  }
+
+  Clock getClock() {
+    return clock;
+  }
+
+  Instant now() {
+    return clock.now;
+  }
+
+  void advance(Duration duration) {
+    clock.now = clock.now.plus(duration);
+  }
+
+  /** A Clock that only moves forward when the test advances it. */
+  private static final class FakeClock extends Clock {
+    private volatile Instant now = START;
+
+    @Override
+    public ZoneId getZone() {
+      return ZoneOffset.UTC;
+    }
+
+    @Override
+    public Clock withZone(ZoneId zone) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Instant instant() {
+      return now;
+    }
+  }
+}
@@ -3,11 +3,14 @@ package com.google.sps.data;
 import com.google.appengine.api.datastore.DatastoreService;
 import com.google.appengine.api.datastore.DatastoreServiceFactory;
 import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
 import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Query;
 import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
 import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
 import com.google.appengine.tools.development.testing.LocalURLFetchServiceTestConfig;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
 import java.util.HashSet;
 import org.json.JSONArray;
 import org.json.JSONObject;
@@ -418,4 +421,94 @@ public class ElectionTest {
     Assert.assertEquals(election.getReferendums().size(), 2);
     Assert.assertEquals(election.getDivisions().size(), 1);
   }
+
+  // Test that updating an election's listing keeps the ballot data stored for it.
+  @Test
+  public void testMergeListingIntoDatastore_keepsContestsReferendumsAndDivisions()
+      throws Exception {
+    DatastoreService ds = DatastoreServiceFactory.getDatastoreService();
+    Election stored =
+        Election.builder()
+            .setId("9999")
+            .setName("myElection")
+            .setDate("myDate")
+            .setScope("myScope")
+            .setContests(ImmutableSet.of(1L))
+            .setReferendums(ImmutableSet.of(2L))
+            .setDivisions(ImmutableSet.of("myDivision"))
+            .build();
+    long entityKeyId = stored.addToDatastore(ds);
+    Election listed =
+        Election.builder()
+            .setId("9999")
+            .setName("myRenamedElection")
+            .setDate("myNewDate")
+            .setScope("myScope")
+            .setContests(new HashSet<Long>())
+            .setReferendums(new HashSet<Long>())
+            .setDivisions(new HashSet<String>())
+            .build();
+
+    listed.mergeListingIntoDatastore(ds, KeyFactory.createKey("Election", entityKeyId));
+
+    Election updated = Election.fromEntity(ds.get(KeyFactory.createKey("Election", entityKeyId)));
+    Assert.assertTrue(updated.hasSameListing(listed));
+    Assert.assertEquals(ImmutableSet.of(1L), updated.getContests());
+    Assert.assertEquals(ImmutableSet.of(2L), updated.getReferendums());
+    Assert.assertEquals(ImmutableSet.of("myDivision"), updated.getDivisions());
+  }
+
+  // Test that storing the same ballot twice overwrites its Entities rather than copying them.
+  @Test
+  public void testFromVoterInfoQuery_sameBallotTwice_sameKeysNoNewEntities() throws Exception {
+    DatastoreService ds = DatastoreServiceFactory.getDatastoreService();
+    Election election =
+        Election.builder()
+            .setId("9999")
+            .setName("myElection")
+            .setDate("myDate")
+            .setScope("myScope")
+            .setContests(new HashSet<Long>())
+            .setReferendums(new HashSet<Long>())
+            .setDivisions(new HashSet<String>())
+            .build();
+    JSONObject voterInfoQueryJson =
+        new JSONObject(
+            "{\"contests\": [{\"type\": \"type1\",\"office\": \"officeName\","
+                + "\"district\":{\"id\": \"myFirstDistrict\"},"
+                + "\"candidates\": [{\"name\": \"name1\",\"party\": \"party1\"},"
+                + "{\"name\": \"name2\",\"party\": \"party2\"}]},"
+                + "{\"type\": \"Referendum\", \"district\":{\"id\": \"myFirstDistrict\"},"
+                + "\"referendumTitle\": \"Proposition 1\"}]}");
+
+    Election first =
+        election.fromVoterInfoQuery(ds, voterInfoQueryJson, ImmutableSet.of("myFirstDistrict"));
+    Election second =
+        first.fromVoterInfoQuery(ds, voterInfoQueryJson, ImmutableSet.of("myFirstDistrict"));
+
+    Assert.assertEquals(first, second);
+    Assert.assertEquals(1, countEntities(ds, "Contest"));
+    Assert.assertEquals(2, countEntities(ds, "Candidate"));
+    Assert.assertEquals(1, countEntities(ds, "Referendum"));
+    Entity contestEntity =
+        ds.get(KeyFactory.createKey("Contest", Iterables.getOnlyElement(second.getContests())));
+    Assert.assertEquals(2, Contest.fromEntity(contestEntity).getCandidates().size());
+  }
+
+  // Test that elections with the same contest keep separate Entities for it.
+  @Test
+  public void testNaturalKeys_differentElections_differentKeys() {
+    Assert.assertEquals(
+        NaturalKeys.forContest("1", "myDivision", "General", "Mayor"),
+        NaturalKeys.forContest("1", "myDivision", "General", "Mayor"));
+    Assert.assertNotEquals(
+        NaturalKeys.forContest("1", "myDivision", "General", "Mayor"),
+        NaturalKeys.forContest("2", "myDivision", "General", "Mayor"));
+    Assert.assertNotEquals(
+        NaturalKeys.forReferendum("1", "ab", "c"), NaturalKeys.forReferendum("1", "a", "bc"));
+  }
+
+  private static int countEntities(DatastoreService ds, String kind) {
+    return ds.prepare(new Query(kind)).countEntities(FetchOptions.Builder.withDefaults());
+  }
 }
@@ -0,0 +1,140 @@
+package com.google.sps.data;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.gson.ExclusionStrategy;
+import com.google.gson.FieldAttributes;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
+import java.util.Optional;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class JsonWriterUtilsTest {
+  // Serializes by reflection, the way every servlet did before sharing one Gson instance.
+  private final Gson reflectiveGson = new Gson();
+
+  @Test
+  public void election_sharedGsonMatchesReflection() {
+    Election election =
+        Election.builder()
+            .setId("9999")
+            .setName("myElection <Test>")
+            .setDate("2020-11-03")
+            .setScope("ocd-division/country:us")
+            .setContests(ImmutableSet.of(1L, 2L))
+            .setReferendums(ImmutableSet.of(3L))
+            .setDivisions(ImmutableSet.of("ocd-division/country:us/state:ca"))
+            .build();
+
+    Assert.assertEquals(
+        reflectiveGson.toJson(ImmutableList.of(election)),
+        JsonWriterUtils.getGson().toJson(ImmutableList.of(election)));
+  }
+
+  @Test
+  public void contestCandidateAndReferendum_sharedGsonMatchesReflection() {
+    Contest contest =
+        Contest.builder()
+            .setName("Governor")
+            .setCandidates(ImmutableSet.of(4L, 5L))
+            .setDescription("")
+            .setSource("Voter Information Project")
+            .setDivision("firstDistrict")
+            .build();
+    Candidate candidate =
+        Candidate.builder()
+            .setName("Jane Doe")
+            .setPartyAffiliation("Independent")
+            .setCampaignSite("https://example.com/?a=1&b=2")
+            .setPlatformDescription("Jane's platform")
+            .setChannels(ImmutableMap.of("Twitter", "janedoe"))
+            .build();
+    Referendum referendum =
+        Referendum.builder()
+            .setTitle("Proposition 1")
+            .setDescription("Water Bond.")
+            .setSource("Voter Information Project")
+            .setUrl("testUrl")
+            .setDivision("firstDistrict")
+            .build();
+
+    Assert.assertEquals(reflectiveGson.toJson(contest), JsonWriterUtils.getGson().toJson(contest));
+    Assert.assertEquals(
+        reflectiveGson.toJson(candidate), JsonWriterUtils.getGson().toJson(candidate));
+    Assert.assertEquals(
+        reflectiveGson.toJson(referendum), JsonWriterUtils.getGson().toJson(referendum));
+  }
+
+  @Test
+  public void pollingStations_sharedGsonMatchesReflection() {
+    PollingStation pollingStation =
+        PollingStation.builder()
+            .setName("Polling Station")
+            .setAddress("1 Main St, Springfield, IL 62701")
+            .setPollingHours("daily")
+            .setStartDate("2020-10-01")
+            .setEndDate("2020-11-03")
+            .setLocationType("earlyVoteSites")
+            .setSources(ImmutableList.of("Voter Information Project"))
+            .build();
+
+    // The coordinates were added after the Gson instance was shared, and reflection cannot write
+    // Optionals, so they are left out of the comparison.
+    Gson reflectiveGsonWithoutOptionals =
+        new GsonBuilder()
+            .addSerializationExclusionStrategy(
+                new ExclusionStrategy() {
+                  @Override
+                  public boolean shouldSkipField(FieldAttributes field) {
+                    return field.getDeclaredClass() == Optional.class;
+                  }
+
+                  @Override
+                  public boolean shouldSkipClass(Class<?> clazz) {
+                    return false;
+                  }
+                })
+            .create();
+
+    Assert.assertEquals(
+        reflectiveGsonWithoutOptionals.toJson(ImmutableList.of(pollingStation)),
+        JsonWriterUtils.getGson().toJson(ImmutableList.of(pollingStation)));
+  }
+
+  @Test
+  public void pollingStationWithCoordinates_coordinatesWrittenLast() {
+    PollingStation pollingStation =
+        PollingStation.builder()
+            .setName("Polling Station")
+            .setAddress("1 Main St, Springfield, IL 62701")
+            .setPollingHours("daily")
+            .setStartDate("2020-10-01")
+            .setEndDate("2020-11-03")
+            .setLocationType("earlyVoteSites")
+            .setSources(ImmutableList.of())
+            .setLatitude(39.8)
+            .setLongitude(-89.65)
+            .build();
+
+    Assert.assertTrue(
+        JsonWriterUtils.getGson()
+            .toJson(pollingStation)
+            .endsWith("\"sources\":[],\"latitude\":39.8,\"longitude\":-89.65}"));
+  }
+
+  @Test
+  public void dataClasses_notReadFromJson() {
+    try {
+      JsonWriterUtils.getGson().fromJson("{}", Contest.class);
+      Assert.fail("Expected a JsonParseException.");
+    } catch (JsonParseException e) {
+      Assert.assertEquals("Contest objects are only written as JSON, never read.", e.getMessage());
+    }
+  }
+}
@@ -0,0 +1,116 @@
+package com.google.sps.data;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.common.collect.ImmutableList;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class PlatformDescriptionCacheTest {
+  private static final WeVoteDescription JANE_DOE_DESCRIPTION =
+      WeVoteDescription.builder().setWeVoteId("myId").setDescription("mySummary").build();
+
+  @Rule public final DatastoreClockRule datastoreClock = new DatastoreClockRule();
+
+  // Each cache stands in for another instance, sharing only Datastore with the others.
+  private PlatformDescriptionCache newCache() {
+    return new PlatformDescriptionCache(
+        100, Duration.ofDays(7), Duration.ofDays(1), datastoreClock.getClock());
+  }
+
+  @Test
+  public void cachedInMemory_differentSpacingAndCase() {
+    DatastoreService ds = datastoreClock.getDatastore();
+    PlatformDescriptionCache cache = newCache();
+
+    cache.put("Jane Doe", JANE_DOE_DESCRIPTION);
+    Map<String, WeVoteDescription> descriptions =
+        cache.getAll(ds, ImmutableList.of(" jane  DOE ", "John Doe"));
+
+    Assert.assertEquals(1, descriptions.size());
+    Assert.assertEquals(JANE_DOE_DESCRIPTION, descriptions.get(" jane  DOE "));
+  }
+
+  @Test
+  public void savedToDatastore_foundByOtherCache() throws Exception {
+    DatastoreService ds = datastoreClock.getDatastore();
+    PlatformDescriptionCache cache = newCache();
+
+    cache.put("Jane Doe", JANE_DOE_DESCRIPTION);
+    cache.save(ds);
+
+    Assert.assertEquals(
+        "myId",
+        ds.get(KeyFactory.createKey(PlatformDescriptionCache.ENTITY_KIND, "jane doe"))
+            .getProperty(PlatformDescriptionCache.WE_VOTE_ID_ENTITY_KEYWORD));
+    Assert.assertEquals(
+        JANE_DOE_DESCRIPTION, newCache().getAll(ds, ImmutableList.of("Jane Doe")).get("Jane Doe"));
+  }
+
+  @Test
+  public void evictedFromMemoryBeforeSave_stillSaved() {
+    DatastoreService ds = datastoreClock.getDatastore();
+    // Holds a single description, so caching John Doe evicts Jane Doe.
+    PlatformDescriptionCache cache =
+        new PlatformDescriptionCache(
+            1, Duration.ofDays(7), Duration.ofDays(1), datastoreClock.getClock());
+
+    cache.put("Jane Doe", JANE_DOE_DESCRIPTION);
+    cache.put("John Doe", WeVoteDescription.notFound());
+    cache.save(ds);
+
+    Assert.assertEquals(
+        JANE_DOE_DESCRIPTION, newCache().getAll(ds, ImmutableList.of("Jane Doe")).get("Jane Doe"));
+  }
+
+  @Test
+  public void moreDescriptionsThanOnePut_allSaved() {
+    DatastoreService ds = datastoreClock.getDatastore();
+    PlatformDescriptionCache cache = newCache();
+    List<String> names = new ArrayList<>();
+    for (int i = 0; i < 501; i++) {
+      names.add("Candidate " + i);
+      cache.put("Candidate " + i, JANE_DOE_DESCRIPTION);
+    }
+
+    cache.save(ds);
+
+    Assert.assertEquals(501, newCache().getAll(ds, names).size());
+  }
+
+  @Test
+  public void descriptionOlderThanTimeToLive_notReturned() {
+    DatastoreService ds = datastoreClock.getDatastore();
+    PlatformDescriptionCache cache = newCache();
+    cache.put("Jane Doe", JANE_DOE_DESCRIPTION);
+    cache.save(ds);
+
+    datastoreClock.advance(Duration.ofDays(8));
+
+    Assert.assertTrue(newCache().getAll(ds, ImmutableList.of("Jane Doe")).isEmpty());
+  }
+
+  @Test
+  public void notFound_cachedForShorterTime() {
+    DatastoreService ds = datastoreClock.getDatastore();
+    PlatformDescriptionCache cache = newCache();
+    cache.put("Nobody", WeVoteDescription.notFound());
+    cache.save(ds);
+
+    datastoreClock.advance(Duration.ofHours(12));
+    Assert.assertEquals(
+        WeVoteDescription.notFound(),
+        newCache().getAll(ds, ImmutableList.of("Nobody")).get("Nobody"));
+
+    datastoreClock.advance(Duration.ofHours(36));
+    Assert.assertTrue(newCache().getAll(ds, ImmutableList.of("Nobody")).isEmpty());
+  }
+}
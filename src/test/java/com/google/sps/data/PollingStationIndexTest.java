@@ -0,0 +1,117 @@
+package com.google.sps.data;
+
+import com.google.common.collect.ImmutableList;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class PollingStationIndexTest {
+
+  private static PollingStation.Builder newPollingStation(String name) {
+    return PollingStation.builder()
+        .setName(name)
+        .setAddress("address")
+        .setPollingHours("-")
+        .setStartDate("start")
+        .setEndDate("end")
+        .setLocationType("earlyVoteSites")
+        .setSources(ImmutableList.of());
+  }
+
+  private static PollingStation newPollingStation(String name, double latitude, double longitude) {
+    return newPollingStation(name).setLatitude(latitude).setLongitude(longitude).build();
+  }
+
+  @Test
+  public void nearestStations_sortedByDistance_limitedToCount() {
+    PollingStation library = newPollingStation("library", 37.42, -122.08);
+    PollingStation school = newPollingStation("school", 37.45, -122.10);
+    PollingStation cityHall = newPollingStation("cityHall", 37.80, -122.27);
+    PollingStation farAway = newPollingStation("farAway", 34.05, -118.24);
+    PollingStationIndex index =
+        PollingStationIndex.of(ImmutableList.of(farAway, cityHall, school, library));
+
+    Assert.assertEquals(ImmutableList.of(library, school), index.findNearest(37.421, -122.081, 2));
+    Assert.assertEquals(
+        ImmutableList.of(cityHall, school, library, farAway),
+        index.findNearest(37.79, -122.26, 10));
+  }
+
+  @Test
+  public void stationsWithoutCoordinatesOrRepeated_indexedOnce() {
+    PollingStation library = newPollingStation("library", 37.42, -122.08);
+    PollingStation unknown = newPollingStation("unknown").build();
+
+    PollingStationIndex index = PollingStationIndex.of(ImmutableList.of(library, unknown, library));
+
+    Assert.assertEquals(1, index.size());
+    Assert.assertEquals(ImmutableList.of(library), index.findNearest(0, 0, 5));
+    Assert.assertEquals(
+        ImmutableList.of(), PollingStationIndex.of(ImmutableList.of()).findNearest(0, 0, 5));
+  }
+
+  @Test
+  public void sameStationListedForSeveralAddresses_indexedOnce() {
+    PollingStation library = newPollingStation("library", 37.42, -122.08);
+    // The copy stored for another address was listed by another source.
+    PollingStation libraryCopy =
+        newPollingStation("library")
+            .setLatitude(37.42)
+            .setLongitude(-122.08)
+            .setSources(ImmutableList.of("otherSource"))
+            .build();
+    PollingStation libraryDropOff =
+        newPollingStation("library")
+            .setLatitude(37.42)
+            .setLongitude(-122.08)
+            .setLocationType("dropOffLocations")
+            .build();
+
+    PollingStationIndex index =
+        PollingStationIndex.of(ImmutableList.of(library, libraryCopy, libraryDropOff));
+
+    Assert.assertEquals(2, index.size());
+    Assert.assertEquals(
+        ImmutableList.of(library, libraryDropOff),
+        index
+            .findNearest(37.42, -122.08, 5)
+            .stream()
+            .sorted(Comparator.comparing(PollingStation::getLocationType).reversed())
+            .collect(Collectors.toList()));
+  }
+
+  @Test
+  public void randomStations_sameAsComparingEveryStation() {
+    Random random = new Random(2020);
+    List<PollingStation> stations = new ArrayList<>();
+    for (int i = 0; i < 2000; i++) {
+      stations.add(
+          newPollingStation(
+              "station" + i, 32.5 + random.nextDouble() * 9.5, -124.4 + random.nextDouble() * 10));
+    }
+    PollingStationIndex index = PollingStationIndex.of(stations);
+
+    for (int query = 0; query < 50; query++) {
+      double latitude = 30 + random.nextDouble() * 14;
+      double longitude = -127 + random.nextDouble() * 15;
+      double longitudeScale = Math.cos(Math.toRadians(latitude));
+      Comparator<PollingStation> byDistance =
+          Comparator.comparingDouble(
+              station ->
+                  Math.pow(station.getLatitude().get() - latitude, 2)
+                      + Math.pow((station.getLongitude().get() - longitude) * longitudeScale, 2));
+
+      List<PollingStation> expected =
+          stations.stream().sorted(byDistance).limit(7).collect(Collectors.toList());
+
+      Assert.assertEquals(expected, index.findNearest(latitude, longitude, 7));
+    }
+  }
+}
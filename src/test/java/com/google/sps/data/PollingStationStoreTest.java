@@ -0,0 +1,127 @@
+package com.google.sps.data;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Query;
+import com.google.common.collect.ImmutableList;
+import java.time.Duration;
+import java.util.Optional;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class PollingStationStoreTest {
+  private static final String ELECTION_ID = "2000";
+  private static final String ADDRESS = "1600 Amphitheatre Pkwy";
+
+  @Rule public final DatastoreClockRule datastoreClock = new DatastoreClockRule();
+
+  private PollingStationStore newStore() {
+    return new PollingStationStore(
+        Duration.ofHours(6), Duration.ofDays(7), datastoreClock.getClock());
+  }
+
+  private static PollingStation.Builder pollingStationBuilder(String name) {
+    return PollingStation.builder()
+        .setName(name)
+        .setAddress("1600 Amphitheatre Pkwy")
+        .setPollingHours("9am-5pm")
+        .setStartDate("2020-11-01")
+        .setEndDate("2020-11-03")
+        .setLocationType("pollingLocations")
+        .setSources(ImmutableList.of("Voting Information Project"));
+  }
+
+  private static PollingStation newPollingStation(String name) {
+    return pollingStationBuilder(name).build();
+  }
+
+  private static int countStationEntities(DatastoreService ds) {
+    return ds.prepare(new Query(PollingStation.ENTITY_KIND))
+        .countEntities(FetchOptions.Builder.withDefaults());
+  }
+
+  @Test
+  public void storedStations_returnedInOrder_differentSpacingAndCase() {
+    DatastoreService ds = datastoreClock.getDatastore();
+    ImmutableList<PollingStation> stations =
+        ImmutableList.of(
+            newPollingStation("Zoo"), newPollingStation("Library"), newPollingStation("School"));
+
+    newStore().put(ds, ELECTION_ID, ADDRESS, stations);
+    Optional<PollingStationStore.StoredStations> stored =
+        newStore().get(ds, ELECTION_ID, " 1600  amphitheatre PKWY ");
+
+    Assert.assertTrue(stored.isPresent());
+    Assert.assertEquals(stations, stored.get().getStations());
+    Assert.assertEquals(datastoreClock.now(), stored.get().getFetched());
+    Assert.assertFalse(stored.get().isStale());
+  }
+
+  @Test
+  public void otherAddressInSameDistricts_notServedStoredStations() {
+    DatastoreService ds = datastoreClock.getDatastore();
+
+    newStore().put(ds, ELECTION_ID, ADDRESS, ImmutableList.of(newPollingStation("Zoo")));
+
+    Assert.assertEquals(
+        Optional.empty(), newStore().get(ds, ELECTION_ID, "1601 Amphitheatre Pkwy"));
+    Assert.assertEquals(Optional.empty(), newStore().get(ds, "otherElection", ADDRESS));
+  }
+
+  @Test
+  public void replacedWithFewerStations_oldStationsDeleted() {
+    DatastoreService ds = datastoreClock.getDatastore();
+    PollingStationStore store = newStore();
+    store.put(
+        ds,
+        ELECTION_ID,
+        ADDRESS,
+        ImmutableList.of(newPollingStation("Zoo"), newPollingStation("Library")));
+
+    store.put(ds, ELECTION_ID, ADDRESS, ImmutableList.of(newPollingStation("School")));
+
+    Assert.assertEquals(
+        ImmutableList.of(newPollingStation("School")),
+        store.get(ds, ELECTION_ID, ADDRESS).get().getStations());
+    Assert.assertEquals(1, countStationEntities(ds));
+  }
+
+  @Test
+  public void stationsOlderThanRefreshInterval_staleButServed_olderThanMaximumAge_notServed() {
+    DatastoreService ds = datastoreClock.getDatastore();
+    newStore().put(ds, ELECTION_ID, ADDRESS, ImmutableList.of(newPollingStation("Zoo")));
+
+    datastoreClock.advance(Duration.ofHours(7));
+    Optional<PollingStationStore.StoredStations> stale = newStore().get(ds, ELECTION_ID, ADDRESS);
+
+    Assert.assertTrue(stale.isPresent());
+    Assert.assertTrue(stale.get().isStale());
+    datastoreClock.advance(Duration.ofDays(8));
+    Assert.assertEquals(Optional.empty(), newStore().get(ds, ELECTION_ID, ADDRESS));
+  }
+
+  @Test
+  public void index_coversEveryListOfElection_rebuiltAfterPut() {
+    DatastoreService ds = datastoreClock.getDatastore();
+    PollingStationStore store = newStore();
+    PollingStation library =
+        pollingStationBuilder("Library").setLatitude(37.42).setLongitude(-122.08).build();
+    PollingStation school =
+        pollingStationBuilder("School").setLatitude(37.45).setLongitude(-122.10).build();
+    store.put(ds, ELECTION_ID, ADDRESS, ImmutableList.of(library, newPollingStation("Zoo")));
+    store.put(ds, ELECTION_ID, "1601 Amphitheatre Pkwy", ImmutableList.of(library));
+    store.put(ds, "otherElection", ADDRESS, ImmutableList.of(school));
+
+    Assert.assertEquals(1, store.getIndex(ds, ELECTION_ID).size());
+
+    store.put(ds, ELECTION_ID, ADDRESS, ImmutableList.of(school));
+
+    Assert.assertEquals(
+        ImmutableList.of(school, library),
+        store.getIndex(ds, ELECTION_ID).findNearest(37.45, -122.10, 5));
+  }
+}
@@ -8,6 +8,7 @@ import com.google.common.collect.ImmutableList;
 import com.google.sps.data.PollingStation;
 import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.Optional;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import org.json.JSONObject;
@@ -303,4 +304,36 @@ public class PollingStationTest {
     Assert.assertEquals(pollingStationEntity.getProperty("locationType"), "earlyVoteSite");
     Assert.assertEquals(pollingStationEntity.getProperty("sources"), new ArrayList<String>());
   }
+
+  // Test reading the coordinates the API geocoded the station's address to
+  @Test
+  public void coordinates_testFromJSONObject_roundTripThroughEntity() throws Exception {
+    JSONObject pollingStationJsonObject =
+        new JSONObject(
+            "{\"address\": {\"line1\": \"1\",\"city\": \"city\",\"state\": \"state\"},"
+                + "\"latitude\": 37.422,\"longitude\": \"-122.084\"}");
+
+    PollingStation pollingStation =
+        PollingStation.fromJSONObject(pollingStationJsonObject, "pollingLocation");
+
+    Assert.assertEquals(Optional.of(37.422), pollingStation.getLatitude());
+    Assert.assertEquals(Optional.of(-122.084), pollingStation.getLongitude());
+    Assert.assertEquals(pollingStation, PollingStation.fromEntity(pollingStation.toEntity()));
+  }
+
+  // Test that a station with only one coordinate is not given a location
+  @Test
+  public void longitudeMissing_testFromJSONObject_noCoordinates() throws Exception {
+    JSONObject pollingStationJsonObject =
+        new JSONObject(
+            "{\"address\": {\"line1\": \"1\",\"city\": \"city\",\"state\": \"state\"},"
+                + "\"latitude\": 37.422}");
+
+    PollingStation pollingStation =
+        PollingStation.fromJSONObject(pollingStationJsonObject, "pollingLocation");
+
+    Assert.assertEquals(Optional.empty(), pollingStation.getLatitude());
+    Assert.assertEquals(Optional.empty(), pollingStation.getLongitude());
+    Assert.assertFalse(pollingStation.toEntity().hasProperty("latitude"));
+  }
 }
@@ -7,6 +7,7 @@ import com.google.appengine.api.datastore.KeyFactory;
 import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
 import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
 import com.google.appengine.tools.development.testing.LocalURLFetchServiceTestConfig;
+import com.google.gson.Gson;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.junit.After;
@@ -136,4 +137,20 @@ public class ReferendumTest {
     Assert.assertEquals(referendum.getTitle(), "myTitle");
     Assert.assertEquals(referendum.getDescription(), "myDescription");
   }
+
+  // Test that the streamed JSON of a Referendum matches what Gson produced before, including the
+  // escaping of HTML characters.
+  @Test
+  public void htmlCharacters_testToJsonStringMatchesGson() throws Exception {
+    Referendum referendum =
+        Referendum.builder()
+            .setTitle("Measure <A> & \"B\"")
+            .setDescription("Shall the city's tax = 1%?")
+            .setSource("mySource")
+            .setUrl("https://example.com/?a=1&b=2")
+            .setDivision("myFirstDistrict")
+            .build();
+
+    Assert.assertEquals(new Gson().toJson(referendum), referendum.toJsonString());
+  }
 }
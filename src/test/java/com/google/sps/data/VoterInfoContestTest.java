@@ -0,0 +1,68 @@
+package com.google.sps.data;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.gson.stream.JsonReader;
+import java.io.StringReader;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class VoterInfoContestTest {
+
+  // Test reading every contest out of a voterInfoQuery response, skipping unrelated fields.
+  @Test
+  public void contestAndReferendum_testListFromVoterInfoQuery() throws Exception {
+    String voterInfoQuery =
+        "{\"election\": {\"id\": \"2000\", \"name\": \"VIP Test Election\"},"
+            + "\"contests\": [{\"type\": \"General\", \"office\": \"Governor\","
+            + "\"district\": {\"name\": \"California\", \"scope\": \"statewide\","
+            + "\"id\": \"ocd-division/country:us/state:ca\"},"
+            + "\"candidates\": [{\"name\": \"Gavin Newsom\", \"party\": \"Democratic\","
+            + "\"channels\": [{\"type\": \"Twitter\", \"id\": \"GavinNewsom\"}]}],"
+            + "\"sources\": [{\"name\": \"Ballot Information Project\", \"official\": false}]},"
+            + "{\"type\": \"Referendum\", \"referendumTitle\": \"Proposition 1\","
+            + "\"referendumSubtitle\": \"Water Bond.\", \"referendumUrl\": null,"
+            + "\"district\": {\"id\": \"ocd-division/country:us/state:ca\"}}],"
+            + "\"state\": [{\"name\": \"California\"}]}";
+
+    ImmutableList<VoterInfoContest> contests =
+        VoterInfoContest.listFromVoterInfoQuery(new JsonReader(new StringReader(voterInfoQuery)));
+
+    Assert.assertEquals(2, contests.size());
+
+    VoterInfoContest contest = contests.get(0);
+    Assert.assertFalse(contest.isReferendum());
+    Assert.assertEquals("Governor", contest.getOffice().get());
+    Assert.assertEquals("ocd-division/country:us/state:ca", contest.getDivision());
+    Assert.assertEquals("Ballot Information Project", contest.getSource());
+    Assert.assertEquals(
+        ImmutableList.of(
+            Candidate.builder()
+                .setName("Gavin Newsom")
+                .setPartyAffiliation("Democratic")
+                .setCampaignSite("")
+                .setPlatformDescription("")
+                .setChannels(ImmutableMap.of("Twitter", "GavinNewsom"))
+                .build()),
+        contest.getCandidates());
+
+    VoterInfoContest referendum = contests.get(1);
+    Assert.assertTrue(referendum.isReferendum());
+    Assert.assertEquals("Proposition 1", referendum.getReferendumTitle().get());
+    Assert.assertEquals("Water Bond.", referendum.getReferendumSubtitle());
+    Assert.assertEquals("", referendum.getReferendumUrl());
+    Assert.assertTrue(referendum.getCandidates().isEmpty());
+  }
+
+  @Test
+  public void noContests_testListFromVoterInfoQuery() throws Exception {
+    ImmutableList<VoterInfoContest> contests =
+        VoterInfoContest.listFromVoterInfoQuery(
+            new JsonReader(new StringReader("{\"election\": {\"id\": \"2000\"}}")));
+
+    Assert.assertTrue(contests.isEmpty());
+  }
+}
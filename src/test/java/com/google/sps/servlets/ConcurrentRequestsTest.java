@@ -0,0 +1,238 @@
+package com.google.sps.servlets;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.powermock.api.support.membermodification.MemberMatcher.method;
+import static org.powermock.api.support.membermodification.MemberModifier.stub;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.apphosting.api.ApiProxy;
+import com.google.sps.data.Contest;
+import com.google.sps.data.Election;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+/**
+ * Drives InfoCardServlet, ContestsServlet and PollingStationServlet from many threads at once, the
+ * way an instance serves requests with threadsafe enabled. Only the outbound API calls are faked.
+ */
+@RunWith(PowerMockRunner.class)
+@PrepareForTest({ServletUtils.class, ApiHttpClient.class})
+public class ConcurrentRequestsTest {
+  private static final int ADDRESS_COUNT = 8;
+  private static final String ELECTION_ID = "2000";
+  private static final String COUNTRY_DIVISION = "ocd-division/country:us";
+  private static final String DISTRICT_DIVISION = "ocd-division/country:us/district:%d";
+  private static final Pattern ADDRESS_NUMBER = Pattern.compile("address=address%20(\\d+)");
+
+  private final LocalServiceTestHelper helper =
+      new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+  private final ExecutorService requestThreads = Executors.newFixedThreadPool(ADDRESS_COUNT);
+
+  @Before
+  public void setUp() {
+    helper.setUp();
+
+    stub(method(ServletUtils.class, "getApiKey")).toReturn("myApiKey");
+    ApiHttpClient fakeHttpClient = PowerMockito.mock(ApiHttpClient.class);
+    when(fakeHttpClient.get(anyString(), any(ApiHttpClient.ResponseParser.class)))
+        .thenAnswer(
+            invocation ->
+                Optional.of(
+                    ((ApiHttpClient.ResponseParser<?>) invocation.getArguments()[1])
+                        .parse(
+                            new ByteArrayInputStream(
+                                fakeApiResponse((String) invocation.getArguments()[0])
+                                    .getBytes(StandardCharsets.UTF_8)))));
+    ServletUtils.setHttpClient(fakeHttpClient);
+  }
+
+  @After
+  public void tearDown() {
+    requestThreads.shutdownNow();
+    ServletUtils.setHttpClient(ApiHttpClient.createDefault());
+    helper.tearDown();
+  }
+
+  // Answers every API the servlets call with data for the address number in the URL.
+  private static String fakeApiResponse(String url) {
+    if (url.contains("api.wevoteusa.org")) {
+      return "{\"search_results\": []}";
+    }
+
+    Matcher matcher = ADDRESS_NUMBER.matcher(url);
+    Assert.assertTrue("Unexpected API request " + url, matcher.find());
+    int addressNumber = Integer.parseInt(matcher.group(1));
+    String districtDivision = String.format(DISTRICT_DIVISION, addressNumber);
+
+    if (url.contains("/representatives")) {
+      return "{\"divisions\": {\""
+          + COUNTRY_DIVISION
+          + "\": {\"name\": \"United States\"}, \""
+          + districtDivision
+          + "\": {\"name\": \"District\"}}}";
+    }
+    if (url.contains("fields=contests")) {
+      return "{\"contests\": [{\"type\": \"General\", \"office\": \"President\","
+          + "\"district\": {\"id\": \""
+          + COUNTRY_DIVISION
+          + "\"}, \"candidates\": [{\"name\": \"Jane Doe\"}],"
+          + "\"sources\": [{\"name\": \"Voter Information Project\"}]},"
+          + "{\"type\": \"General\", \"office\": \"Office "
+          + addressNumber
+          + "\", \"district\": {\"id\": \""
+          + districtDivision
+          + "\"}, \"candidates\": [{\"name\": \"Candidate "
+          + addressNumber
+          + "\"}], \"sources\": [{\"name\": \"Voter Information Project\"}]}]}";
+    }
+    return "{\"pollingLocations\": [{\"address\": {\"line1\": \""
+        + addressNumber
+        + " Main St\", \"city\": \"Springfield\", \"state\": \"IL\", \"zip\": \"62701\"},"
+        + "\"name\": \"Station "
+        + addressNumber
+        + "\", \"sources\": [{\"name\": \"Voter Information Project\", \"official\": true}]}]}";
+  }
+
+  private static HttpServletRequest request(int addressNumber) {
+    HttpServletRequest request = mock(HttpServletRequest.class);
+    when(request.getParameter("electionId")).thenReturn(ELECTION_ID);
+    when(request.getParameter("address")).thenReturn("address " + addressNumber);
+    when(request.getCookies())
+        .thenReturn(
+            new Cookie[] {
+              new Cookie(
+                  "addressDivisions",
+                  COUNTRY_DIVISION + "|" + String.format(DISTRICT_DIVISION, addressNumber))
+            });
+    return request;
+  }
+
+  private static HttpServletResponse response(StringWriter body, ByteArrayOutputStream bytes)
+      throws Exception {
+    HttpServletResponse response = mock(HttpServletResponse.class);
+    when(response.getWriter()).thenReturn(new PrintWriter(body, true));
+    when(response.getOutputStream())
+        .thenReturn(
+            new ServletOutputStream() {
+              @Override
+              public void write(int b) {
+                bytes.write(b);
+              }
+
+              @Override
+              public boolean isReady() {
+                return true;
+              }
+
+              @Override
+              public void setWriteListener(WriteListener writeListener) {}
+            });
+    return response;
+  }
+
+  @Test
+  public void manyAddresses_concurrentRequests_noBallotLost() throws Exception {
+    DatastoreService ds = DatastoreServiceFactory.getDatastoreService();
+    Election.builder()
+        .setId(ELECTION_ID)
+        .setName("myElection")
+        .setDate("2020-11-03")
+        .setScope(COUNTRY_DIVISION)
+        .setContests(new HashSet<>())
+        .setReferendums(new HashSet<>())
+        .setDivisions(new HashSet<>())
+        .build()
+        .addToDatastore(ds);
+
+    InfoCardServlet infoCardServlet = new InfoCardServlet();
+    ContestsServlet contestsServlet = new ContestsServlet();
+    PollingStationServlet pollingStationServlet = new PollingStationServlet();
+    // Datastore calls need the test's App Engine environment on every request thread.
+    ApiProxy.Environment environment = ApiProxy.getCurrentEnvironment();
+    CountDownLatch start = new CountDownLatch(1);
+    List<Future<String[]>> results = new ArrayList<>();
+
+    for (int i = 0; i < ADDRESS_COUNT; i++) {
+      HttpServletRequest request = request(i);
+      StringWriter putBody = new StringWriter();
+      StringWriter pollingBody = new StringWriter();
+      ByteArrayOutputStream contestsBody = new ByteArrayOutputStream();
+      HttpServletResponse putResponse = response(putBody, new ByteArrayOutputStream());
+      HttpServletResponse contestsResponse = response(new StringWriter(), contestsBody);
+      HttpServletResponse pollingResponse = response(pollingBody, new ByteArrayOutputStream());
+
+      Callable<String[]> requests =
+          () -> {
+            ApiProxy.setEnvironmentForCurrentThread(environment);
+            start.await();
+            infoCardServlet.doPut(request, putResponse);
+            contestsServlet.doGet(request, contestsResponse);
+            pollingStationServlet.doGet(request, pollingResponse);
+            return new String[] {
+              putBody.toString(), contestsBody.toString("UTF-8"), pollingBody.toString()
+            };
+          };
+      results.add(requestThreads.submit(requests));
+    }
+    start.countDown();
+
+    for (int i = 0; i < ADDRESS_COUNT; i++) {
+      String[] bodies = results.get(i).get(30, TimeUnit.SECONDS);
+      Assert.assertEquals("", bodies[0]);
+      Assert.assertTrue(bodies[1], bodies[1].contains("\"name\":\"Office " + i + "\""));
+      Assert.assertTrue(bodies[1], bodies[1].contains("\"name\":\"Candidate " + i + "\""));
+      Assert.assertTrue(bodies[2], bodies[2].contains("\"name\":\"Station " + i + "\""));
+    }
+
+    // Every request's ballot must be in the stored Election, none overwritten by another request.
+    Election election =
+        Election.fromEntity(ServletUtils.findElectionInDatastore(ds, ELECTION_ID).get());
+    Set<String> contestDivisions = new HashSet<>();
+    for (long contestId : election.getContests()) {
+      Entity contestEntity = ds.get(KeyFactory.createKey(Contest.ENTITY_KIND, contestId));
+      contestDivisions.add((String) contestEntity.getProperty(Contest.DIVISION_ENTITY_KEYWORD));
+    }
+    for (int i = 0; i < ADDRESS_COUNT; i++) {
+      String districtDivision = String.format(DISTRICT_DIVISION, i);
+      Assert.assertTrue(election.getDivisions().contains(districtDivision));
+      Assert.assertTrue(contestDivisions.contains(districtDivision));
+    }
+  }
+}
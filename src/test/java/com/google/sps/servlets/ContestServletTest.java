@@ -1,5 +1,6 @@
 package com.google.sps.servlets;
 
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -9,14 +10,22 @@ import com.google.appengine.api.datastore.Entity;
 import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
 import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
 import com.google.appengine.tools.development.testing.LocalURLFetchServiceTestConfig;
+import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableList;
+import com.google.sps.data.Election;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.time.Duration;
 import java.util.Collection;
 import java.util.HashSet;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
 import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import org.junit.After;
+import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
@@ -33,6 +42,9 @@ public class ContestServletTest {
   @Mock HttpServletResponse httpServletResponse;
   @Mock PrintWriter printWriter;
 
+  private final ByteArrayOutputStream responseBody = new ByteArrayOutputStream();
+  private ContestsResponseCache responseCache;
+
   private Entity electionEntityOne;
   private Entity contestEntityOne;
   private Entity contestEntityTwo;
@@ -44,8 +56,25 @@ public class ContestServletTest {
   @Rule public MockitoRule mockitoRule = MockitoJUnit.rule();
 
   @Before
-  public void setUp() {
+  public void setUp() throws IOException {
     helper.setUp();
+    responseCache = new ContestsResponseCache(100, Duration.ofMinutes(10), Ticker.systemTicker());
+    when(httpServletResponse.getOutputStream())
+        .thenReturn(
+            new ServletOutputStream() {
+              @Override
+              public void write(int b) {
+                responseBody.write(b);
+              }
+
+              @Override
+              public boolean isReady() {
+                return true;
+              }
+
+              @Override
+              public void setWriteListener(WriteListener writeListener) {}
+            });
     electionEntityOne = new Entity("Election");
     electionEntityOne.setProperty("id", "9999");
     electionEntityOne.setProperty("name", "myElection");
@@ -116,13 +145,13 @@ public class ContestServletTest {
 
     Cookie[] returnedCookies = {new Cookie("addressDivisions", "firstDistrict|secondDistrict")};
     when(httpServletRequest.getCookies()).thenReturn(returnedCookies);
-    ContestsServlet contestServlet = new ContestsServlet();
+    ContestsServlet contestServlet = new ContestsServlet(responseCache);
     contestServlet.doGet(httpServletRequest, httpServletResponse);
 
-    verify(printWriter)
-        .println(
-            "{\"contests\":[{\"name\":\"myFirstContest\",\"candidates\":[],\"description\":\"This contest is important.\","
-                + "\"source\":\"Voter Information Project\",\"division\":\"firstDistrict\"}],\"referendums\":[]}");
+    Assert.assertEquals(
+        "{\"contests\":[{\"name\":\"myFirstContest\",\"candidates\":[],\"description\":\"This contest is important.\","
+            + "\"source\":\"Voter Information Project\",\"division\":\"firstDistrict\"}],\"referendums\":[]}",
+        responseBody.toString("UTF-8"));
   }
 
   @Test
@@ -151,15 +180,15 @@ public class ContestServletTest {
     when(httpServletRequest.getParameter("electionId")).thenReturn("9999");
     when(httpServletResponse.getWriter()).thenReturn(printWriter);
 
-    ContestsServlet contestServlet = new ContestsServlet();
+    ContestsServlet contestServlet = new ContestsServlet(responseCache);
     contestServlet.doGet(httpServletRequest, httpServletResponse);
 
-    verify(printWriter)
-        .println(
-            "{\"contests\":[{\"name\":\"myFirstContest\",\"candidates\":[{\"name\":\"myFirstCandidate\","
-                + "\"partyAffiliation\":\"myParty\",\"campaignSite\":\"myWebsite\",\"platformDescription\":"
-                + "\"This is a cool candidate.\",\"channels\":{}}],\"description\":\"This contest is important.\","
-                + "\"source\":\"Voter Information Project\",\"division\":\"firstDistrict\"}],\"referendums\":[]}");
+    Assert.assertEquals(
+        "{\"contests\":[{\"name\":\"myFirstContest\",\"candidates\":[{\"name\":\"myFirstCandidate\","
+            + "\"partyAffiliation\":\"myParty\",\"campaignSite\":\"myWebsite\",\"platformDescription\":"
+            + "\"This is a cool candidate.\",\"channels\":{}}],\"description\":\"This contest is important.\","
+            + "\"source\":\"Voter Information Project\",\"division\":\"firstDistrict\"}],\"referendums\":[]}",
+        responseBody.toString("UTF-8"));
   }
 
   @Test
@@ -192,17 +221,17 @@ public class ContestServletTest {
     when(httpServletRequest.getParameter("electionId")).thenReturn("9999");
     when(httpServletResponse.getWriter()).thenReturn(printWriter);
 
-    ContestsServlet contestServlet = new ContestsServlet();
+    ContestsServlet contestServlet = new ContestsServlet(responseCache);
     contestServlet.doGet(httpServletRequest, httpServletResponse);
 
-    verify(printWriter)
-        .println(
-            "{\"contests\":[{\"name\":\"myFirstContest\",\"candidates\":[{\"name\":\"myFirstCandidate\","
-                + "\"partyAffiliation\":\"myParty\",\"campaignSite\":\"myWebsite\",\"platformDescription\":"
-                + "\"This is a cool candidate.\",\"channels\":{}},{\"name\":\"mySecondCandidate\",\"partyAffiliation\":\"myOtherParty\","
-                + "\"campaignSite\":\"myOtherWebsite\",\"platformDescription\":\"But this is an even cooler candidate.\",\"channels\":{}}],"
-                + "\"description\":\"This contest is important.\",\"source\":\"Voter Information Project\",\"division\":\"firstDistrict\"}],"
-                + "\"referendums\":[]}");
+    Assert.assertEquals(
+        "{\"contests\":[{\"name\":\"myFirstContest\",\"candidates\":[{\"name\":\"myFirstCandidate\","
+            + "\"partyAffiliation\":\"myParty\",\"campaignSite\":\"myWebsite\",\"platformDescription\":"
+            + "\"This is a cool candidate.\",\"channels\":{}},{\"name\":\"mySecondCandidate\",\"partyAffiliation\":\"myOtherParty\","
+            + "\"campaignSite\":\"myOtherWebsite\",\"platformDescription\":\"But this is an even cooler candidate.\",\"channels\":{}}],"
+            + "\"description\":\"This contest is important.\",\"source\":\"Voter Information Project\",\"division\":\"firstDistrict\"}],"
+            + "\"referendums\":[]}",
+        responseBody.toString("UTF-8"));
   }
 
   @Test
@@ -229,15 +258,15 @@ public class ContestServletTest {
     when(httpServletRequest.getParameter("electionId")).thenReturn("9999");
     when(httpServletResponse.getWriter()).thenReturn(printWriter);
 
-    ContestsServlet contestServlet = new ContestsServlet();
+    ContestsServlet contestServlet = new ContestsServlet(responseCache);
     contestServlet.doGet(httpServletRequest, httpServletResponse);
 
-    verify(printWriter)
-        .println(
-            "{\"contests\":[{\"name\":\"myFirstContest\",\"candidates\":[],\"description\":\"This contest is important.\","
-                + "\"source\":\"Voter Information Project\",\"division\":\"firstDistrict\"},"
-                + "{\"name\":\"mySecondContest\",\"candidates\":[],\"description\":\"This contest is also important.\","
-                + "\"source\":\"Voter Information Project\",\"division\":\"secondDistrict\"}],\"referendums\":[]}");
+    Assert.assertEquals(
+        "{\"contests\":[{\"name\":\"myFirstContest\",\"candidates\":[],\"description\":\"This contest is important.\","
+            + "\"source\":\"Voter Information Project\",\"division\":\"firstDistrict\"},"
+            + "{\"name\":\"mySecondContest\",\"candidates\":[],\"description\":\"This contest is also important.\","
+            + "\"source\":\"Voter Information Project\",\"division\":\"secondDistrict\"}],\"referendums\":[]}",
+        responseBody.toString("UTF-8"));
   }
 
   @Test
@@ -264,13 +293,13 @@ public class ContestServletTest {
     when(httpServletRequest.getParameter("electionId")).thenReturn("9999");
     when(httpServletResponse.getWriter()).thenReturn(printWriter);
 
-    ContestsServlet contestServlet = new ContestsServlet();
+    ContestsServlet contestServlet = new ContestsServlet(responseCache);
     contestServlet.doGet(httpServletRequest, httpServletResponse);
 
-    verify(printWriter)
-        .println(
-            "{\"contests\":[{\"name\":\"myFirstContest\",\"candidates\":[],\"description\":\"This contest is important.\","
-                + "\"source\":\"Voter Information Project\",\"division\":\"firstDistrict\"}],\"referendums\":[]}");
+    Assert.assertEquals(
+        "{\"contests\":[{\"name\":\"myFirstContest\",\"candidates\":[],\"description\":\"This contest is important.\","
+            + "\"source\":\"Voter Information Project\",\"division\":\"firstDistrict\"}],\"referendums\":[]}",
+        responseBody.toString("UTF-8"));
   }
 
   @Test
@@ -293,14 +322,14 @@ public class ContestServletTest {
     when(httpServletRequest.getParameter("electionId")).thenReturn("9999");
     when(httpServletResponse.getWriter()).thenReturn(printWriter);
 
-    ContestsServlet contestServlet = new ContestsServlet();
+    ContestsServlet contestServlet = new ContestsServlet(responseCache);
     contestServlet.doGet(httpServletRequest, httpServletResponse);
 
-    verify(printWriter)
-        .println(
-            "{\"contests\":[],"
-                + "\"referendums\":[{\"title\":\"myFirstReferendum\",\"description\":\"This is a referendum.\","
-                + "\"source\":\"Voter Information Project\",\"url\":\"testUrl\",\"division\":\"firstDistrict\"}]}");
+    Assert.assertEquals(
+        "{\"contests\":[],"
+            + "\"referendums\":[{\"title\":\"myFirstReferendum\",\"description\":\"This is a referendum.\","
+            + "\"source\":\"Voter Information Project\",\"url\":\"testUrl\",\"division\":\"firstDistrict\"}]}",
+        responseBody.toString("UTF-8"));
   }
 
   @Test
@@ -327,16 +356,16 @@ public class ContestServletTest {
     when(httpServletRequest.getParameter("electionId")).thenReturn("9999");
     when(httpServletResponse.getWriter()).thenReturn(printWriter);
 
-    ContestsServlet contestServlet = new ContestsServlet();
+    ContestsServlet contestServlet = new ContestsServlet(responseCache);
     contestServlet.doGet(httpServletRequest, httpServletResponse);
 
-    verify(printWriter)
-        .println(
-            "{\"contests\":[],"
-                + "\"referendums\":[{\"title\":\"myFirstReferendum\",\"description\":\"This is a referendum.\","
-                + "\"source\":\"Voter Information Project\",\"url\":\"testUrl\",\"division\":\"firstDistrict\"},"
-                + "{\"title\":\"mySecondReferendum\",\"description\":\"This is another referendum.\","
-                + "\"source\":\"Voter Information Project\",\"url\":\"testUrl\",\"division\":\"secondDistrict\"}]}");
+    Assert.assertEquals(
+        "{\"contests\":[],"
+            + "\"referendums\":[{\"title\":\"myFirstReferendum\",\"description\":\"This is a referendum.\","
+            + "\"source\":\"Voter Information Project\",\"url\":\"testUrl\",\"division\":\"firstDistrict\"},"
+            + "{\"title\":\"mySecondReferendum\",\"description\":\"This is another referendum.\","
+            + "\"source\":\"Voter Information Project\",\"url\":\"testUrl\",\"division\":\"secondDistrict\"}]}",
+        responseBody.toString("UTF-8"));
   }
 
   @Test
@@ -363,14 +392,14 @@ public class ContestServletTest {
     when(httpServletRequest.getParameter("electionId")).thenReturn("9999");
     when(httpServletResponse.getWriter()).thenReturn(printWriter);
 
-    ContestsServlet contestServlet = new ContestsServlet();
+    ContestsServlet contestServlet = new ContestsServlet(responseCache);
     contestServlet.doGet(httpServletRequest, httpServletResponse);
 
-    verify(printWriter)
-        .println(
-            "{\"contests\":[],"
-                + "\"referendums\":[{\"title\":\"myFirstReferendum\",\"description\":\"This is a referendum.\","
-                + "\"source\":\"Voter Information Project\",\"url\":\"testUrl\",\"division\":\"firstDistrict\"}]}");
+    Assert.assertEquals(
+        "{\"contests\":[],"
+            + "\"referendums\":[{\"title\":\"myFirstReferendum\",\"description\":\"This is a referendum.\","
+            + "\"source\":\"Voter Information Project\",\"url\":\"testUrl\",\"division\":\"firstDistrict\"}]}",
+        responseBody.toString("UTF-8"));
   }
 
   @Test
@@ -380,10 +409,25 @@ public class ContestServletTest {
     when(httpServletRequest.getParameter("electionId")).thenReturn("9999");
     when(httpServletResponse.getWriter()).thenReturn(printWriter);
 
-    ContestsServlet contestServlet = new ContestsServlet();
+    ContestsServlet contestServlet = new ContestsServlet(responseCache);
+    contestServlet.doGet(httpServletRequest, httpServletResponse);
+
+    verify(printWriter).println("Election with id 9999 was not found.");
+  }
+
+  // A bad electionId is reported ahead of a missing divisions cookie.
+  @Test
+  public void noElectionEntityExists_divisionCookieMissing_testDoGet() throws IOException {
+    Cookie[] returnedCookies = {};
+    when(httpServletRequest.getCookies()).thenReturn(returnedCookies);
+    when(httpServletRequest.getParameter("electionId")).thenReturn("9999");
+    when(httpServletResponse.getWriter()).thenReturn(printWriter);
+
+    ContestsServlet contestServlet = new ContestsServlet(responseCache);
     contestServlet.doGet(httpServletRequest, httpServletResponse);
 
     verify(printWriter).println("Election with id 9999 was not found.");
+    verify(printWriter, never()).println("Divisions information for address not found");
   }
 
   @Test
@@ -393,7 +437,7 @@ public class ContestServletTest {
     when(httpServletRequest.getParameter("electionId")).thenReturn(null);
     when(httpServletResponse.getWriter()).thenReturn(printWriter);
 
-    ContestsServlet contestServlet = new ContestsServlet();
+    ContestsServlet contestServlet = new ContestsServlet(responseCache);
     contestServlet.doGet(httpServletRequest, httpServletResponse);
 
     verify(printWriter).println("No electionId in the query URL.");
@@ -411,7 +455,7 @@ public class ContestServletTest {
     when(httpServletRequest.getParameter("electionId")).thenReturn("9999");
     when(httpServletResponse.getWriter()).thenReturn(printWriter);
 
-    ContestsServlet contestServlet = new ContestsServlet();
+    ContestsServlet contestServlet = new ContestsServlet(responseCache);
     contestServlet.doGet(httpServletRequest, httpServletResponse);
 
     verify(printWriter).println("Divisions information for address not found");
@@ -441,13 +485,13 @@ public class ContestServletTest {
     when(httpServletRequest.getParameter("electionId")).thenReturn("9999");
     when(httpServletResponse.getWriter()).thenReturn(printWriter);
 
-    ContestsServlet contestServlet = new ContestsServlet();
+    ContestsServlet contestServlet = new ContestsServlet(responseCache);
     contestServlet.doGet(httpServletRequest, httpServletResponse);
 
-    verify(printWriter)
-        .println(
-            "{\"contests\":[{\"name\":\"myFirstContest\",\"candidates\":[],\"description\":\"This contest is important.\","
-                + "\"source\":\"Voter Information Project\",\"division\":\"firstDistrict\"}],\"referendums\":[]}");
+    Assert.assertEquals(
+        "{\"contests\":[{\"name\":\"myFirstContest\",\"candidates\":[],\"description\":\"This contest is important.\","
+            + "\"source\":\"Voter Information Project\",\"division\":\"firstDistrict\"}],\"referendums\":[]}",
+        responseBody.toString("UTF-8"));
   }
 
   @Test
@@ -481,16 +525,16 @@ public class ContestServletTest {
     when(httpServletRequest.getParameter("electionId")).thenReturn("9999");
     when(httpServletResponse.getWriter()).thenReturn(printWriter);
 
-    ContestsServlet contestServlet = new ContestsServlet();
+    ContestsServlet contestServlet = new ContestsServlet(responseCache);
     contestServlet.doGet(httpServletRequest, httpServletResponse);
 
-    verify(printWriter)
-        .println(
-            "{\"contests\":[{\"name\":\"myFirstContest\",\"candidates\":[{\"name\":\"myFirstCandidate\","
-                + "\"partyAffiliation\":\"myParty\",\"campaignSite\":\"myWebsite\",\"platformDescription\":"
-                + "\"This is a cool candidate.\",\"channels\":{}}],"
-                + "\"description\":\"This contest is important.\",\"source\":\"Voter Information Project\",\"division\":\"firstDistrict\"}],"
-                + "\"referendums\":[]}");
+    Assert.assertEquals(
+        "{\"contests\":[{\"name\":\"myFirstContest\",\"candidates\":[{\"name\":\"myFirstCandidate\","
+            + "\"partyAffiliation\":\"myParty\",\"campaignSite\":\"myWebsite\",\"platformDescription\":"
+            + "\"This is a cool candidate.\",\"channels\":{}}],"
+            + "\"description\":\"This contest is important.\",\"source\":\"Voter Information Project\",\"division\":\"firstDistrict\"}],"
+            + "\"referendums\":[]}",
+        responseBody.toString("UTF-8"));
   }
 
   @Test
@@ -517,14 +561,80 @@ public class ContestServletTest {
     when(httpServletRequest.getParameter("electionId")).thenReturn("9999");
     when(httpServletResponse.getWriter()).thenReturn(printWriter);
 
-    ContestsServlet contestServlet = new ContestsServlet();
+    ContestsServlet contestServlet = new ContestsServlet(responseCache);
+    contestServlet.doGet(httpServletRequest, httpServletResponse);
+
+    Assert.assertEquals(
+        "{\"contests\":[],"
+            + "\"referendums\":[{\"title\":\"myFirstReferendum\",\"description\":\"This is a referendum.\","
+            + "\"source\":\"Voter Information Project\",\"url\":\"testUrl\",\"division\":\"firstDistrict\"}]}",
+        responseBody.toString("UTF-8"));
+  }
+
+  @Test
+  public void repeatRequest_servedFromCache_testDoGet() throws Exception {
+    Entity electionEntity = new Entity("Election");
+    Entity contestEntity = new Entity("Contest");
+
+    electionEntity.setPropertiesFrom(electionEntityOne);
+    contestEntity.setPropertiesFrom(contestEntityOne);
+
+    DatastoreService ds = DatastoreServiceFactory.getDatastoreService();
+    long contestId = ds.put(contestEntity).getId();
+
+    Collection<Long> contestSet = (Collection<Long>) electionEntity.getProperty("contests");
+    contestSet.add(contestId);
+    ds.put(electionEntity);
+
+    when(httpServletRequest.getParameter("electionId")).thenReturn("9999");
+    when(httpServletRequest.getCookies())
+        .thenReturn(new Cookie[] {new Cookie("addressDivisions", "firstDistrict|secondDistrict")})
+        .thenReturn(new Cookie[] {new Cookie("addressDivisions", "secondDistrict|firstDistrict")});
+
+    ContestsServlet contestServlet = new ContestsServlet(responseCache);
+    contestServlet.doGet(httpServletRequest, httpServletResponse);
+    String firstResponse = responseBody.toString("UTF-8");
+    responseBody.reset();
+
+    // The second request lists the same divisions in another order, so it should be served from
+    // the cache even though the Contest no longer exists.
+    ds.delete(contestEntity.getKey());
+    contestServlet.doGet(httpServletRequest, httpServletResponse);
+
+    Assert.assertEquals(firstResponse, responseBody.toString("UTF-8"));
+  }
+
+  @Test
+  public void electionRenamedBySync_cacheInvalidated_testDoGet() throws Exception {
+    Entity electionEntity = new Entity("Election");
+    Entity contestEntity = new Entity("Contest");
+
+    electionEntity.setPropertiesFrom(electionEntityOne);
+    contestEntity.setPropertiesFrom(contestEntityOne);
+
+    DatastoreService ds = DatastoreServiceFactory.getDatastoreService();
+    long contestId = ds.put(contestEntity).getId();
+
+    Collection<Long> contestSet = (Collection<Long>) electionEntity.getProperty("contests");
+    contestSet.add(contestId);
+    ds.put(electionEntity);
+
+    when(httpServletRequest.getParameter("electionId")).thenReturn("9999");
+    when(httpServletRequest.getCookies())
+        .thenReturn(new Cookie[] {new Cookie("addressDivisions", "firstDistrict")});
+
+    ContestsServlet contestServlet = new ContestsServlet(ContestsResponseCache.getInstance());
+    contestServlet.doGet(httpServletRequest, httpServletResponse);
+    responseBody.reset();
+
+    ds.delete(contestEntity.getKey());
+    ElectionServlet.syncElections(
+        ds,
+        ImmutableList.of(
+            Election.fromEntity(electionEntity).toBuilder().setName("renamedElection").build()));
     contestServlet.doGet(httpServletRequest, httpServletResponse);
 
-    verify(printWriter)
-        .println(
-            "{\"contests\":[],"
-                + "\"referendums\":[{\"title\":\"myFirstReferendum\",\"description\":\"This is a referendum.\","
-                + "\"source\":\"Voter Information Project\",\"url\":\"testUrl\",\"division\":\"firstDistrict\"}]}");
+    Assert.assertEquals("{\"contests\":[],\"referendums\":[]}", responseBody.toString("UTF-8"));
   }
 
   @After
@@ -2,6 +2,7 @@ package com.google.sps.servlets;
 
 import static org.mockito.Matchers.anyBoolean;
 import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.powermock.api.mockito.PowerMockito.mockStatic;
@@ -9,12 +10,14 @@ import static org.powermock.api.mockito.PowerMockito.mockStatic;
 import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
 import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
 import com.google.appengine.tools.development.testing.LocalURLFetchServiceTestConfig;
+import com.google.common.base.Ticker;
+import com.google.common.util.concurrent.MoreExecutors;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.time.Duration;
 import java.util.Optional;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import org.json.JSONObject;
 import org.json.XML;
 import org.junit.After;
 import org.junit.Before;
@@ -30,6 +33,38 @@ import org.powermock.modules.junit4.PowerMockRunner;
 @RunWith(PowerMockRunner.class)
 @PrepareForTest(ServletUtils.class)
 public class DeadlineServletTest {
+  private static final String CALIFORNIA_DEADLINES_XML =
+      "<evag xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\""
+          + "schema-version=\"1.0\" xsi:schemaLocation=\"/xml-api/api-schema.xsd\">"
+          + "<deadline-dates>"
+          + "<election-date>"
+          + "<date>2020-11-03T00:00:00</date>"
+          + "<election-type>General Election</election-type> </election-date><deadline-date> "
+          + "<rule>By Mail: Postmarked by</rule> <date>2020-10-19T00:00:00</date> <election-type>General Election</election-type>"
+          + "<voting-request-type>Registration</voting-request-type> </deadline-date> <deadline-date> <rule>By Online or Fax: Received by</rule>"
+          + "<date>2020-10-19T00:00:00</date> <election-type>General Election</election-type> <voting-request-type>Registration</voting-request-type>"
+          + "</deadline-date> <deadline-date> <rule>Received by</rule> <date>2020-10-27T00:00:00</date>"
+          + "<election-type>General Election</election-type> <voting-request-type>Ballot Request</voting-request-type> </deadline-date>"
+          + "<deadline-date> <rule>Return by Mail: Postmarked by*</rule> <date>2020-11-03T00:00:00</date> <election-type>General Election</election-type>"
+          + "<voting-request-type>Ballot Return</voting-request-type> </deadline-date> <deadline-date>"
+          + "<rule>Return by Fax: Received by</rule> <date>2020-11-03T20:00:00</date>"
+          + "<election-type>General Election</election-type> <voting-request-type>Ballot Return</voting-request-type>"
+          + "</deadline-date> </deadline-dates> </evag>";
+
+  private static final String CALIFORNIA_DEADLINES_JSON =
+      "{\"map\":{\"dates\":{\"myArrayList\":[{\"map\":{\"date\":\"2020-10-19T00:00:00\","
+          + "\"election-type\":\"General Election\",\"rule\":\"By Mail: Postmarked by\","
+          + "\"voting-request-type\":\"Registration\"}},{\"map\":{\"date\":"
+          + "\"2020-10-19T00:00:00\",\"election-type\":\"General Election\",\"rule\":"
+          + "\"By Online or Fax: Received by\",\"voting-request-type\":\"Registration\"}},"
+          + "{\"map\":{\"date\":\"2020-10-27T00:00:00\",\"election-type\":\"General Election\","
+          + "\"rule\":\"Received by\",\"voting-request-type\":\"Ballot Request\"}},{\"map\":"
+          + "{\"date\":\"2020-11-03T00:00:00\",\"election-type\":\"General Election\",\"rule\":"
+          + "\"Return by Mail: Postmarked by*\",\"voting-request-type\":\"Ballot Return\"}},"
+          + "{\"map\":{\"date\":\"2020-11-03T20:00:00\",\"election-type\":\"General Election\","
+          + "\"rule\":\"Return by Fax: Received by\",\"voting-request-type\":\"Ballot Return\"}}]},"
+          + "\"state\":\"California\"}}";
+
   private final LocalServiceTestHelper helper =
       new LocalServiceTestHelper(
           new LocalDatastoreServiceTestConfig(), new LocalURLFetchServiceTestConfig());
@@ -78,26 +113,8 @@ public class DeadlineServletTest {
     when(ServletUtils.getRequestParam(httpServletRequest, httpServletResponse, "state"))
         .thenReturn(Optional.of("ca"));
 
-    String xmlString =
-        "<evag xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\""
-            + "schema-version=\"1.0\" xsi:schemaLocation=\"/xml-api/api-schema.xsd\">"
-            + "<deadline-dates>"
-            + "<election-date>"
-            + "<date>2020-11-03T00:00:00</date>"
-            + "<election-type>General Election</election-type> </election-date><deadline-date> "
-            + "<rule>By Mail: Postmarked by</rule> <date>2020-10-19T00:00:00</date> <election-type>General Election</election-type>"
-            + "<voting-request-type>Registration</voting-request-type> </deadline-date> <deadline-date> <rule>By Online or Fax: Received by</rule>"
-            + "<date>2020-10-19T00:00:00</date> <election-type>General Election</election-type> <voting-request-type>Registration</voting-request-type>"
-            + "</deadline-date> <deadline-date> <rule>Received by</rule> <date>2020-10-27T00:00:00</date>"
-            + "<election-type>General Election</election-type> <voting-request-type>Ballot Request</voting-request-type> </deadline-date>"
-            + "<deadline-date> <rule>Return by Mail: Postmarked by*</rule> <date>2020-11-03T00:00:00</date> <election-type>General Election</election-type>"
-            + "<voting-request-type>Ballot Return</voting-request-type> </deadline-date> <deadline-date>"
-            + "<rule>Return by Fax: Received by</rule> <date>2020-11-03T20:00:00</date>"
-            + "<election-type>General Election</election-type> <voting-request-type>Ballot Return</voting-request-type>"
-            + "</deadline-date> </deadline-dates> </evag>";
-
     when(ServletUtils.readFromApiUrl(anyString(), anyBoolean()))
-        .thenReturn(Optional.of(new JSONObject(XML.toJSONObject(xmlString).toString())));
+        .thenReturn(Optional.of(XML.toJSONObject(CALIFORNIA_DEADLINES_XML)));
 
     when(httpServletRequest.getParameter("state")).thenReturn("ca");
     when(httpServletResponse.getWriter()).thenReturn(printWriter);
@@ -105,19 +122,73 @@ public class DeadlineServletTest {
     DeadlinesServlet deadlinesServlet = new DeadlinesServlet();
     deadlinesServlet.doGet(httpServletRequest, httpServletResponse);
 
-    verify(printWriter)
-        .println(
-            "{\"map\":{\"dates\":{\"myArrayList\":[{\"map\":{\"date\":\"2020-10-19T00:00:00\","
-                + "\"election-type\":\"General Election\",\"rule\":\"By Mail: Postmarked by\","
-                + "\"voting-request-type\":\"Registration\"}},{\"map\":{\"date\":"
-                + "\"2020-10-19T00:00:00\",\"election-type\":\"General Election\",\"rule\":"
-                + "\"By Online or Fax: Received by\",\"voting-request-type\":\"Registration\"}},"
-                + "{\"map\":{\"date\":\"2020-10-27T00:00:00\",\"election-type\":\"General Election\","
-                + "\"rule\":\"Received by\",\"voting-request-type\":\"Ballot Request\"}},{\"map\":"
-                + "{\"date\":\"2020-11-03T00:00:00\",\"election-type\":\"General Election\",\"rule\":"
-                + "\"Return by Mail: Postmarked by*\",\"voting-request-type\":\"Ballot Return\"}},"
-                + "{\"map\":{\"date\":\"2020-11-03T20:00:00\",\"election-type\":\"General Election\","
-                + "\"rule\":\"Return by Fax: Received by\",\"voting-request-type\":\"Ballot Return\"}}]},"
-                + "\"state\":\"California\"}}");
+    verify(printWriter).println(CALIFORNIA_DEADLINES_JSON);
+  }
+
+  @Test
+  public void stateAlreadyLoaded_servedFromCache_testDoGet() throws IOException {
+    mockStatic(ServletUtils.class);
+    when(ServletUtils.getRequestParam(httpServletRequest, httpServletResponse, "state"))
+        .thenReturn(Optional.of("ca"));
+    // Only the first request can reach FVAP.
+    when(ServletUtils.readFromApiUrl(anyString(), anyBoolean()))
+        .thenReturn(Optional.of(XML.toJSONObject(CALIFORNIA_DEADLINES_XML)))
+        .thenReturn(Optional.empty());
+    when(httpServletResponse.getWriter()).thenReturn(printWriter);
+
+    DeadlinesServlet deadlinesServlet = new DeadlinesServlet();
+    deadlinesServlet.doGet(httpServletRequest, httpServletResponse);
+    deadlinesServlet.doGet(httpServletRequest, httpServletResponse);
+
+    verify(printWriter, times(2)).println(CALIFORNIA_DEADLINES_JSON);
+  }
+
+  @Test
+  public void refreshFails_staleDeadlinesServed_testDoGet() throws IOException {
+    mockStatic(ServletUtils.class);
+    when(ServletUtils.getRequestParam(httpServletRequest, httpServletResponse, "state"))
+        .thenReturn(Optional.of("ca"));
+    when(ServletUtils.readFromApiUrl(anyString(), anyBoolean()))
+        .thenReturn(Optional.of(XML.toJSONObject(CALIFORNIA_DEADLINES_XML)))
+        .thenReturn(Optional.empty());
+    when(httpServletResponse.getWriter()).thenReturn(printWriter);
+
+    FakeTicker ticker = new FakeTicker();
+    DeadlinesServlet deadlinesServlet =
+        new DeadlinesServlet(Duration.ofHours(1), ticker, MoreExecutors.directExecutor());
+    deadlinesServlet.doGet(httpServletRequest, httpServletResponse);
+    ticker.advance(Duration.ofHours(2));
+    deadlinesServlet.doGet(httpServletRequest, httpServletResponse);
+
+    verify(printWriter, times(2)).println(CALIFORNIA_DEADLINES_JSON);
+  }
+
+  @Test
+  public void upstreamUnavailable_testDoGet() throws IOException {
+    mockStatic(ServletUtils.class);
+    when(ServletUtils.getRequestParam(httpServletRequest, httpServletResponse, "state"))
+        .thenReturn(Optional.of("ca"));
+    when(ServletUtils.readFromApiUrl(anyString(), anyBoolean())).thenReturn(Optional.empty());
+    when(httpServletResponse.getWriter()).thenReturn(printWriter);
+
+    DeadlinesServlet deadlinesServlet = new DeadlinesServlet();
+    deadlinesServlet.doGet(httpServletRequest, httpServletResponse);
+
+    verify(printWriter).println("Deadlines for ca could not be retrieved.");
+    verify(httpServletResponse).setStatus(400);
+  }
+
+  /** A Ticker that only moves forward when the test advances it. */
+  private static class FakeTicker extends Ticker {
+    private long nanos = 0;
+
+    @Override
+    public long read() {
+      return nanos;
+    }
+
+    void advance(Duration duration) {
+      nanos += duration.toNanos();
+    }
   }
 }
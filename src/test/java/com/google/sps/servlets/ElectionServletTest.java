@@ -1,5 +1,9 @@
 package com.google.sps.servlets;
 
+import static org.mockito.Matchers.contains;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -7,15 +11,22 @@ import com.google.appengine.api.datastore.DatastoreService;
 import com.google.appengine.api.datastore.DatastoreServiceFactory;
 import com.google.appengine.api.datastore.EmbeddedEntity;
 import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Query;
 import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
 import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
 import com.google.appengine.tools.development.testing.LocalURLFetchServiceTestConfig;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.sps.data.Election;
 import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.HashSet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import org.junit.*;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.junit.MockitoJUnit;
 import org.mockito.junit.MockitoRule;
@@ -34,6 +45,8 @@ public class ElectionServletTest {
   @Before
   public void setUp() {
     helper.setUp();
+    // The list cached by an earlier test is of a Datastore that no longer exists.
+    ElectionListCache.getInstance().invalidate();
   }
 
   @After
@@ -61,4 +74,150 @@ public class ElectionServletTest {
         .println(
             "[{\"id\":\"9999\",\"name\":\"myElection\",\"date\":\"myDate\",\"scope\":\"myScope\",\"contests\":[],\"referendums\":[],\"divisions\":[]}]");
   }
+
+  private static Election newElection(String id, String name) {
+    return Election.builder()
+        .setId(id)
+        .setName(name)
+        .setDate("myDate")
+        .setScope("myScope")
+        .setContests(new HashSet<Long>())
+        .setReferendums(new HashSet<Long>())
+        .setDivisions(new HashSet<String>())
+        .build();
+  }
+
+  // Test that a sync only writes the elections that changed and keeps their ballot data.
+  @Test
+  public void syncElections_addsUpdatesAndRemovesOnlyChangedElections() throws Exception {
+    DatastoreService ds = DatastoreServiceFactory.getDatastoreService();
+    long unchangedKeyId = newElection("1", "unchanged").addToDatastore(ds);
+    long renamedKeyId =
+        newElection("2", "beforeRename")
+            .withContests(ImmutableSet.of(10L))
+            .withDivisions(ImmutableSet.of("myDivision"))
+            .addToDatastore(ds);
+    newElection("3", "removed").addToDatastore(ds);
+
+    ElectionServlet.SyncResult result =
+        ElectionServlet.syncElections(
+            ds,
+            ImmutableList.of(
+                newElection("1", "unchanged"),
+                newElection("2", "afterRename"),
+                newElection("4", "added")));
+
+    Assert.assertEquals(1, result.getAdded());
+    Assert.assertEquals(1, result.getUpdated());
+    Assert.assertEquals(1, result.getRemoved());
+
+    Election renamed = Election.fromEntity(ds.get(KeyFactory.createKey("Election", renamedKeyId)));
+    Assert.assertEquals("afterRename", renamed.getName());
+    Assert.assertEquals(ImmutableSet.of(10L), renamed.getContests());
+    Assert.assertEquals(ImmutableSet.of("myDivision"), renamed.getDivisions());
+    Assert.assertEquals(
+        "unchanged", ds.get(KeyFactory.createKey("Election", unchangedKeyId)).getProperty("name"));
+    Assert.assertFalse(ServletUtils.findElectionInDatastore(ds, "3").isPresent());
+    Assert.assertTrue(ServletUtils.findElectionInDatastore(ds, "4").isPresent());
+  }
+
+  // Test that an election stored twice is only kept once, with its ballot data.
+  @Test
+  public void syncElections_duplicateElection_copyWithBallotDataKept() throws Exception {
+    DatastoreService ds = DatastoreServiceFactory.getDatastoreService();
+    newElection("1", "myElection").addToDatastore(ds);
+    long populatedKeyId =
+        newElection("1", "myElection").withContests(ImmutableSet.of(10L)).addToDatastore(ds);
+    newElection("1", "myElection").addToDatastore(ds);
+
+    ElectionServlet.SyncResult result =
+        ElectionServlet.syncElections(ds, ImmutableList.of(newElection("1", "myElection")));
+
+    Assert.assertEquals(0, result.getAdded() + result.getUpdated() + result.getRemoved());
+    Assert.assertEquals(
+        1, ds.prepare(new Query("Election")).countEntities(FetchOptions.Builder.withDefaults()));
+    Assert.assertEquals(
+        populatedKeyId, ServletUtils.findElectionInDatastore(ds, "1").get().getKey().getId());
+  }
+
+  // Test that a client holding the current list is told it has not changed.
+  @Test
+  public void ifNoneMatchCurrentEntityTag_notModified() throws Exception {
+    newElection("1", "myElection").addToDatastore(DatastoreServiceFactory.getDatastoreService());
+    ElectionServlet electionServlet = new ElectionServlet();
+    when(httpServletResponse.getWriter()).thenReturn(printWriter);
+
+    electionServlet.doGet(httpServletRequest, httpServletResponse);
+
+    ArgumentCaptor<String> entityTag = ArgumentCaptor.forClass(String.class);
+    verify(httpServletResponse).setHeader(eq("ETag"), entityTag.capture());
+    verify(httpServletResponse).setHeader("Cache-Control", "public, no-cache");
+    HttpServletRequest revalidation = mock(HttpServletRequest.class);
+    HttpServletResponse notModified = mock(HttpServletResponse.class);
+    when(revalidation.getHeader("If-None-Match")).thenReturn("\"other\", " + entityTag.getValue());
+
+    electionServlet.doGet(revalidation, notModified);
+
+    verify(notModified).setHeader("ETag", entityTag.getValue());
+    verify(notModified).setStatus(304);
+    verify(notModified, never()).getWriter();
+  }
+
+  // Test that a sync renaming an election drops the cached list.
+  @Test
+  public void electionRenamedBySync_cachedListReplaced() throws Exception {
+    DatastoreService ds = DatastoreServiceFactory.getDatastoreService();
+    ElectionServlet.syncElections(ds, ImmutableList.of(newElection("1", "firstElection")));
+    when(httpServletResponse.getWriter()).thenReturn(printWriter);
+    ElectionServlet electionServlet = new ElectionServlet();
+    electionServlet.doGet(httpServletRequest, httpServletResponse);
+
+    ElectionServlet.syncElections(ds, ImmutableList.of(newElection("1", "renamedElection")));
+    electionServlet.doGet(httpServletRequest, httpServletResponse);
+
+    verify(printWriter).println(contains("renamedElection"));
+  }
+
+  // Test that a sync drops the list served by the servlet.
+  @Test
+  public void electionsSynced_cachedListReplaced() throws Exception {
+    DatastoreService ds = DatastoreServiceFactory.getDatastoreService();
+    ElectionServlet.syncElections(ds, ImmutableList.of(newElection("1", "firstElection")));
+    when(httpServletResponse.getWriter()).thenReturn(printWriter);
+    ElectionServlet electionServlet = new ElectionServlet();
+    electionServlet.doGet(httpServletRequest, httpServletResponse);
+
+    ElectionServlet.syncElections(ds, ImmutableList.of(newElection("2", "secondElection")));
+    electionServlet.doGet(httpServletRequest, httpServletResponse);
+
+    verify(printWriter).println(contains("secondElection"));
+  }
+
+  @Test
+  public void matchesEntityTag_weakListedAndWildcardTags() {
+    Assert.assertTrue(ElectionServlet.matchesEntityTag("W/\"abc\"", "\"abc\""));
+    Assert.assertTrue(ElectionServlet.matchesEntityTag("\"x\" , \"abc\"", "\"abc\""));
+    Assert.assertTrue(ElectionServlet.matchesEntityTag("*", "\"abc\""));
+    Assert.assertFalse(ElectionServlet.matchesEntityTag("\"abcd\"", "\"abc\""));
+    Assert.assertFalse(ElectionServlet.matchesEntityTag(null, "\"abc\""));
+  }
+
+  // Test that the list view only has the fields lists of elections show.
+  @Test
+  public void listView_onlyListFieldsReturned() throws Exception {
+    newElection("9999", "myElection")
+        .withContests(ImmutableSet.of(1L, 2L))
+        .withReferendums(ImmutableSet.of(3L))
+        .withDivisions(ImmutableSet.of("myDivision"))
+        .addToDatastore(DatastoreServiceFactory.getDatastoreService());
+    when(httpServletRequest.getParameter("view")).thenReturn("list");
+    when(httpServletResponse.getWriter()).thenReturn(printWriter);
+    ElectionServlet electionServlet = new ElectionServlet();
+
+    electionServlet.doGet(httpServletRequest, httpServletResponse);
+
+    verify(printWriter)
+        .println(
+            "[{\"id\":\"9999\",\"name\":\"myElection\",\"date\":\"myDate\",\"scope\":\"myScope\"}]");
+  }
 }
@@ -0,0 +1,145 @@
+package com.google.sps.servlets;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.ImmutableSet;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeoutException;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+public class InfoCardServletTest {
+  private static final String ADDRESS = "1600 Amphitheatre Pkwy";
+  private static final String ELECTION_ID = "2000";
+
+  private final SingleFlight<String, InfoCardServlet.PutResult> putFlights = new SingleFlight<>();
+  private SingleFlight.Flight<InfoCardServlet.PutResult> leader;
+
+  @Before
+  public void setUp() {
+    // Another request leads a PUT for the same address and election.
+    leader = putFlights.join(InfoCardServlet.flightKey(ADDRESS, ELECTION_ID));
+  }
+
+  // Returns a PUT request for ADDRESS and ELECTION_ID that keeps its attributes between passes,
+  // like a container does. "onJoined" runs once the request has joined the flight.
+  private static HttpServletRequest newRequest(Runnable onJoined) {
+    HttpServletRequest request = mock(HttpServletRequest.class);
+    when(request.getParameter("address")).thenReturn(ADDRESS);
+    when(request.getParameter("electionId")).thenReturn(ELECTION_ID);
+    Map<String, Object> attributes = new ConcurrentHashMap<>();
+    when(request.getAttribute(anyString()))
+        .thenAnswer(invocation -> attributes.get(invocation.getArguments()[0]));
+    doAnswer(
+            invocation -> {
+              attributes.put((String) invocation.getArguments()[0], invocation.getArguments()[1]);
+              if (invocation.getArguments()[1] instanceof SingleFlight.Flight) {
+                onJoined.run();
+              }
+              return null;
+            })
+        .when(request)
+        .setAttribute(anyString(), any());
+    return request;
+  }
+
+  private static HttpServletResponse newResponse(PrintWriter printWriter) throws IOException {
+    HttpServletResponse response = mock(HttpServletResponse.class);
+    when(response.getWriter()).thenReturn(printWriter);
+    return response;
+  }
+
+  @Test
+  public void leaderFails_followerGetsErrorMessage() throws IOException {
+    PrintWriter printWriter = mock(PrintWriter.class);
+    HttpServletResponse response = newResponse(printWriter);
+
+    new InfoCardServlet(putFlights)
+        .doPut(
+            newRequest(
+                () ->
+                    leader
+                        .getResult()
+                        .completeExceptionally(
+                            new IOException("Civic Information API unavailable"))),
+            response);
+
+    verify(printWriter)
+        .println("Could not query with electionId 2000 and address 1600 Amphitheatre Pkwy.");
+    verify(response).setStatus(eq(400));
+  }
+
+  @Test
+  public void leaderMissesFlightDeadline_followerGetsErrorMessage() throws IOException {
+    PrintWriter printWriter = mock(PrintWriter.class);
+    HttpServletResponse response = newResponse(printWriter);
+
+    new InfoCardServlet(putFlights)
+        .doPut(
+            newRequest(
+                () ->
+                    leader
+                        .getResult()
+                        .completeExceptionally(new TimeoutException("Deadline exceeded"))),
+            response);
+
+    verify(printWriter)
+        .println("Could not query with electionId 2000 and address 1600 Amphitheatre Pkwy.");
+    verify(response).setStatus(eq(400));
+  }
+
+  @Test
+  public void followerFailsWhileSuspended_leaderResultStillReachesOtherFollowers()
+      throws Exception {
+    InfoCardServlet servlet = new InfoCardServlet(putFlights);
+    HttpServletRequest failingRequest = newRequest(() -> {});
+    HttpServletRequest waitingRequest = newRequest(() -> {});
+    AsyncContext failingContext = mock(AsyncContext.class);
+    AsyncContext waitingContext = mock(AsyncContext.class);
+    for (HttpServletRequest request : new HttpServletRequest[] {failingRequest, waitingRequest}) {
+      when(request.isAsyncSupported()).thenReturn(true);
+    }
+    when(failingRequest.startAsync()).thenReturn(failingContext);
+    when(waitingRequest.startAsync()).thenReturn(waitingContext);
+    HttpServletResponse waitingResponse = newResponse(mock(PrintWriter.class));
+
+    servlet.doPut(failingRequest, newResponse(mock(PrintWriter.class)));
+    servlet.doPut(waitingRequest, waitingResponse);
+    // The client of one joining request disconnects, and then its async context times out.
+    ArgumentCaptor<AsyncListener> listener = ArgumentCaptor.forClass(AsyncListener.class);
+    verify(failingContext).addListener(listener.capture());
+    listener.getValue().onError(new AsyncEvent(failingContext, new IOException("Reset")));
+    listener.getValue().onTimeout(new AsyncEvent(failingContext));
+
+    leader
+        .getResult()
+        .complete(
+            InfoCardServlet.PutResult.builder()
+                .setDivisions(ImmutableSet.of("ocd-division/country:us"))
+                .build());
+    servlet.doPut(waitingRequest, waitingResponse);
+
+    Assert.assertFalse(leader.getResult().isCompletedExceptionally());
+    verify(waitingResponse).addCookie(any(Cookie.class));
+    verify(waitingResponse, never()).setStatus(anyInt());
+  }
+}
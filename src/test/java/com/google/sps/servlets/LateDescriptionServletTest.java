@@ -0,0 +1,167 @@
+package com.google.sps.servlets;
+
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.appengine.tools.development.testing.LocalTaskQueueTestConfig;
+import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.sps.data.Candidate;
+import com.google.sps.data.CandidateEnricher;
+import com.google.sps.data.PlatformDescriptionCache;
+import com.google.sps.data.WeVoteDescription;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnit;
+import org.mockito.junit.MockitoRule;
+
+@RunWith(JUnit4.class)
+public class LateDescriptionServletTest {
+  private static final Set<String> DIVISIONS = ImmutableSet.of("ocd-division/country:us");
+  private static final byte[] RESPONSE = {'[', ']'};
+
+  private final LocalServiceTestHelper helper =
+      new LocalServiceTestHelper(
+          new LocalDatastoreServiceTestConfig(),
+          new LocalTaskQueueTestConfig().setDisableAutoTaskExecution(true));
+  private final ExecutorService executor = Executors.newSingleThreadExecutor();
+  private final ContestsResponseCache responseCache =
+      new ContestsResponseCache(100, Duration.ofMinutes(10), Ticker.systemTicker());
+  // Whether the fake WeVote lookup finds the candidate.
+  private final AtomicBoolean lookupSucceeds = new AtomicBoolean(true);
+
+  @Mock HttpServletRequest httpServletRequest;
+  @Mock HttpServletResponse httpServletResponse;
+
+  @Rule public MockitoRule mockitoRule = MockitoJUnit.rule();
+
+  private DatastoreService datastore;
+  private Key candidateKey;
+  private LateDescriptionServlet servlet;
+
+  @Before
+  public void setUp() {
+    helper.setUp();
+    datastore = DatastoreServiceFactory.getDatastoreService();
+    candidateKey = datastore.allocateIds(Candidate.ENTITY_KIND, 1).getStart();
+    datastore.put(
+        Candidate.builder()
+            .setName("Jane Doe")
+            .setPartyAffiliation("")
+            .setCampaignSite("")
+            .setPlatformDescription("")
+            .setChannels(ImmutableMap.of())
+            .build()
+            .toEntity(candidateKey));
+
+    servlet =
+        new LateDescriptionServlet(
+            new CandidateEnricher(
+                name ->
+                    lookupSucceeds.get()
+                        ? Optional.of(
+                            WeVoteDescription.builder()
+                                .setWeVoteId("myId")
+                                .setDescription("late description")
+                                .build())
+                        : Optional.empty(),
+                new PlatformDescriptionCache(
+                    100, Duration.ofDays(7), Duration.ofDays(1), Clock.systemUTC()),
+                LateDescriptionServlet::queueTasks,
+                executor,
+                Duration.ofSeconds(10)),
+            responseCache);
+
+    responseCache.put("2000", DIVISIONS, RESPONSE, responseCache.getGeneration());
+    responseCache.put("3000", DIVISIONS, RESPONSE, responseCache.getGeneration());
+    when(httpServletRequest.getParameter("candidateKey"))
+        .thenReturn(KeyFactory.keyToString(candidateKey));
+    when(httpServletRequest.getParameter("candidateName")).thenReturn("Jane Doe");
+    when(httpServletRequest.getParameter("electionId")).thenReturn("2000");
+  }
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+    helper.tearDown();
+  }
+
+  private String storedDescription() throws Exception {
+    return (String) datastore.get(candidateKey).getProperty(Candidate.PLATFORM_ENTITY_KEYWORD);
+  }
+
+  @Test
+  public void queuedTask_descriptionStoredAndOnlyItsElectionInvalidated_testDoPost()
+      throws Exception {
+    when(httpServletRequest.getHeader("X-AppEngine-QueueName")).thenReturn("default");
+
+    servlet.doPost(httpServletRequest, httpServletResponse);
+
+    Assert.assertEquals("late description", storedDescription());
+    Assert.assertEquals(Optional.empty(), responseCache.get("2000", DIVISIONS));
+    Assert.assertTrue(responseCache.get("3000", DIVISIONS).isPresent());
+  }
+
+  @Test
+  public void lookupFailed_taskRetried_testDoPost() throws Exception {
+    when(httpServletRequest.getHeader("X-AppEngine-QueueName")).thenReturn("default");
+    lookupSucceeds.set(false);
+
+    servlet.doPost(httpServletRequest, httpServletResponse);
+
+    verify(httpServletResponse).setStatus(503);
+    Assert.assertEquals("", storedDescription());
+    Assert.assertTrue(responseCache.get("2000", DIVISIONS).isPresent());
+  }
+
+  @Test
+  public void notFromTaskQueue_rejected_testDoPost() throws Exception {
+    servlet.doPost(httpServletRequest, httpServletResponse);
+
+    verify(httpServletResponse).setStatus(403);
+    verify(httpServletResponse, never()).setStatus(503);
+    Assert.assertEquals("", storedDescription());
+  }
+
+  @Test
+  public void lateCandidates_oneTaskQueuedEach() {
+    LateDescriptionServlet.queueTasks(
+        "2000",
+        ImmutableMap.of(
+            candidateKey,
+            "Jane Doe",
+            KeyFactory.createKey(Candidate.ENTITY_KIND, candidateKey.getId() + 1),
+            "John Doe"));
+
+    Assert.assertEquals(
+        2,
+        LocalTaskQueueTestConfig.getLocalTaskQueue()
+            .getQueueStateInfo()
+            .get("default")
+            .getTaskInfo()
+            .size());
+  }
+}
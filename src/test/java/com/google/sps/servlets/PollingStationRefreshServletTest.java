@@ -0,0 +1,115 @@
+package com.google.sps.servlets;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.powermock.api.support.membermodification.MemberMatcher.method;
+import static org.powermock.api.support.membermodification.MemberModifier.stub;
+
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.common.collect.ImmutableList;
+import com.google.sps.data.PollingStation;
+import com.google.sps.data.PollingStationStore;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.List;
+import java.util.Optional;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnit;
+import org.mockito.junit.MockitoRule;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest({ServletUtils.class, ApiHttpClient.class})
+public class PollingStationRefreshServletTest {
+  private static final LocalServiceTestHelper helper =
+      new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+  private static final List<PollingStation> STATIONS =
+      ImmutableList.of(
+          PollingStation.builder()
+              .setName("myPollingStation")
+              .setAddress("555 Main St")
+              .setPollingHours("-")
+              .setStartDate("start")
+              .setEndDate("end")
+              .setLocationType("pollingLocations")
+              .setSources(ImmutableList.of())
+              .build());
+
+  @Mock HttpServletRequest httpServletRequest;
+  @Mock HttpServletResponse httpServletResponse;
+
+  @Rule public MockitoRule mockitoRule = MockitoJUnit.rule();
+
+  private final ApiHttpClient apiHttpClient = PowerMockito.mock(ApiHttpClient.class);
+
+  private final PollingStationStore store =
+      new PollingStationStore(Duration.ofHours(6), Duration.ofDays(7), Clock.systemUTC());
+
+  @Before
+  public void setUp() {
+    helper.setUp();
+    stub(method(ServletUtils.class, "getApiKey")).toReturn("myApiKey");
+    ServletUtils.setHttpClient(apiHttpClient);
+    when(httpServletRequest.getParameter("electionId")).thenReturn("2000");
+    when(httpServletRequest.getParameter("address")).thenReturn("myAddress");
+  }
+
+  @Test
+  public void queuedTask_stationsLookedUpAndStored_testDoPost() throws Exception {
+    when(httpServletRequest.getHeader("X-AppEngine-QueueName")).thenReturn("default");
+    when(apiHttpClient.get(anyString(), any(ApiHttpClient.ResponseParser.class)))
+        .thenReturn(Optional.of(STATIONS));
+
+    new PollingStationRefreshServlet(store).doPost(httpServletRequest, httpServletResponse);
+
+    Assert.assertEquals(
+        STATIONS,
+        store
+            .get(DatastoreServiceFactory.getDatastoreService(), "2000", "myAddress")
+            .get()
+            .getStations());
+  }
+
+  @Test
+  public void lookupFailed_taskRetried_testDoPost() throws Exception {
+    when(httpServletRequest.getHeader("X-AppEngine-QueueName")).thenReturn("default");
+    when(apiHttpClient.get(anyString(), any(ApiHttpClient.ResponseParser.class)))
+        .thenReturn(Optional.empty());
+
+    new PollingStationRefreshServlet(store).doPost(httpServletRequest, httpServletResponse);
+
+    verify(httpServletResponse).setStatus(503);
+    Assert.assertEquals(
+        Optional.empty(),
+        store.get(DatastoreServiceFactory.getDatastoreService(), "2000", "myAddress"));
+  }
+
+  @Test
+  public void notFromTaskQueue_rejected_testDoPost() throws Exception {
+    new PollingStationRefreshServlet(store).doPost(httpServletRequest, httpServletResponse);
+
+    verify(httpServletResponse).setStatus(403);
+    verify(apiHttpClient, never()).get(anyString(), any(ApiHttpClient.ResponseParser.class));
+  }
+
+  @After
+  public void tearDown() {
+    ServletUtils.setHttpClient(ApiHttpClient.createDefault());
+    helper.tearDown();
+  }
+}
@@ -1,21 +1,42 @@
 package com.google.sps.servlets;
 
-import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.startsWith;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.powermock.api.mockito.PowerMockito.mockStatic;
+import static org.powermock.api.mockito.PowerMockito.verifyStatic;
 
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
 import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
 import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.appengine.tools.development.testing.LocalTaskQueueTestConfig;
 import com.google.appengine.tools.development.testing.LocalURLFetchServiceTestConfig;
+import com.google.common.collect.ImmutableList;
+import com.google.sps.data.PollingStation;
+import com.google.sps.data.PollingStationStore;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import javax.servlet.AsyncContext;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import org.json.JSONObject;
 import org.junit.After;
+import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
@@ -31,7 +52,9 @@ import org.powermock.modules.junit4.PowerMockRunner;
 public class PollingStationServletTest {
   private static final LocalServiceTestHelper helper =
       new LocalServiceTestHelper(
-          new LocalDatastoreServiceTestConfig(), new LocalURLFetchServiceTestConfig());
+          new LocalDatastoreServiceTestConfig(),
+          new LocalURLFetchServiceTestConfig(),
+          new LocalTaskQueueTestConfig().setDisableAutoTaskExecution(true));
 
   @Mock HttpServletRequest httpServletRequest;
   @Mock HttpServletResponse httpServletResponse;
@@ -73,8 +96,7 @@ public class PollingStationServletTest {
             + "}"
             + "]}";
 
-    when(ServletUtils.readFromApiUrl(anyString(), anyBoolean()))
-        .thenReturn(Optional.of(new JSONObject(returnString)));
+    mockApiResponse(returnString);
 
     when(httpServletRequest.getParameter("electionId")).thenReturn("2000");
     when(httpServletRequest.getParameter("address")).thenReturn("myAddress");
@@ -140,8 +162,7 @@ public class PollingStationServletTest {
             + "]"
             + "}";
 
-    when(ServletUtils.readFromApiUrl(anyString(), anyBoolean()))
-        .thenReturn(Optional.of(new JSONObject(returnString)));
+    mockApiResponse(returnString);
 
     when(httpServletRequest.getParameter("electionId")).thenReturn("2000");
     when(httpServletRequest.getParameter("address")).thenReturn("myAddress");
@@ -170,7 +191,8 @@ public class PollingStationServletTest {
     when(httpServletRequest.getParameter("electionId")).thenReturn("9999");
     when(httpServletRequest.getParameter("address")).thenReturn("myAddress");
     when(httpServletResponse.getWriter()).thenReturn(printWriter);
-    when(ServletUtils.readFromApiUrl(anyString(), anyBoolean())).thenReturn(Optional.empty());
+    when(ServletUtils.readFromApiUrl(anyString(), any(ApiHttpClient.ResponseParser.class)))
+        .thenReturn(Optional.empty());
 
     PollingStationServlet pollingStationServlet = new PollingStationServlet();
     pollingStationServlet.doGet(httpServletRequest, httpServletResponse);
@@ -190,6 +212,162 @@ public class PollingStationServletTest {
     verify(printWriter).println("No electionId in the query URL.");
   }
 
+  @Test
+  public void asyncSupported_suspendedUntilQueryFinishes_testDoGet() throws Exception {
+    mockStatic(ServletUtils.class);
+    when(ServletUtils.getRequestParam(httpServletRequest, httpServletResponse, "electionId"))
+        .thenReturn(Optional.of("2000"));
+    when(ServletUtils.getRequestParam(httpServletRequest, httpServletResponse, "address"))
+        .thenReturn(Optional.of("myAddress"));
+    // The query cannot finish before the servlet has decided whether to suspend the request.
+    CountDownLatch queryReleased = new CountDownLatch(1);
+    when(ServletUtils.readFromApiUrl(anyString(), any(ApiHttpClient.ResponseParser.class)))
+        .thenAnswer(
+            invocation -> {
+              queryReleased.await();
+              return Optional.of(new ArrayList<>());
+            });
+    when(httpServletResponse.getWriter()).thenReturn(printWriter);
+
+    // Request attributes are kept between passes, like a container does.
+    Map<String, Object> attributes = new ConcurrentHashMap<>();
+    when(httpServletRequest.getAttribute(anyString()))
+        .thenAnswer(invocation -> attributes.get(invocation.getArguments()[0]));
+    doAnswer(
+            invocation ->
+                attributes.put((String) invocation.getArguments()[0], invocation.getArguments()[1]))
+        .when(httpServletRequest)
+        .setAttribute(anyString(), any());
+    when(httpServletRequest.isAsyncSupported()).thenReturn(true);
+    AsyncContext asyncContext = mock(AsyncContext.class);
+    when(httpServletRequest.startAsync()).thenReturn(asyncContext);
+    CountDownLatch dispatched = new CountDownLatch(1);
+    doAnswer(
+            invocation -> {
+              dispatched.countDown();
+              return null;
+            })
+        .when(asyncContext)
+        .dispatch();
+
+    PollingStationServlet pollingStationServlet = new PollingStationServlet();
+    pollingStationServlet.doGet(httpServletRequest, httpServletResponse);
+
+    verify(httpServletRequest).startAsync();
+    verify(printWriter, never()).println(anyString());
+
+    queryReleased.countDown();
+    Assert.assertTrue(dispatched.await(5, TimeUnit.SECONDS));
+    pollingStationServlet.doGet(httpServletRequest, httpServletResponse);
+
+    verify(printWriter).println("[]");
+    verifyStatic(times(1));
+    ServletUtils.readFromApiUrl(anyString(), any(ApiHttpClient.ResponseParser.class));
+  }
+
+  @Test
+  public void latitudeAndLongitude_nearestStoredStationReturned_testDoGet() throws Exception {
+    PollingStation.Builder station =
+        PollingStation.builder()
+            .setAddress("address")
+            .setPollingHours("-")
+            .setStartDate("start")
+            .setEndDate("end")
+            .setLocationType("earlyVoteSites")
+            .setSources(ImmutableList.of());
+    PollingStationStore store =
+        new PollingStationStore(Duration.ofHours(6), Duration.ofDays(7), Clock.systemUTC());
+    store.put(
+        DatastoreServiceFactory.getDatastoreService(),
+        "2000",
+        "myAddress",
+        ImmutableList.of(
+            station.setName("far").setLatitude(34.05).setLongitude(-118.24).build(),
+            station.setName("near").setLatitude(37.42).setLongitude(-122.08).build()));
+
+    when(httpServletRequest.getParameter("electionId")).thenReturn("2000");
+    when(httpServletRequest.getParameter("lat")).thenReturn("37.4");
+    when(httpServletRequest.getParameter("lng")).thenReturn("-122.1");
+    when(httpServletRequest.getParameter("k")).thenReturn("1");
+    when(httpServletResponse.getWriter()).thenReturn(printWriter);
+
+    PollingStationServlet pollingStationServlet = new PollingStationServlet(store);
+    pollingStationServlet.doGet(httpServletRequest, httpServletResponse);
+
+    verify(printWriter)
+        .println(
+            "[{\"name\":\"near\",\"address\":\"address\",\"pollingHours\":\"-\","
+                + "\"startDate\":\"start\",\"endDate\":\"end\","
+                + "\"locationType\":\"earlyVoteSites\",\"sources\":[],"
+                + "\"latitude\":37.42,\"longitude\":-122.08}]");
+  }
+
+  @Test
+  public void staleStoredStations_servedAndRefreshQueuedOnce_testDoGet() throws Exception {
+    // Stations go stale as soon as they are stored.
+    PollingStationStore store =
+        new PollingStationStore(Duration.ZERO, Duration.ofDays(7), Clock.systemUTC());
+    store.put(
+        DatastoreServiceFactory.getDatastoreService(),
+        "2000",
+        "myAddress",
+        ImmutableList.of(
+            PollingStation.builder()
+                .setName("myPollingStation")
+                .setAddress("555 Main St")
+                .setPollingHours("-")
+                .setStartDate("start")
+                .setEndDate("end")
+                .setLocationType("pollingLocations")
+                .setSources(ImmutableList.of())
+                .build()));
+
+    when(httpServletRequest.getParameter("electionId")).thenReturn("2000");
+    when(httpServletRequest.getParameter("address")).thenReturn("myAddress");
+    when(httpServletResponse.getWriter()).thenReturn(printWriter);
+
+    PollingStationServlet pollingStationServlet = new PollingStationServlet(store);
+    pollingStationServlet.doGet(httpServletRequest, httpServletResponse);
+    pollingStationServlet.doGet(httpServletRequest, httpServletResponse);
+
+    verify(printWriter, times(2)).println(startsWith("[{\"name\":\"myPollingStation\""));
+    Assert.assertEquals(
+        1,
+        LocalTaskQueueTestConfig.getLocalTaskQueue()
+            .getQueueStateInfo()
+            .get("default")
+            .getTaskInfo()
+            .size());
+  }
+
+  @Test
+  public void nearestCountOutOfRange_testDoGet() throws IOException {
+    when(httpServletRequest.getParameter("electionId")).thenReturn("2000");
+    when(httpServletRequest.getParameter("lat")).thenReturn("37.4");
+    when(httpServletRequest.getParameter("lng")).thenReturn("-122.1");
+    when(httpServletRequest.getParameter("k")).thenReturn("0");
+    when(httpServletResponse.getWriter()).thenReturn(printWriter);
+
+    PollingStationServlet pollingStationServlet = new PollingStationServlet();
+    pollingStationServlet.doGet(httpServletRequest, httpServletResponse);
+
+    verify(httpServletResponse).setStatus(400);
+    verify(printWriter, never()).println(startsWith("["));
+  }
+
+  // Makes the mocked API call feed "responseBody" to the parser passed in by the servlet.
+  private static void mockApiResponse(String responseBody) throws IOException {
+    when(ServletUtils.readFromApiUrl(anyString(), any(ApiHttpClient.ResponseParser.class)))
+        .thenAnswer(
+            invocation -> {
+              ApiHttpClient.ResponseParser<?> parser =
+                  (ApiHttpClient.ResponseParser<?>) invocation.getArguments()[1];
+              return Optional.of(
+                  parser.parse(
+                      new ByteArrayInputStream(responseBody.getBytes(StandardCharsets.UTF_8))));
+            });
+  }
+
   @After
   public void tearDown() {
     helper.tearDown();
@@ -0,0 +1,40 @@
+package com.google.sps.servlets;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class SingleFlightTest {
+
+  @Test
+  public void sameKeyWhileInFlight_followsLeader() throws Exception {
+    SingleFlight<String, String> flights = new SingleFlight<>();
+
+    SingleFlight.Flight<String> leader = flights.join("key");
+    SingleFlight.Flight<String> follower = flights.join("key");
+    leader.getResult().complete("result");
+
+    Assert.assertTrue(leader.isLeader());
+    Assert.assertFalse(follower.isLeader());
+    Assert.assertEquals("result", follower.getResult().get());
+  }
+
+  @Test
+  public void differentKeys_separateFlights() {
+    SingleFlight<String, String> flights = new SingleFlight<>();
+
+    Assert.assertTrue(flights.join("key").isLeader());
+    Assert.assertTrue(flights.join("otherKey").isLeader());
+  }
+
+  @Test
+  public void flightFinished_nextRequestLeadsNewFlight() {
+    SingleFlight<String, String> flights = new SingleFlight<>();
+
+    flights.join("key").getResult().complete("result");
+    SingleFlight.Flight<String> failed = flights.join("key");
+    failed.getResult().completeExceptionally(new IllegalStateException());
+
+    Assert.assertTrue(failed.isLeader());
+    Assert.assertTrue(flights.join("key").isLeader());
+  }
+}
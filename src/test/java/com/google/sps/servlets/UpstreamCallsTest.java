@@ -0,0 +1,115 @@
+package com.google.sps.servlets;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.common.util.concurrent.Uninterruptibles;
+import java.time.Duration;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.http.HttpServletRequest;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+public class UpstreamCallsTest {
+  private final CountDownLatch callsReleased = new CountDownLatch(1);
+
+  @After
+  public void tearDown() {
+    callsReleased.countDown();
+  }
+
+  private Optional<String> blockedCall() {
+    Uninterruptibles.awaitUninterruptibly(callsReleased);
+    return Optional.of("result");
+  }
+
+  @Test
+  public void callsStartedTogether_runInParallel() throws Exception {
+    HttpServletRequest request = mock(HttpServletRequest.class);
+    CountDownLatch bothStarted = new CountDownLatch(2);
+
+    CompletableFuture<Optional<Boolean>> first =
+        UpstreamCalls.start(
+            request,
+            "first",
+            () -> {
+              bothStarted.countDown();
+              return Optional.of(
+                  Uninterruptibles.awaitUninterruptibly(bothStarted, 5, TimeUnit.SECONDS));
+            });
+    CompletableFuture<Optional<Boolean>> second =
+        UpstreamCalls.start(
+            request,
+            "second",
+            () -> {
+              bothStarted.countDown();
+              return Optional.of(
+                  Uninterruptibles.awaitUninterruptibly(bothStarted, 5, TimeUnit.SECONDS));
+            });
+
+    Assert.assertTrue(UpstreamCalls.isDoneOrSuspend(request, first, second));
+    // Each call only finishes early if the other one started while it was waiting.
+    Assert.assertEquals(Optional.of(true), UpstreamCalls.getResultOrEmpty(first));
+    Assert.assertEquals(Optional.of(true), UpstreamCalls.getResultOrEmpty(second));
+  }
+
+  @Test
+  public void deadlinePassed_allCallsEmpty() throws Exception {
+    HttpServletRequest request = mock(HttpServletRequest.class);
+    CompletableFuture<Optional<String>> first =
+        UpstreamCalls.start(request, "first", this::blockedCall);
+    CompletableFuture<Optional<String>> second =
+        UpstreamCalls.start(request, "second", this::blockedCall);
+
+    UpstreamCalls.setDeadline(Duration.ofMillis(100), first, second);
+
+    Assert.assertTrue(UpstreamCalls.isDoneOrSuspend(request, first, second));
+    Assert.assertEquals(Optional.empty(), UpstreamCalls.getResultOrEmpty(first));
+    Assert.assertEquals(Optional.empty(), UpstreamCalls.getResultOrEmpty(second));
+  }
+
+  @Test
+  public void cancelledCall_returnsEmpty_otherCallUnaffected() throws Exception {
+    HttpServletRequest request = mock(HttpServletRequest.class);
+    CompletableFuture<Optional<String>> cancelled =
+        UpstreamCalls.start(request, "cancelled", this::blockedCall);
+    CompletableFuture<Optional<String>> kept =
+        UpstreamCalls.start(request, "kept", () -> Optional.of("kept"));
+
+    cancelled.cancel(/* mayInterruptIfRunning= */ false);
+
+    Assert.assertTrue(UpstreamCalls.isDoneOrSuspend(request, cancelled, kept));
+    Assert.assertEquals(Optional.empty(), UpstreamCalls.getResultOrEmpty(cancelled));
+    Assert.assertEquals(Optional.of("kept"), UpstreamCalls.getResultOrEmpty(kept));
+  }
+
+  @Test
+  public void suspendedRequestTimesOut_dispatchedOnce_callsLeftRunning() throws Exception {
+    HttpServletRequest request = mock(HttpServletRequest.class);
+    AsyncContext asyncContext = mock(AsyncContext.class);
+    when(request.isAsyncSupported()).thenReturn(true);
+    when(request.startAsync()).thenReturn(asyncContext);
+    CompletableFuture<Optional<String>> call =
+        UpstreamCalls.start(request, "blocked", this::blockedCall);
+
+    Assert.assertFalse(UpstreamCalls.isDoneOrSuspend(request, call));
+    ArgumentCaptor<AsyncListener> listener = ArgumentCaptor.forClass(AsyncListener.class);
+    verify(asyncContext).addListener(listener.capture());
+    listener.getValue().onTimeout(new AsyncEvent(asyncContext));
+
+    Assert.assertFalse(call.isDone());
+    callsReleased.countDown();
+    Assert.assertEquals(Optional.of("result"), call.get(5, TimeUnit.SECONDS));
+    verify(asyncContext, times(1)).dispatch();
+  }
+}
@@ -0,0 +1,116 @@
+package com.google.sps.unit;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.CharStreams;
+import com.google.sps.servlets.ApiHttpClient;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Optional;
+import java.util.zip.GZIPOutputStream;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ApiHttpClientTest {
+  private HttpServer stubServer;
+  private ApiHttpClient client;
+
+  @Before
+  public void setUp() throws Exception {
+    stubServer = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    stubServer.createContext(
+        "/plain",
+        exchange -> {
+          byte[] body = "{\"key\":\"value\"}".getBytes(StandardCharsets.UTF_8);
+          exchange.sendResponseHeaders(200, body.length);
+          try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+          }
+        });
+    stubServer.createContext(
+        "/gzip",
+        exchange -> {
+          ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+          try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+            gzip.write("{\"key\":\"compressed\"}".getBytes(StandardCharsets.UTF_8));
+          }
+          exchange.getResponseHeaders().add("Content-Encoding", "gzip");
+          exchange.sendResponseHeaders(200, compressed.size());
+          try (OutputStream out = exchange.getResponseBody()) {
+            compressed.writeTo(out);
+          }
+        });
+    stubServer.createContext(
+        "/missing",
+        exchange -> {
+          exchange.sendResponseHeaders(404, -1);
+          exchange.close();
+        });
+    stubServer.createContext(
+        "/slow",
+        exchange -> {
+          try {
+            Thread.sleep(2000);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+          exchange.sendResponseHeaders(200, -1);
+          exchange.close();
+        });
+    stubServer.start();
+
+    ApiHttpClient.HostSettings settings =
+        ApiHttpClient.HostSettings.builder()
+            .setConnectTimeout(Duration.ofSeconds(1))
+            .setReadTimeout(Duration.ofMillis(500))
+            .setMaxConcurrentRequests(2)
+            .build();
+    client = new ApiHttpClient(settings, ImmutableMap.of());
+  }
+
+  @After
+  public void tearDown() {
+    stubServer.stop(0);
+  }
+
+  private String stubUrl(String path) {
+    return "http://localhost:" + stubServer.getAddress().getPort() + path;
+  }
+
+  private Optional<String> getAsString(String path) {
+    return client.get(
+        stubUrl(path),
+        body -> CharStreams.toString(new InputStreamReader(body, StandardCharsets.UTF_8)));
+  }
+
+  @Test
+  public void get_okResponse_returnParsedBody() {
+    Assert.assertEquals(Optional.of("{\"key\":\"value\"}"), getAsString("/plain"));
+  }
+
+  @Test
+  public void get_gzipResponse_returnDecompressedBody() {
+    Assert.assertEquals(Optional.of("{\"key\":\"compressed\"}"), getAsString("/gzip"));
+  }
+
+  @Test
+  public void get_notFoundResponse_returnEmpty() {
+    Assert.assertFalse(getAsString("/missing").isPresent());
+  }
+
+  @Test
+  public void get_responseSlowerThanReadTimeout_returnEmpty() {
+    Assert.assertFalse(getAsString("/slow").isPresent());
+  }
+
+  @Test
+  public void get_malformedUrl_returnEmpty() {
+    Assert.assertFalse(client.get("not a url", body -> "unused").isPresent());
+  }
+}
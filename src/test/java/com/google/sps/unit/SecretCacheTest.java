@@ -0,0 +1,91 @@
+package com.google.sps.unit;
+
+import com.google.cloud.secretmanager.v1.SecretVersionName;
+import com.google.common.util.concurrent.Uninterruptibles;
+import com.google.sps.servlets.SecretCache;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class SecretCacheTest {
+
+  // Test that a secret is fetched from its source once and then served from memory.
+  @Test
+  public void get_sameSecretTwice_fetchFromSourceOnce() throws Exception {
+    List<SecretVersionName> fetchedSecrets = new ArrayList<>();
+    SecretCache secretCache =
+        new SecretCache(
+            secretVersionName -> {
+              fetchedSecrets.add(secretVersionName);
+              return "myApiKey";
+            },
+            Duration.ofHours(1));
+
+    Assert.assertEquals("myApiKey", secretCache.get("myProject", "mySecret", "1"));
+    Assert.assertEquals("myApiKey", secretCache.get("myProject", "mySecret", "1"));
+    Assert.assertEquals(1, fetchedSecrets.size());
+  }
+
+  // Test that different versions of a secret are cached separately.
+  @Test
+  public void get_twoVersions_fetchEachVersion() throws Exception {
+    SecretCache secretCache =
+        new SecretCache(
+            secretVersionName -> "key-" + secretVersionName.getSecretVersion(),
+            Duration.ofHours(1));
+
+    Assert.assertEquals("key-1", secretCache.get("myProject", "mySecret", "1"));
+    Assert.assertEquals("key-2", secretCache.get("myProject", "mySecret", "2"));
+  }
+
+  // Test that a failure of the source is surfaced as an IOException and not cached.
+  @Test
+  public void get_sourceFails_throwIOException() throws Exception {
+    List<SecretVersionName> fetchedSecrets = new ArrayList<>();
+    SecretCache secretCache =
+        new SecretCache(
+            secretVersionName -> {
+              fetchedSecrets.add(secretVersionName);
+              throw new IOException("Secret Manager unavailable");
+            },
+            Duration.ofHours(1));
+
+    for (int i = 0; i < 2; i++) {
+      try {
+        secretCache.get("myProject", "mySecret", "1");
+        Assert.fail("Expected an IOException");
+      } catch (IOException e) {
+        Assert.assertEquals("Secret Manager unavailable", e.getCause().getMessage());
+      }
+    }
+    Assert.assertEquals(2, fetchedSecrets.size());
+  }
+
+  // Test that a first fetch that takes too long fails the caller but still fills the cache.
+  @Test
+  public void get_sourceSlowerThanTimeout_throwIOException_cachedOnceFetched() throws Exception {
+    CountDownLatch sourceReleased = new CountDownLatch(1);
+    SecretCache secretCache =
+        new SecretCache(
+            secretVersionName -> {
+              Uninterruptibles.awaitUninterruptibly(sourceReleased);
+              return "myApiKey";
+            },
+            Duration.ofHours(1),
+            Duration.ofMillis(100));
+
+    try {
+      secretCache.get("myProject", "mySecret", "1");
+      Assert.fail("Expected an IOException");
+    } catch (IOException e) {
+      Assert.assertEquals("Timed out accessing secret mySecret", e.getMessage());
+    }
+
+    sourceReleased.countDown();
+    Assert.assertEquals("myApiKey", secretCache.get("myProject", "mySecret", "1"));
+  }
+}
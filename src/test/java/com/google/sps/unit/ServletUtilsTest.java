@@ -6,13 +6,23 @@ import static org.mockito.Mockito.when;
 import com.google.appengine.api.datastore.DatastoreService;
 import com.google.appengine.api.datastore.DatastoreServiceFactory;
 import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Query;
 import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
 import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
 import com.google.appengine.tools.development.testing.LocalURLFetchServiceTestConfig;
+import com.google.common.collect.ImmutableList;
 import com.google.sps.servlets.ServletUtils;
 import java.io.PrintWriter;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.stream.Collectors;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import org.junit.*;
@@ -110,4 +120,125 @@ public class ServletUtilsTest {
     Optional<Entity> foundEntity = ServletUtils.findElectionInDatastore(ds, "0001");
     Assert.assertFalse(foundEntity.isPresent());
   }
+
+  // Test finding the matching Election Entity when several Elections are in Datastore.
+  @Test
+  public void findElectionInDatastore_manyElections_returnCorrespondingEntity() throws Exception {
+    DatastoreService ds = DatastoreServiceFactory.getDatastoreService();
+    for (int i = 0; i < 10; i++) {
+      Entity otherElectionEntity = new Entity("Election");
+      otherElectionEntity.setProperty("id", String.valueOf(1000 + i));
+      otherElectionEntity.setProperty("name", "otherElection");
+      ds.put(otherElectionEntity);
+    }
+    Entity electionEntity = new Entity("Election");
+    electionEntity.setProperty("id", "9999");
+    electionEntity.setProperty("name", "myElection");
+    ds.put(electionEntity);
+
+    Optional<Entity> foundEntity = ServletUtils.findElectionInDatastore(ds, "9999");
+    Assert.assertTrue(foundEntity.isPresent());
+    Assert.assertEquals(foundEntity.get(), electionEntity);
+  }
+
+  // Test getting several Entities of different kinds from Datastore in one call, omitting any that
+  // are missing.
+  @Test
+  public void getAllFromDatastore_someKeysMissing_returnOnlyExistingEntities() throws Exception {
+    DatastoreService ds = DatastoreServiceFactory.getDatastoreService();
+    Entity contestEntity = new Entity("Contest");
+    contestEntity.setProperty("name", "myContest");
+    Entity referendumEntity = new Entity("Referendum");
+    referendumEntity.setProperty("title", "myReferendum");
+    Key contestKey = ds.put(contestEntity);
+    Key referendumKey = ds.put(referendumEntity);
+    Key missingKey = KeyFactory.createKey("Candidate", 12345);
+
+    Map<Key, Entity> foundEntities =
+        ServletUtils.getAllFromDatastore(
+            ds, ImmutableList.of(contestKey, referendumKey, missingKey));
+
+    Assert.assertEquals(2, foundEntities.size());
+    Assert.assertEquals(contestEntity, foundEntities.get(contestKey));
+    Assert.assertEquals(referendumEntity, foundEntities.get(referendumKey));
+    Assert.assertFalse(foundEntities.containsKey(missingKey));
+  }
+
+  // Test getting more Entities than Datastore looks up in one batch call.
+  @Test
+  public void getAllFromDatastore_moreThanOneBatch_returnEveryEntity() throws Exception {
+    DatastoreService ds = DatastoreServiceFactory.getDatastoreService();
+    List<Entity> candidateEntities = new ArrayList<>();
+    Iterator<Key> candidateKeys = ServletUtils.allocateKeys(ds, "Candidate", 2500);
+    while (candidateKeys.hasNext()) {
+      candidateEntities.add(new Entity(candidateKeys.next()));
+    }
+    ServletUtils.putAllInDatastore(ds, candidateEntities);
+
+    Map<Key, Entity> foundEntities =
+        ServletUtils.getAllFromDatastore(
+            ds, candidateEntities.stream().map(Entity::getKey).collect(Collectors.toList()));
+
+    Assert.assertEquals(2500, foundEntities.size());
+  }
+
+  // Test storing more Entities than Datastore accepts in one batch call, under pre-allocated keys.
+  @Test
+  public void putAllInDatastore_moreThanOneBatch_storeEveryEntity() throws Exception {
+    DatastoreService ds = DatastoreServiceFactory.getDatastoreService();
+    Iterator<Key> candidateKeys = ServletUtils.allocateKeys(ds, "Candidate", 1200);
+    List<Entity> candidateEntities = new ArrayList<>();
+    while (candidateKeys.hasNext()) {
+      Entity candidateEntity = new Entity(candidateKeys.next());
+      candidateEntity.setProperty("name", "myCandidate");
+      candidateEntities.add(candidateEntity);
+    }
+
+    ServletUtils.putAllInDatastore(ds, candidateEntities);
+
+    Assert.assertEquals(
+        1200,
+        ds.prepare(new Query("Candidate")).countEntities(FetchOptions.Builder.withDefaults()));
+    Assert.assertFalse(ServletUtils.allocateKeys(ds, "Candidate", 0).hasNext());
+  }
+
+  @Test
+  public void deleteAllFromDatastore_moreThanOneBatch_deleteOnlyGivenKeys() throws Exception {
+    DatastoreService ds = DatastoreServiceFactory.getDatastoreService();
+    List<Entity> candidateEntities = new ArrayList<>();
+    Iterator<Key> candidateKeys = ServletUtils.allocateKeys(ds, "Candidate", 1200);
+    while (candidateKeys.hasNext()) {
+      candidateEntities.add(new Entity(candidateKeys.next()));
+    }
+    ServletUtils.putAllInDatastore(ds, candidateEntities);
+    List<Key> removedKeys = new ArrayList<>();
+    for (Entity candidateEntity : candidateEntities.subList(0, 1100)) {
+      removedKeys.add(candidateEntity.getKey());
+    }
+
+    ServletUtils.deleteAllFromDatastore(ds, removedKeys);
+
+    Assert.assertEquals(
+        100, ds.prepare(new Query("Candidate")).countEntities(FetchOptions.Builder.withDefaults()));
+  }
+
+  @Test
+  public void deleteAllEntitiesOfKind_moreThanOneBatch_deleteOnlyThatKind() throws Exception {
+    DatastoreService ds = DatastoreServiceFactory.getDatastoreService();
+    List<Entity> entities = new ArrayList<>();
+    Iterator<Key> candidateKeys = ServletUtils.allocateKeys(ds, "Candidate", 1200);
+    while (candidateKeys.hasNext()) {
+      entities.add(new Entity(candidateKeys.next()));
+    }
+    entities.add(new Entity("Candidate", "namedCandidate"));
+    entities.add(new Entity("Contest"));
+    ServletUtils.putAllInDatastore(ds, entities);
+
+    Assert.assertEquals(1201, ServletUtils.deleteAllEntitiesOfKind(ds, "Candidate"));
+
+    Assert.assertEquals(
+        0, ds.prepare(new Query("Candidate")).countEntities(FetchOptions.Builder.withDefaults()));
+    Assert.assertEquals(
+        1, ds.prepare(new Query("Contest")).countEntities(FetchOptions.Builder.withDefaults()));
+  }
 }